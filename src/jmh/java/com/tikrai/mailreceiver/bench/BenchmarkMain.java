@@ -0,0 +1,36 @@
+package com.tikrai.mailreceiver.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Takes the usual JMH command line and always adds the GC
+ * profiler, so every run reports allocation rate ({@code gc.alloc.rate.norm}) next to the score.
+ */
+public final class BenchmarkMain {
+
+  private BenchmarkMain() {}
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp()) {
+      cmd.showHelp();
+      return;
+    }
+    Runner runner = new Runner(new OptionsBuilder()
+        .parent(cmd)
+        .addProfiler(GCProfiler.class)
+        .build());
+    if (cmd.shouldList()) {
+      runner.list();
+      return;
+    }
+    runner.run();
+  }
+}
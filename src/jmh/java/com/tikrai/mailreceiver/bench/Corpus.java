@@ -0,0 +1,63 @@
+package com.tikrai.mailreceiver.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/** Sample messages shared by the benchmarks: the files under {@code corpus/} plus a generated large attachment. */
+public final class Corpus {
+
+  public static final int ATTACHMENT_BYTES = 4 * 1024 * 1024;
+
+  private Corpus() {}
+
+  /** {@code plain}, {@code html} or {@code nested} from the classpath; {@code attachment} is generated. */
+  public static byte[] message(String name) {
+    if ("attachment".equals(name)) {
+      return withAttachment(ATTACHMENT_BYTES);
+    }
+    try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".eml")) {
+      if (in == null) {
+        throw new IllegalArgumentException("No corpus message " + name);
+      }
+      return in.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** A text/html alternative followed by a base64 attachment of {@code size} random bytes. */
+  public static byte[] withAttachment(int size) {
+    byte[] attachment = new byte[size];
+    new Random(42).nextBytes(attachment);
+    String message = "From: sender@example.com\r\n"
+        + "To: x@tikrai.com\r\n"
+        + "Subject: Report with attachment\r\n"
+        + "MIME-Version: 1.0\r\n"
+        + "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+        + "\r\n"
+        + "--outer\r\n"
+        + "Content-Type: multipart/alternative; boundary=\"inner\"\r\n"
+        + "\r\n"
+        + "--inner\r\n"
+        + "Content-Type: text/plain; charset=utf-8\r\n"
+        + "\r\n"
+        + "See the attached report.\r\n"
+        + "--inner\r\n"
+        + "Content-Type: text/html; charset=utf-8\r\n"
+        + "\r\n"
+        + "<p>See the attached report.</p>\r\n"
+        + "--inner--\r\n"
+        + "--outer\r\n"
+        + "Content-Type: application/octet-stream; name=\"report.bin\"\r\n"
+        + "Content-Transfer-Encoding: base64\r\n"
+        + "Content-Disposition: attachment; filename=\"report.bin\"\r\n"
+        + "\r\n"
+        + Base64.getMimeEncoder().encodeToString(attachment) + "\r\n"
+        + "--outer--\r\n";
+    return message.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,98 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.bench.Corpus;
+import com.tikrai.mailreceiver.mime.ParsedMessage;
+import com.tikrai.mailreceiver.mime.StreamingMimeExtractor;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.codec.FormHttpMessageWriter;
+import org.springframework.util.MultiValueMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header flattening, form building and encoding of a single forward request, without any I/O,
+ * against writing the same request as JSON into a pooled buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardFormBenchmark {
+
+  @Param({"plain", "html", "nested"})
+  public String message;
+
+  private IncomingEmailPayload payload;
+  private List<String> recipients;
+  private String headers;
+  private final FormEncoder formEncoder = new FormEncoder();
+  private final NettyDataBufferFactory pooled = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+  @Setup
+  public void setUp() throws IOException {
+    ParsedMessage parsed = new StreamingMimeExtractor().extract(new ByteArrayInputStream(Corpus.message(message)));
+    recipients = List.of("x@tikrai.com", "y@tikrai.com");
+    payload = new IncomingEmailPayload("sender@example.com", recipients, parsed.subject(),
+        parsed.textBody(), parsed.htmlBody(), parsed.headers(), parsed.attachments(), null, null);
+    headers = ForwardClient.flattenHeaders(payload.headers());
+  }
+
+  @Benchmark
+  public String flattenHeaders() {
+    return ForwardClient.flattenHeaders(payload.headers());
+  }
+
+  @Benchmark
+  public MultiValueMap<String, String> formData() {
+    return ForwardClient.formData(payload, recipients, headers);
+  }
+
+  @Benchmark
+  public MultiValueMap<String, String> flattenAndBuildForm() {
+    return ForwardClient.formData(payload, recipients, ForwardClient.flattenHeaders(payload.headers()));
+  }
+
+  /** Everything the {@code form} format does before the bytes reach the connection. */
+  @Benchmark
+  public byte[] encodedForm() {
+    MultiValueMap<String, String> form = ForwardClient.formData(payload, recipients, ForwardClient.flattenHeaders(payload.headers()));
+    return formEncoder.serializeForm(form, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public int json() throws IOException {
+    DataBuffer buffer = JsonPayloadWriter.write(payload, recipients, null, pooled);
+    int size = buffer.readableByteCount();
+    DataBufferUtils.release(buffer);
+    return size;
+  }
+
+  private static final class FormEncoder extends FormHttpMessageWriter {
+    @Override
+    protected String serializeForm(MultiValueMap<String, String> formData, Charset charset) {
+      return super.serializeForm(formData, charset);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.tikrai.mailreceiver.mime;
+
+import com.tikrai.mailreceiver.bench.Corpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Body extraction as done on DATA, for both parsers over the sample corpus. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MimeExtractorBenchmark {
+
+  @Param({"plain", "html", "nested", "attachment"})
+  public String message;
+
+  @Param({"streaming", "legacy"})
+  public String parser;
+
+  private byte[] bytes;
+  private MimeExtractor extractor;
+
+  @Setup
+  public void setUp() {
+    bytes = Corpus.message(message);
+    extractor = "legacy".equals(parser) ? new LegacyMimeExtractor() : new StreamingMimeExtractor();
+  }
+
+  @Benchmark
+  public ParsedMessage extract() throws IOException {
+    return extractor.extract(new ByteArrayInputStream(bytes));
+  }
+}
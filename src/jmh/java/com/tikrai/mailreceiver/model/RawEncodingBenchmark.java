@@ -0,0 +1,53 @@
+package com.tikrai.mailreceiver.model;
+
+import com.tikrai.mailreceiver.bench.Corpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 of the raw message as sent in the {@code raw} form field: the streaming
+ * {@link RawMessage#toBase64()} against a plain one-shot encode of the same bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawEncodingBenchmark {
+
+  @Param({"16384", "1048576", "8388608"})
+  public int size;
+
+  private byte[] bytes;
+  private RawMessage raw;
+
+  @Setup
+  public void setUp() {
+    bytes = Corpus.withAttachment(size * 3 / 4);
+    raw = RawMessage.of(ByteBuffer.wrap(bytes));
+  }
+
+  @Benchmark
+  public String rawMessage() {
+    return raw.toBase64();
+  }
+
+  @Benchmark
+  public String oneShot() {
+    return Base64.getEncoder().encodeToString(bytes);
+  }
+}
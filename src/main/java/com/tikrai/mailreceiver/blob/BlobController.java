@@ -0,0 +1,47 @@
+package com.tikrai.mailreceiver.blob;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.InputStream;
+
+/** Serves stored attachments to the downstream, which gets only their hashes with the message. */
+@RestController
+public class BlobController {
+
+  private final BlobStore store;
+
+  public BlobController(BlobStore store) {
+    this.store = store;
+  }
+
+  @GetMapping("/api/blobs/{sha256}")
+  public Mono<ResponseEntity<Flux<DataBuffer>>> blob(@PathVariable String sha256) {
+    if (!store.isEnabled()) {
+      return Mono.just(ResponseEntity.notFound().build());
+    }
+    // File reads block; keep them off the event loop
+    return Mono.fromCallable(() -> store.open(sha256))
+        .subscribeOn(Schedulers.boundedElastic())
+        .map(in -> ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+            // The content can never change under the same hash
+            .header("Cache-Control", "public, max-age=31536000, immutable")
+            .body(read(in)))
+        .defaultIfEmpty(ResponseEntity.notFound().build());
+  }
+
+  private static Flux<DataBuffer> read(InputStream in) {
+    return DataBufferUtils.readInputStream(() -> in, DefaultDataBufferFactory.sharedInstance, 64 * 1024)
+        .subscribeOn(Schedulers.boundedElastic());
+  }
+}
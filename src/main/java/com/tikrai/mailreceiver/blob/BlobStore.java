@@ -0,0 +1,20 @@
+package com.tikrai.mailreceiver.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Content-addressed storage for attachment bytes: a blob is named by the SHA-256 of its content. */
+public interface BlobStore {
+
+  /** SHA-256 (lower-case hex) and length of a stored blob. */
+  record Blob(String sha256, long size) {}
+
+  /** False when attachments are not stored; nothing is found then either. */
+  boolean isEnabled();
+
+  /** Stores everything {@code content} yields; content that is already stored is kept once. */
+  Blob put(InputStream content) throws IOException;
+
+  /** Opens a stored blob, or returns null when there is none with that hash. */
+  InputStream open(String sha256) throws IOException;
+}
@@ -0,0 +1,169 @@
+package com.tikrai.mailreceiver.blob;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * {@link BlobStore} in a local directory ({@code app.blob.dir}), laid out as {@code ab/cd/abcd...}.
+ *
+ * <p>Content is streamed to a temp file while it is hashed, then moved into place; when the blob
+ * already exists the temp file is dropped and the blob's modification time refreshed. Blobs not
+ * stored again for {@code app.blob.retentionHours} are deleted by an hourly sweep, so a newsletter
+ * attachment that keeps coming back stays while one-offs expire.
+ *
+ * <p>The downstream may fetch a blob from any replica, so with more than one the directory must be a
+ * volume they share.
+ */
+@Component
+public class LocalBlobStore implements BlobStore, AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalBlobStore.class);
+
+  private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
+
+  private final boolean enabled;
+  private final Path dir;
+  private final Path tmp;
+  private final long retentionMs;
+  private final ScheduledExecutorService sweeper;
+
+  public LocalBlobStore(
+      @Value("${app.blob.enabled:false}") boolean enabled,
+      @Value("${app.blob.dir:blobs}") String dir,
+      @Value("${app.blob.retentionHours:168}") long retentionHours
+  ) throws IOException {
+    this.enabled = enabled;
+    this.dir = Path.of(dir).toAbsolutePath();
+    this.tmp = this.dir.resolve("tmp");
+    this.retentionMs = TimeUnit.HOURS.toMillis(retentionHours);
+    if (!enabled) {
+      this.sweeper = null;
+      return;
+    }
+    Files.createDirectories(tmp);
+    this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "blob-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+    if (retentionMs > 0) {
+      sweeper.scheduleWithFixedDelay(this::sweep, 1, 60, TimeUnit.MINUTES);
+    }
+    log.info("Attachment blob store - dir: {}, retentionHours: {}", this.dir, retentionHours);
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public Blob put(InputStream content) throws IOException {
+    Path temp = Files.createTempFile(tmp, "blob-", ".tmp");
+    try {
+      MessageDigest digest = sha256();
+      long size;
+      try (OutputStream out = new DigestOutputStream(Files.newOutputStream(temp), digest)) {
+        size = content.transferTo(out);
+      }
+      String hash = HexFormat.of().formatHex(digest.digest());
+      Path target = path(hash);
+      if (!Files.exists(target) || !touch(target)) {
+        Files.createDirectories(target.getParent());
+        try {
+          Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+          // Stored concurrently by another session: same bytes
+        }
+      }
+      return new Blob(hash, size);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  @Override
+  public InputStream open(String sha256) throws IOException {
+    if (!SHA256_HEX.matcher(sha256).matches()) {
+      return null;
+    }
+    try {
+      return Files.newInputStream(path(sha256));
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /** Refreshes a stored blob's modification time; false when the sweep deleted it after the check. */
+  private static boolean touch(Path blob) throws IOException {
+    try {
+      Files.setLastModifiedTime(blob, FileTime.from(Instant.now()));
+      return true;
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  private Path path(String hash) {
+    return dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+  }
+
+  void sweep() {
+    long cutoff = System.currentTimeMillis() - retentionMs;
+    int deleted = 0;
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+        try {
+          if (Files.getLastModifiedTime(file).toMillis() < cutoff && Files.deleteIfExists(file)) {
+            deleted++;
+          }
+        } catch (IOException e) {
+          log.debug("Failed to expire blob {}: {}", file, e.getMessage());
+        }
+      }
+    } catch (IOException | UncheckedIOException e) {
+      log.warn("Blob sweep failed: {}", e.getMessage());
+    }
+    if (deleted > 0) {
+      log.info("Expired {} blobs older than {} h", deleted, TimeUnit.MILLISECONDS.toHours(retentionMs));
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+    }
+  }
+}
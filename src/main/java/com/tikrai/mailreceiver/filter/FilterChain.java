@@ -0,0 +1,73 @@
+package com.tikrai.mailreceiver.filter;
+
+import com.tikrai.mailreceiver.mime.HeaderBlock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Runs every {@link MessageFilter} bean in order and stops at the first verdict that is not PASS.
+ * Each filter's time per stage is recorded as {@code filter.evaluation} (tags {@code filter},
+ * {@code stage}) and each match as {@code filter.rule.hits} (tags {@code rule}, {@code action}).
+ */
+@Component
+public class FilterChain {
+
+  private static final Logger log = LoggerFactory.getLogger(FilterChain.class);
+
+  private final List<MessageFilter> filters;
+  private final MeterRegistry registry;
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+  private final Map<FilterVerdict, Counter> hits = new ConcurrentHashMap<>();
+
+  public FilterChain(List<MessageFilter> filters, MeterRegistry registry) {
+    this.filters = List.copyOf(filters);
+    this.registry = registry;
+    log.info("Message filters: {}", filters.stream().map(f -> f.getClass().getSimpleName()).toList());
+  }
+
+  public FilterVerdict envelope(InetAddress ip, String sender) {
+    return run("envelope", f -> f.envelope(ip, sender));
+  }
+
+  public FilterVerdict headers(HeaderBlock headers) {
+    return run("headers", f -> f.headers(headers));
+  }
+
+  private FilterVerdict run(String stage, Function<MessageFilter, FilterVerdict> check) {
+    for (MessageFilter filter : filters) {
+      long start = System.nanoTime();
+      FilterVerdict verdict = check.apply(filter);
+      timer(filter, stage).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      if (verdict != null && !verdict.passed()) {
+        hits.computeIfAbsent(verdict, v -> Counter.builder("filter.rule.hits")
+            .description("Messages refused or dropped by a filter rule")
+            .tag("rule", String.valueOf(v.rule()))
+            .tag("action", v.action().name().toLowerCase(Locale.ROOT))
+            .register(registry)).increment();
+        return verdict;
+      }
+    }
+    return FilterVerdict.PASS;
+  }
+
+  private Timer timer(MessageFilter filter, String stage) {
+    String name = filter.getClass().getSimpleName();
+    return timers.computeIfAbsent(name + "/" + stage, k -> Timer.builder("filter.evaluation")
+        .description("Time spent in a message filter")
+        .tag("filter", name)
+        .tag("stage", stage)
+        .register(registry));
+  }
+}
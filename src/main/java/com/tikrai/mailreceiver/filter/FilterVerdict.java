@@ -0,0 +1,16 @@
+package com.tikrai.mailreceiver.filter;
+
+/**
+ * Outcome of a {@link MessageFilter}: let the message through, refuse it with a 5xx, or accept it
+ * with 250 and discard it without forwarding. {@code rule} names what matched, for logs and metrics.
+ */
+public record FilterVerdict(Action action, String rule) {
+
+  public enum Action { PASS, REJECT, DROP }
+
+  public static final FilterVerdict PASS = new FilterVerdict(Action.PASS, null);
+
+  public boolean passed() {
+    return action == Action.PASS;
+  }
+}
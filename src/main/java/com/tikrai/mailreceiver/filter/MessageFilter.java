@@ -0,0 +1,23 @@
+package com.tikrai.mailreceiver.filter;
+
+import com.tikrai.mailreceiver.mime.HeaderBlock;
+
+import java.net.InetAddress;
+
+/**
+ * A pre-acceptance check, run by {@link FilterChain} for every transaction. Beans of this type are
+ * picked up automatically and run in {@code @Order}, so cheap filters should come first. Both
+ * stages are called on the SMTP session thread and must not block on I/O.
+ */
+public interface MessageFilter {
+
+  /** At MAIL FROM, before any recipient or data; {@code ip} may be null when unknown. */
+  default FilterVerdict envelope(InetAddress ip, String sender) {
+    return FilterVerdict.PASS;
+  }
+
+  /** At the start of DATA, with only the header section read and nothing parsed yet. */
+  default FilterVerdict headers(HeaderBlock headers) {
+    return FilterVerdict.PASS;
+  }
+}
@@ -0,0 +1,137 @@
+package com.tikrai.mailreceiver.filter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Case-insensitive substring search for many patterns in one pass (Aho-Corasick): the cost is
+ * linear in the text whatever the number of patterns. Immutable once compiled.
+ */
+final class PatternMatcher {
+
+  static final PatternMatcher EMPTY = compile(List.of());
+
+  // Per state: sorted transition characters and their target states
+  private final char[][] keys;
+  private final int[][] targets;
+  private final int[] fail;
+  // Lowest pattern index ending in this state or in one reachable through its failure links, -1 for none
+  private final int[] match;
+
+  private PatternMatcher(char[][] keys, int[][] targets, int[] fail, int[] match) {
+    this.keys = keys;
+    this.targets = targets;
+    this.fail = fail;
+    this.match = match;
+  }
+
+  /** Empty patterns never match. */
+  static PatternMatcher compile(List<String> patterns) {
+    List<Map<Character, Integer>> trie = new ArrayList<>();
+    List<Integer> ends = new ArrayList<>();
+    trie.add(new HashMap<>());
+    ends.add(-1);
+    for (int p = 0; p < patterns.size(); p++) {
+      String pattern = patterns.get(p);
+      if (pattern.isEmpty()) {
+        continue;
+      }
+      int state = 0;
+      for (int i = 0; i < pattern.length(); i++) {
+        char c = Character.toLowerCase(pattern.charAt(i));
+        Integer next = trie.get(state).get(c);
+        if (next == null) {
+          next = trie.size();
+          trie.add(new HashMap<>());
+          ends.add(-1);
+          trie.get(state).put(c, next);
+        }
+        state = next;
+      }
+      if (ends.get(state) < 0) {
+        ends.set(state, p);
+      }
+    }
+
+    int n = trie.size();
+    int[] fail = new int[n];
+    int[] match = new int[n];
+    for (int s = 0; s < n; s++) {
+      match[s] = ends.get(s);
+    }
+    // Breadth-first, so a state's failure target is final before its children are linked
+    ArrayDeque<Integer> queue = new ArrayDeque<>(trie.get(0).values());
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+        int child = edge.getValue();
+        queue.add(child);
+        int f = fail[state];
+        Integer target = trie.get(f).get(edge.getKey());
+        while (target == null && f != 0) {
+          f = fail[f];
+          target = trie.get(f).get(edge.getKey());
+        }
+        fail[child] = target != null && target != child ? target : 0;
+        int inherited = match[fail[child]];
+        if (inherited >= 0 && (match[child] < 0 || inherited < match[child])) {
+          match[child] = inherited;
+        }
+      }
+    }
+
+    char[][] keys = new char[n][];
+    int[][] targets = new int[n][];
+    for (int s = 0; s < n; s++) {
+      Map<Character, Integer> edges = trie.get(s);
+      char[] k = new char[edges.size()];
+      int i = 0;
+      for (char c : edges.keySet()) {
+        k[i++] = c;
+      }
+      Arrays.sort(k);
+      int[] t = new int[k.length];
+      for (i = 0; i < k.length; i++) {
+        t[i] = edges.get(k[i]);
+      }
+      keys[s] = k;
+      targets[s] = t;
+    }
+    return new PatternMatcher(keys, targets, fail, match);
+  }
+
+  /** Index of the first-listed pattern that occurs in {@code text}, -1 when none does. */
+  int find(CharSequence text) {
+    if (keys[0].length == 0) {
+      return -1;
+    }
+    int state = 0;
+    int best = -1;
+    for (int i = 0; i < text.length(); i++) {
+      char c = Character.toLowerCase(text.charAt(i));
+      while (true) {
+        int k = Arrays.binarySearch(keys[state], c);
+        if (k >= 0) {
+          state = targets[state][k];
+          break;
+        }
+        if (state == 0) {
+          break;
+        }
+        state = fail[state];
+      }
+      int m = match[state];
+      if (m >= 0 && (best < 0 || m < best)) {
+        best = m;
+        if (best == 0) {
+          return 0;
+        }
+      }
+    }
+    return best;
+  }
+}
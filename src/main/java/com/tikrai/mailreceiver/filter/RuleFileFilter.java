@@ -0,0 +1,271 @@
+package com.tikrai.mailreceiver.filter;
+
+import com.tikrai.mailreceiver.filter.FilterVerdict.Action;
+import com.tikrai.mailreceiver.mime.HeaderBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocklist rules from {@code app.filter.rulesFile}, re-read when the file changes; a file that
+ * fails to load keeps the previous rules. One rule per line, {@code #} starts a comment:
+ *
+ * <pre>
+ * # name        action  match          value
+ * bad-net       reject  ip             203.0.113.0/24
+ * bulk-sender   drop    sender         news@bulk.example
+ * spam-domain   reject  sender-domain  spam.example
+ * mass-mailer   reject  header         X-Mailer: BulkBlaster
+ * has-campaign  drop    header         X-Campaign-Id: *
+ * pills         reject  subject        cheap pills
+ * tracker       drop    headers        tracking.example/pixel
+ * </pre>
+ *
+ * {@code ip}, {@code sender} and {@code sender-domain} (which covers subdomains) are checked at
+ * MAIL FROM with hash lookups. The rest run at the start of DATA on the header section only:
+ * {@code header} compares a field's whole value ({@code *}: field present), then {@code subject}
+ * (decoded) and {@code headers} (every field) look for substrings, each kind compiled into one
+ * {@link PatternMatcher}. All comparisons ignore case; within a kind, the first listed rule wins.
+ */
+@Component
+@Order(0)
+public class RuleFileFilter implements MessageFilter, AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(RuleFileFilter.class);
+
+  private record Rule(String name, Action action) {
+    FilterVerdict verdict() {
+      return new FilterVerdict(action, name);
+    }
+  }
+
+  private record Network(byte[] address, int prefix, Rule rule) {
+    boolean contains(byte[] ip) {
+      if (ip.length != address.length) {
+        return false;
+      }
+      int full = prefix / 8;
+      for (int i = 0; i < full; i++) {
+        if (ip[i] != address[i]) {
+          return false;
+        }
+      }
+      int rest = prefix % 8;
+      return rest == 0 || ((ip[full] ^ address[full]) & (0xff << (8 - rest)) & 0xff) == 0;
+    }
+  }
+
+  private record HeaderRule(String field, String value, Rule rule) {}
+
+  /** One loaded rules file, swapped as a whole on reload. */
+  private record Rules(
+      int count,
+      Map<String, Rule> senders,
+      Map<String, Rule> senderDomains,
+      Map<InetAddress, Rule> addresses,
+      List<Network> networks,
+      List<HeaderRule> headerValues,
+      PatternMatcher subjectPatterns,
+      List<Rule> subjectRules,
+      PatternMatcher headerPatterns,
+      List<Rule> headerRules
+  ) {
+    static final Rules NONE = new Rules(0, Map.of(), Map.of(), Map.of(), List.of(), List.of(),
+        PatternMatcher.EMPTY, List.of(), PatternMatcher.EMPTY, List.of());
+  }
+
+  private final Path rulesFile;
+  private final ScheduledExecutorService reloader;
+  private volatile Rules rules = Rules.NONE;
+  private volatile FileTime rulesModified;
+
+  public RuleFileFilter(
+      @Value("${app.filter.rulesFile:}") String rulesFile,
+      @Value("${app.filter.reloadMs:10000}") long reloadMs
+  ) throws IOException {
+    this.rulesFile = rulesFile.isBlank() ? null : Path.of(rulesFile);
+    if (this.rulesFile != null) {
+      reload();
+      this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "filter-reload");
+        t.setDaemon(true);
+        return t;
+      });
+      reloader.scheduleWithFixedDelay(this::reloadIfChanged, reloadMs, reloadMs, TimeUnit.MILLISECONDS);
+    } else {
+      this.reloader = null;
+    }
+    log.info("Filter rules - file: {}", this.rulesFile != null ? this.rulesFile + " (" + rules.count() + " rules)" : "none");
+  }
+
+  @Override
+  public FilterVerdict envelope(InetAddress ip, String sender) {
+    Rules r = rules;
+    String address = sender != null ? sender.trim().toLowerCase(Locale.ROOT) : "";
+    Rule rule = r.senders().get(address);
+    if (rule == null && !r.senderDomains().isEmpty()) {
+      // a.b.example, then b.example, then example
+      for (int dot = address.lastIndexOf('@'); dot >= 0 && rule == null; dot = address.indexOf('.', dot + 1)) {
+        rule = r.senderDomains().get(address.substring(dot + 1));
+      }
+    }
+    if (rule == null && ip != null) {
+      rule = r.addresses().get(ip);
+      if (rule == null && !r.networks().isEmpty()) {
+        byte[] bytes = ip.getAddress();
+        for (Network network : r.networks()) {
+          if (network.contains(bytes)) {
+            rule = network.rule();
+            break;
+          }
+        }
+      }
+    }
+    return rule != null ? rule.verdict() : FilterVerdict.PASS;
+  }
+
+  @Override
+  public FilterVerdict headers(HeaderBlock headers) {
+    Rules r = rules;
+    for (HeaderRule header : r.headerValues()) {
+      for (String value : headers.values(header.field())) {
+        if (header.value().equals("*") || value.trim().equalsIgnoreCase(header.value())) {
+          return header.rule().verdict();
+        }
+      }
+    }
+    int hit = r.subjectPatterns().find(headers.subject());
+    if (hit >= 0) {
+      return r.subjectRules().get(hit).verdict();
+    }
+    hit = r.headerPatterns().find(headers.text());
+    if (hit >= 0) {
+      return r.headerRules().get(hit).verdict();
+    }
+    return FilterVerdict.PASS;
+  }
+
+  private void reloadIfChanged() {
+    try {
+      if (!Files.getLastModifiedTime(rulesFile).equals(rulesModified)) {
+        reload();
+        log.info("Filter rules reloaded - {} rules", rules.count());
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to reload filter rules {}, keeping the previous ones: {}", rulesFile, e.getMessage());
+    }
+  }
+
+  private void reload() throws IOException {
+    FileTime modified = Files.getLastModifiedTime(rulesFile);
+    Map<String, Rule> senders = new HashMap<>();
+    Map<String, Rule> senderDomains = new HashMap<>();
+    Map<InetAddress, Rule> addresses = new HashMap<>();
+    List<Network> networks = new ArrayList<>();
+    List<HeaderRule> headerValues = new ArrayList<>();
+    List<String> subjectPatterns = new ArrayList<>();
+    List<Rule> subjectRules = new ArrayList<>();
+    List<String> headerPatterns = new ArrayList<>();
+    List<Rule> headerRules = new ArrayList<>();
+
+    int count = 0;
+    int lineNumber = 0;
+    for (String line : Files.readAllLines(rulesFile, StandardCharsets.UTF_8)) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] parts = line.split("\\s+", 4);
+      if (parts.length < 4) {
+        throw new IllegalArgumentException("line " + lineNumber + ": expected <name> <action> <match> <value>");
+      }
+      Rule rule = new Rule(parts[0], action(parts[1], lineNumber));
+      String value = parts[3].trim();
+      String lower = value.toLowerCase(Locale.ROOT);
+      switch (parts[2].toLowerCase(Locale.ROOT)) {
+        case "ip" -> {
+          int slash = value.indexOf('/');
+          InetAddress address = address(slash < 0 ? value : value.substring(0, slash), lineNumber);
+          if (slash < 0) {
+            addresses.putIfAbsent(address, rule);
+          } else {
+            int prefix = Integer.parseInt(value.substring(slash + 1));
+            if (prefix < 0 || prefix > address.getAddress().length * 8) {
+              throw new IllegalArgumentException("line " + lineNumber + ": bad prefix length in " + value);
+            }
+            networks.add(new Network(address.getAddress(), prefix, rule));
+          }
+        }
+        case "sender" -> senders.putIfAbsent(lower, rule);
+        case "sender-domain" -> senderDomains.putIfAbsent(lower.startsWith("@") ? lower.substring(1) : lower, rule);
+        case "header" -> {
+          int colon = value.indexOf(':');
+          if (colon <= 0) {
+            throw new IllegalArgumentException("line " + lineNumber + ": header rule needs <Name>: <value>");
+          }
+          headerValues.add(new HeaderRule(value.substring(0, colon).trim(), value.substring(colon + 1).trim(), rule));
+        }
+        case "subject" -> {
+          subjectPatterns.add(value);
+          subjectRules.add(rule);
+        }
+        case "headers" -> {
+          headerPatterns.add(value);
+          headerRules.add(rule);
+        }
+        default -> throw new IllegalArgumentException("line " + lineNumber + ": unknown match " + parts[2]);
+      }
+      count++;
+    }
+    rules = new Rules(count, Map.copyOf(senders), Map.copyOf(senderDomains), Map.copyOf(addresses),
+        List.copyOf(networks), List.copyOf(headerValues), PatternMatcher.compile(subjectPatterns),
+        List.copyOf(subjectRules), PatternMatcher.compile(headerPatterns), List.copyOf(headerRules));
+    rulesModified = modified;
+  }
+
+  private static Action action(String action, int lineNumber) {
+    return switch (action.toLowerCase(Locale.ROOT)) {
+      case "reject" -> Action.REJECT;
+      case "drop" -> Action.DROP;
+      default -> throw new IllegalArgumentException("line " + lineNumber + ": action must be reject or drop");
+    };
+  }
+
+  // Literal addresses only: getByName would resolve a host name
+  private static InetAddress address(String literal, int lineNumber) {
+    if (!literal.matches("[0-9a-fA-F:.]+")) {
+      throw new IllegalArgumentException("line " + lineNumber + ": not an IP address: " + literal);
+    }
+    try {
+      return InetAddress.getByName(literal);
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("line " + lineNumber + ": not an IP address: " + literal);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (reloader != null) {
+      reloader.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.tikrai.mailreceiver.forward;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit for downstream requests, adjusted from what the requests observe (AIMD).
+ *
+ * <p>A completed request raises the limit by {@code 1/limit}, about +1 per round of requests, but
+ * only while the limit is actually in use. A drop multiplies it by {@code BACKOFF}, at most once per
+ * round. A drop is an overload error (timeout, 429, 5xx) or a short-term average latency above
+ * {@code tolerance} times the long-term one, which is how queueing in the backend shows up before
+ * it starts failing.
+ */
+final class AdaptiveLimit {
+
+  private static final double BACKOFF = 0.9;
+  private static final double SHORT_ALPHA = 0.1;
+  private static final double LONG_ALPHA = 0.005;
+
+  private final int min;
+  private final int max;
+  private final double tolerance;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private double limit;
+  private double shortRtt;
+  private double longRtt;
+  private int sinceDrop;
+  private volatile int current;
+
+  AdaptiveLimit(int initial, int min, int max, double tolerance) {
+    this.min = Math.max(1, min);
+    this.max = Math.max(this.min, max);
+    this.tolerance = tolerance;
+    this.limit = Math.clamp(initial, this.min, this.max);
+    this.current = (int) limit;
+  }
+
+  int get() {
+    return current;
+  }
+
+  /** Records one finished request that took {@code rttNanos} while {@code inFlight} requests were out. */
+  void onSample(long rttNanos, boolean overloaded, int inFlight) {
+    lock.lock();
+    try {
+      if (longRtt == 0) {
+        shortRtt = rttNanos;
+        longRtt = rttNanos;
+      } else {
+        shortRtt += SHORT_ALPHA * (rttNanos - shortRtt);
+        longRtt += LONG_ALPHA * (rttNanos - longRtt);
+      }
+      sinceDrop++;
+      boolean queueing = tolerance > 0 && shortRtt > tolerance * longRtt;
+      if ((overloaded || queueing) && sinceDrop >= limit) {
+        limit = Math.max(min, limit * BACKOFF);
+        sinceDrop = 0;
+      } else if (!overloaded && !queueing && inFlight * 2 >= limit) {
+        limit = Math.min(max, limit + 1 / limit);
+      }
+      current = (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects payloads and posts them to the downstream as one NDJSON request.
+ *
+ * <p>A batch is flushed when it reaches {@code maxItems} items or {@code maxBytes} bytes, or when its
+ * first item has waited {@code lingerMs}. The downstream reports success per item; only the items it
+ * rejected (or left out of the response) are put into a later batch, up to {@code maxAttempts} times,
+ * after a jittered exponential backoff ({@code app.forward.retry.initialBackoffMs..maxBackoffMs}).
+ * While the circuit breaker is open items fail at once instead, and items whose caller stopped
+ * waiting are neither sent nor retried.
+ *
+ * <p>An item's id is the same key a single request sends as {@code Idempotency-Key}, so the
+ * downstream can drop an item it already processed when the sender retries the message.
+ */
+@Component
+public class BatchForwarder implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(BatchForwarder.class);
+
+  private static final class Item {
+    final String id;
+    final byte[] line;
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+    int attempt;
+
+    Item(String id, byte[] line) {
+      this.id = id;
+      this.line = line;
+    }
+  }
+
+  private final ForwardClient forwardClient;
+  private final ObjectMapper mapper;
+  private final boolean enabled;
+  private final int maxItems;
+  private final int maxBytes;
+  private final long lingerMs;
+  private final int maxPending;
+  private final int maxAttempts;
+  private final long initialBackoffMs;
+  private final long maxBackoffMs;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final ScheduledExecutorService scheduler;
+  private List<Item> current = new ArrayList<>();
+  private int currentBytes;
+  private ScheduledFuture<?> lingerTimer;
+
+  public BatchForwarder(
+      ForwardClient forwardClient,
+      ObjectMapper mapper,
+      @Value("${app.forward.batch.enabled:false}") boolean enabled,
+      @Value("${app.forward.batch.maxItems:100}") int maxItems,
+      @Value("${app.forward.batch.maxBytes:1048576}") int maxBytes,
+      @Value("${app.forward.batch.lingerMs:50}") long lingerMs,
+      @Value("${app.forward.batch.maxAttempts:3}") int maxAttempts,
+      @Value("${app.forward.retry.initialBackoffMs:200}") long initialBackoffMs,
+      @Value("${app.forward.retry.maxBackoffMs:2000}") long maxBackoffMs,
+      @Value("${app.forward.queueCapacity:256}") int maxPending
+  ) {
+    this.forwardClient = forwardClient;
+    this.mapper = mapper;
+    this.enabled = enabled;
+    this.maxItems = maxItems;
+    this.maxBytes = maxBytes;
+    this.lingerMs = lingerMs;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMs = initialBackoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+    this.maxPending = maxPending;
+    this.scheduler = enabled
+        ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "forward-batch-linger");
+            t.setDaemon(true);
+            return t;
+          })
+        : null;
+    if (enabled) {
+      log.info("Batch forwarding enabled - maxItems: {}, maxBytes: {}, lingerMs: {}, maxAttempts: {}",
+          maxItems, maxBytes, lingerMs, maxAttempts);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Items submitted and not yet accepted or failed. */
+  public int pending() {
+    return pending.get();
+  }
+
+  /**
+   * Adds the payload to the current batch. The future completes once the downstream accepted this item.
+   *
+   * @throws ForwardQueueFullException when {@code app.forward.queueCapacity} items are already pending
+   */
+  public CompletableFuture<Void> submit(IncomingEmailPayload payload) {
+    if (pending.incrementAndGet() > maxPending) {
+      pending.decrementAndGet();
+      throw new ForwardQueueFullException("Batch queue full (" + maxPending + " items pending)");
+    }
+    Item item;
+    try {
+      String id = itemId(payload);
+      item = new Item(id, mapper.writeValueAsBytes(toBatchItem(id, payload)));
+    } catch (JsonProcessingException e) {
+      pending.decrementAndGet();
+      return CompletableFuture.failedFuture(e);
+    }
+    item.result.whenComplete((ok, error) -> pending.decrementAndGet());
+    add(item);
+    return item.result;
+  }
+
+  /** Stable across SMTP retries when the payload is keyed, so the downstream can deduplicate. */
+  private static String itemId(IncomingEmailPayload payload) {
+    if (payload.messageKey() == null) {
+      return UUID.randomUUID().toString();
+    }
+    return IdempotencyCache.requestKey(payload.messageKey(), payload.rcptTo() != null ? payload.rcptTo() : List.of());
+  }
+
+  private static BatchItem toBatchItem(String id, IncomingEmailPayload payload) {
+    List<String> rcptTo = payload.rcptTo() != null ? payload.rcptTo() : List.of();
+    return new BatchItem(
+        id,
+        rcptTo.isEmpty() ? "" : rcptTo.get(0),
+        rcptTo,
+        payload.mailFrom() != null ? payload.mailFrom() : "",
+        payload.subject() != null ? payload.subject() : "",
+        payload.textBody() != null ? payload.textBody() : "",
+        payload.htmlBody() != null ? payload.htmlBody() : "",
+        payload.headers() != null ? payload.headers() : Map.of(),
+        payload.attachments()
+    );
+  }
+
+  private void add(Item item) {
+    List<Item> full = null;
+    lock.lock();
+    try {
+      current.add(item);
+      currentBytes += item.line.length + 1;
+      // After close() no linger timer runs, so a retry that comes due then is sent at once
+      if (current.size() >= maxItems || currentBytes >= maxBytes || scheduler.isShutdown()) {
+        full = takeBatch();
+      } else if (lingerTimer == null) {
+        lingerTimer = scheduler.schedule(this::flushLingering, lingerMs, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (full != null) {
+      send(full);
+    }
+  }
+
+  private void flushLingering() {
+    List<Item> batch;
+    lock.lock();
+    try {
+      batch = takeBatch();
+    } finally {
+      lock.unlock();
+    }
+    if (!batch.isEmpty()) {
+      send(batch);
+    }
+  }
+
+  // Called with the lock held
+  private List<Item> takeBatch() {
+    if (lingerTimer != null) {
+      lingerTimer.cancel(false);
+      lingerTimer = null;
+    }
+    List<Item> batch = current;
+    current = new ArrayList<>();
+    currentBytes = 0;
+    return batch;
+  }
+
+  private void send(List<Item> taken) {
+    // A caller that gave up already answered 451; the sender will retry, so do not deliver this copy
+    List<Item> batch = taken.stream().filter(item -> !item.result.isDone()).toList();
+    if (batch.isEmpty()) {
+      return;
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream(batch.stream().mapToInt(i -> i.line.length + 1).sum());
+    for (Item item : batch) {
+      body.writeBytes(item.line);
+      body.write('\n');
+    }
+    forwardClient.sendBatch(body.toByteArray(), batch.size())
+        .subscribe(results -> complete(batch, results), error -> failAll(batch, error));
+  }
+
+  private void complete(List<Item> batch, List<BatchItemResult> results) {
+    Map<String, BatchItemResult> byId = new HashMap<>();
+    for (BatchItemResult r : results) {
+      if (r != null && r.id() != null) {
+        byId.put(r.id(), r);
+      }
+    }
+    int failed = 0;
+    for (Item item : batch) {
+      BatchItemResult r = byId.get(item.id);
+      if (r != null && r.accepted()) {
+        item.result.complete(null);
+      } else {
+        failed++;
+        retryOrFail(item, new IllegalStateException(r == null ? "missing from batch response" : r.error()));
+      }
+    }
+    if (failed > 0) {
+      log.warn("Batch partially rejected - items: {}, failed: {}", batch.size(), failed);
+    }
+  }
+
+  private void failAll(List<Item> batch, Throwable error) {
+    for (Item item : batch) {
+      retryOrFail(item, error);
+    }
+  }
+
+  private void retryOrFail(Item item, Throwable error) {
+    if (item.result.isDone()) {
+      return;
+    }
+    if (error instanceof CircuitOpenException) {
+      // Nothing was sent; report busy now rather than spend the attempts while the circuit is open
+      item.result.completeExceptionally(error);
+      return;
+    }
+    if (++item.attempt < maxAttempts) {
+      try {
+        scheduler.schedule(() -> add(item), backoffMs(item.attempt), TimeUnit.MILLISECONDS);
+        return;
+      } catch (RejectedExecutionException e) {
+        // Shutting down
+      }
+    }
+    item.result.completeExceptionally(new IllegalStateException(
+        "Batch item " + item.id + " not accepted after " + item.attempt + " attempts: " + error.getMessage()));
+  }
+
+  /** Exponential in the attempt, capped at {@code maxBackoffMs}, with up to 50% jitter. */
+  private long backoffMs(int attempt) {
+    long delay = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 20));
+    return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  @Override
+  public void close() {
+    if (!enabled) {
+      return;
+    }
+    flushLingering();
+    scheduler.shutdown();
+  }
+}
@@ -0,0 +1,19 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.model.AttachmentRef;
+
+import java.util.List;
+import java.util.Map;
+
+/** One line of a batched NDJSON request; carries the same fields as the single-message form post. */
+public record BatchItem(
+    String id,
+    String to,
+    List<String> rcptTo,
+    String from,
+    String subject,
+    String text,
+    String html,
+    Map<String, List<String>> headers,
+    List<AttachmentRef> attachments
+) {}
@@ -0,0 +1,8 @@
+package com.tikrai.mailreceiver.forward;
+
+/** Per-item outcome reported by the downstream batch endpoint. Items missing from the response count as failed. */
+public record BatchItemResult(
+    String id,
+    boolean accepted,
+    String error
+) {}
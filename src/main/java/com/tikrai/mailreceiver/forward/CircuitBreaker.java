@@ -0,0 +1,88 @@
+package com.tikrai.mailreceiver.forward;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fails downstream calls fast while the backend looks down. Opens after {@code failureThreshold}
+ * consecutive failures; once {@code openMs} has passed a single trial call is let through
+ * (half-open), and its outcome either closes the breaker or opens it for another period.
+ * A threshold of 0 disables the breaker.
+ */
+final class CircuitBreaker {
+
+  private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+  private final AtomicInteger failures = new AtomicInteger();
+  private volatile long openedAt;
+
+  CircuitBreaker(int failureThreshold, long openMs) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+  }
+
+  State state() {
+    return state.get();
+  }
+
+  /**
+   * The state a new call runs in: CLOSED lets it through, HALF_OPEN makes it the trial call (only the
+   * first caller after {@code openMs} gets it) and OPEN means it must fail fast.
+   */
+  State acquire() {
+    State current = state.get();
+    if (current == State.CLOSED) {
+      return State.CLOSED;
+    }
+    if (current == State.OPEN
+        && System.nanoTime() - openedAt >= openNanos
+        && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+      return State.HALF_OPEN;
+    }
+    return State.OPEN;
+  }
+
+  void onSuccess() {
+    failures.set(0);
+    if (state.get() != State.CLOSED && state.getAndSet(State.CLOSED) != State.CLOSED) {
+      log.info("Forward circuit closed - downstream is answering again");
+    }
+  }
+
+  void onFailure() {
+    if (failureThreshold <= 0) {
+      return;
+    }
+    if (state.get() == State.HALF_OPEN) {
+      open(System.nanoTime());
+      return;
+    }
+    int count = failures.incrementAndGet();
+    if (count >= failureThreshold && state.get() == State.CLOSED) {
+      open(System.nanoTime());
+      log.warn("Forward circuit opened after {} consecutive failures, failing fast for {} ms",
+          count, TimeUnit.NANOSECONDS.toMillis(openNanos));
+    }
+  }
+
+  /** The trial call was abandoned, which tells nothing; let the next caller try right away. */
+  void onCancel() {
+    if (state.get() == State.HALF_OPEN) {
+      open(System.nanoTime() - openNanos);
+    }
+  }
+
+  private void open(long at) {
+    openedAt = at;
+    state.set(State.OPEN);
+  }
+}
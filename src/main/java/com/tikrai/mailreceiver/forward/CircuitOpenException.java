@@ -0,0 +1,11 @@
+package com.tikrai.mailreceiver.forward;
+
+/** Thrown instead of calling the downstream while the circuit breaker is open; nothing was sent. */
+public class CircuitOpenException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public CircuitOpenException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,55 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/** Outcome of forwarding one message, per recipient. */
+public record DeliveryReport(List<String> delivered, Map<String, Throwable> failed) {
+
+  /** Builds the report once every result is done; {@code results.get(i)} belongs to {@code parts.get(i)}. */
+  static DeliveryReport of(List<IncomingEmailPayload> parts, List<CompletableFuture<Void>> results) {
+    List<String> delivered = new ArrayList<>();
+    Map<String, Throwable> failed = new LinkedHashMap<>();
+    for (int i = 0; i < parts.size(); i++) {
+      Throwable error = results.get(i).handle((ok, e) -> e).join();
+      if (error instanceof CompletionException && error.getCause() != null) {
+        error = error.getCause();
+      }
+      for (String rcpt : parts.get(i).rcptTo()) {
+        if (error == null) {
+          delivered.add(rcpt);
+        } else {
+          failed.put(rcpt, error);
+        }
+      }
+    }
+    return new DeliveryReport(List.copyOf(delivered), failed);
+  }
+
+  /** This report with {@code recipients} added as delivered, e.g. ones skipped as duplicates. */
+  DeliveryReport withDelivered(List<String> recipients) {
+    List<String> all = new ArrayList<>(recipients);
+    all.addAll(delivered);
+    return new DeliveryReport(List.copyOf(all), failed);
+  }
+
+  public boolean isComplete() {
+    return failed.isEmpty();
+  }
+
+  /**
+   * True when nothing was delivered and nothing was attempted: the forward pipeline refused the work
+   * or the circuit breaker is open.
+   */
+  public boolean isBusy() {
+    return delivered.isEmpty() && !failed.isEmpty()
+        && failed.values().stream().allMatch(e -> e instanceof ForwardQueueFullException
+            || e instanceof CircuitOpenException);
+  }
+}
@@ -1,191 +1,380 @@
 package com.tikrai.mailreceiver.forward;
 
+import com.tikrai.mailreceiver.model.AttachmentRef;
 import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpEntity;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.http.client.reactive.ClientHttpRequest;
 import org.springframework.stereotype.Component;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import java.io.IOException;
 import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
+/**
+ * HTTP client for the downstream. Every call goes through a {@link CircuitBreaker}, and single
+ * messages are retried with jittered exponential backoff on transient failures (connection errors,
+ * 429, 502, 503, 504), up to {@code app.forward.retry.maxAttempts} attempts in total.
+ */
 @Component
 public class ForwardClient {
 
   private static final Logger log = LoggerFactory.getLogger(ForwardClient.class);
 
+  private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+  private static final MediaType MESSAGE_RFC822 = MediaType.parseMediaType("message/rfc822");
+  private static final String RAW_ID_HEADER = "X-Raw-Id";
+  private static final String IDEMPOTENCY_HEADER = "Idempotency-Key";
+  private static final int RAW_CHUNK_BYTES = 64 * 1024;
+
   private final WebClient client;
   private final String url;
+  private final String batchUrl;
+  private final String rawMode;
+  private final String rawUrl;
+  private final boolean json;
+  private final Duration timeout;
+  private final MeterRegistry registry;
+  private final Map<String, Timer> forwardTimers = new ConcurrentHashMap<>();
+  private final CircuitBreaker breaker;
+  private final Retry retry;
+  private final int gzipMinBytes;
 
   public ForwardClient(
       WebClient.Builder builder,
+      MeterRegistry registry,
       @Value("${app.forward.url}") String url,
-      @Value("${app.forward.timeoutMs}") long timeoutMs
+      @Value("${app.forward.timeoutMs}") long timeoutMs,
+      @Value("${app.forward.batch.url:}") String batchUrl,
+      @Value("${app.forward.raw.mode:none}") String rawMode,
+      @Value("${app.forward.raw.url:}") String rawUrl,
+      @Value("${app.forward.format:form}") String format,
+      @Value("${app.forward.retry.maxAttempts:3}") int maxAttempts,
+      @Value("${app.forward.retry.initialBackoffMs:200}") long initialBackoffMs,
+      @Value("${app.forward.retry.maxBackoffMs:2000}") long maxBackoffMs,
+      @Value("${app.forward.circuit.failureThreshold:5}") int failureThreshold,
+      @Value("${app.forward.circuit.openMs:10000}") long openMs,
+      @Value("${app.forward.http.compression:none}") String compression,
+      @Value("${app.forward.http.compressMinBytes:2048}") int compressMinBytes
   ) {
     this.url = url;
+    this.batchUrl = batchUrl == null || batchUrl.isBlank() ? url + "/batch" : batchUrl;
+    this.rawMode = rawMode.trim().toLowerCase(Locale.ROOT);
+    this.rawUrl = rawUrl == null || rawUrl.isBlank() ? url + "/raw" : rawUrl;
+    this.json = "json".equalsIgnoreCase(format.trim());
+    this.timeout = Duration.ofMillis(timeoutMs);
+    this.registry = registry;
+    this.breaker = new CircuitBreaker(failureThreshold, openMs);
+    this.gzipMinBytes = "gzip".equalsIgnoreCase(compression.trim()) ? compressMinBytes : -1;
+    this.retry = Retry.backoff(Math.max(0, maxAttempts - 1), Duration.ofMillis(initialBackoffMs))
+        .maxBackoff(Duration.ofMillis(maxBackoffMs))
+        .jitter(0.5)
+        .filter(ForwardClient::isTransient)
+        .doBeforeRetry(signal -> log.warn("Retrying forward - attempt {}, ERROR: {}",
+            signal.totalRetries() + 2, signal.failure().getMessage()))
+        .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    log.info("Forward client - url: {}, format: {}, raw message: {}, attempts: {}, circuit: {} failures / {} ms",
+        url, json ? "json" : "form", "separate".equals(this.rawMode) ? "separate POST to " + this.rawUrl : this.rawMode,
+        maxAttempts, failureThreshold, openMs);
+    Gauge.builder("forward.circuit.open", breaker, b -> b.state() == CircuitBreaker.State.CLOSED ? 0 : 1)
+        .description("1 while the forward circuit breaker is open or half-open")
+        .register(registry);
 
     this.client = builder
         .codecs(c -> c.defaultCodecs().maxInMemorySize(10 * 1024 * 1024))
         .build();
   }
 
-  public void forward(IncomingEmailPayload payload) {
-    log.info("=== FORWARD CLIENT CALLED ===");
-    log.info("Forwarding email to: {}", url);
-    
-    // Extract first recipient email (controller expects single "to" parameter)
-    String toEmail = payload.rcptTo() != null && !payload.rcptTo().isEmpty() 
-        ? payload.rcptTo().get(0) 
-        : "";
-    
-    log.info("HTTP POST request - URL: {}, FROM: {}, TO: {}, SUBJECT: {}", 
-        url, payload.mailFrom(), toEmail, payload.subject());
-    log.info("HTTP POST request payload size - headers: {}, text: {}, html: {}, rawBase64: {}", 
-        payload.headers().size(),
-        payload.textBody() != null ? payload.textBody().length() : 0,
-        payload.htmlBody() != null ? payload.htmlBody().length() : 0,
-        payload.rawBase64() != null ? payload.rawBase64().length() : 0);
-    
-    log.info("Starting headers serialization...");
-    // Serialize headers Map to String format
-    String headersStr = "";
-    try {
-      headersStr = payload.headers().entrySet().stream()
-          .map(entry -> {
-            String key = entry.getKey() != null ? entry.getKey() : "";
-            String value = entry.getValue() != null && !entry.getValue().isEmpty() 
-                ? String.join(", ", entry.getValue()) 
-                : "";
-            return key + ": " + value;
-          })
-          .collect(Collectors.joining("\n"));
-      log.info("Headers serialized successfully, length: {}", headersStr.length());
-    } catch (Exception e) {
-      log.error("Failed to serialize headers: {}", e.getMessage(), e);
-      headersStr = "";
-    }
-    
-    log.info("Building form-urlencoded body...");
-    // Build form-urlencoded body
-    MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
-    try {
-      formData.add("to", toEmail);
-      formData.add("from", payload.mailFrom() != null ? payload.mailFrom() : "");
-      formData.add("subject", payload.subject() != null ? payload.subject() : "");
-      // Always send text and html parameters, even if empty
-      formData.add("text", payload.textBody() != null ? payload.textBody() : "");
-      formData.add("html", payload.htmlBody() != null ? payload.htmlBody() : "");
-      if (!headersStr.isEmpty()) {
-        formData.add("headers", headersStr);
+  public Duration timeout() {
+    return timeout;
+  }
+
+  /**
+   * Builds the downstream request without blocking. Nothing is sent until the returned
+   * {@link Mono} is subscribed; it fails with a timeout after {@code app.forward.timeoutMs}.
+   *
+   * <p>Depending on {@code app.forward.raw.mode} the original message is left out ({@code none}),
+   * sent as a {@code raw} part of a multipart request ({@code multipart}), or first POSTed on its
+   * own to {@code app.forward.raw.url} and referenced by a {@code rawId} field ({@code separate}).
+   * A payload with a {@code messageKey} carries an {@code Idempotency-Key} header that is the same
+   * for every attempt and every SMTP retry of this message to these recipients.
+   *
+   * <p>{@code app.forward.format} {@code form} (default) sends url-encoded fields with the headers
+   * flattened to one string; {@code json} sends the {@link JsonPayloadWriter} object instead, as the
+   * body or, in multipart mode, as a {@code payload} part.
+   */
+  public Mono<ResponseEntity<String>> send(IncomingEmailPayload payload) {
+    // One "to" value per recipient; in the default per-recipient mode there is exactly one
+    List<String> recipients = payload.rcptTo() != null && !payload.rcptTo().isEmpty()
+        ? payload.rcptTo()
+        : List.of("");
+    String toEmail = String.join(", ", recipients);
+
+    String rawId = "separate".equals(rawMode) ? UUID.randomUUID().toString() : null;
+    MultiValueMap<String, String> formData = null;
+    if (!json) {
+      formData = formData(payload, recipients, flattenHeaders(payload.headers()));
+      if (rawId != null) {
+        formData.add("rawId", rawId);
       }
-      log.info("Form data built successfully, {} parameters", formData.size());
-    } catch (Exception e) {
-      log.error("Failed to build form data: {}", e.getMessage(), e);
-      throw e;
     }
-    
-    // Log all form parameters for debugging
-    log.info("=== HTTP POST REQUEST DETAILS ===");
-    log.info("URL: {}", url);
-    log.info("Content-Type: application/x-www-form-urlencoded");
-    log.info("Form parameters:");
-    try {
-      formData.forEach((key, values) -> {
-        try {
-          if (key.equals("text") || key.equals("html") || key.equals("headers")) {
-            int length = values != null && !values.isEmpty() && values.get(0) != null 
-                ? values.get(0).length() 
-                : 0;
-            log.info("  {}: [{} bytes]", key, length);
-            if (values != null && !values.isEmpty() && values.get(0) != null && values.get(0).length() < 500) {
-              log.info("    Content preview: {}", values.get(0).substring(0, Math.min(200, values.get(0).length())));
-            }
+
+    RawMessage raw = payload.raw() != null ? payload.raw() : RawMessage.EMPTY;
+    WebClient.RequestBodySpec post = client.post().uri(url);
+    if (payload.messageKey() != null) {
+      post = post.header(IDEMPOTENCY_HEADER, IdempotencyCache.requestKey(payload.messageKey(), recipients));
+    }
+    WebClient.RequestHeadersSpec<?> request;
+    if ("multipart".equals(rawMode)) {
+      request = post
+          .contentType(MediaType.MULTIPART_FORM_DATA)
+          .body(multipart(payload, recipients, formData, raw));
+    } else if (json) {
+      request = post
+          .contentType(MediaType.APPLICATION_JSON)
+          .body(compressed(JsonPayloadWriter.body(payload, recipients, rawId)));
+    } else {
+      request = post
+          .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+          .body(compressed(BodyInserters.fromFormData(formData)));
+    }
+
+    Mono<ResponseEntity<String>> response = timed("single", request
+        .retrieve()
+        .toEntity(String.class)
+        .timeout(timeout))
+        .doOnSuccess(responseEntity -> log.debug("HTTP POST - URL: {}, FROM: {}, TO: {}, status: {}",
+            url, payload.mailFrom(), toEmail, responseEntity.getStatusCode()))
+        .doOnError(e -> {
+          if (e instanceof WebClientResponseException wcre) {
+            log.error("HTTP POST ERROR - URL: {}, FROM: {}, TO: {}, status: {}, body: {}",
+                url, payload.mailFrom(), toEmail, wcre.getStatusCode(), wcre.getResponseBodyAsString());
           } else {
-            log.info("  {}: {}", key, values != null && !values.isEmpty() ? values.get(0) : "");
+            log.error("HTTP POST ERROR - URL: {}, FROM: {}, TO: {}, ERROR: {}",
+                url, payload.mailFrom(), toEmail, e.toString());
           }
-        } catch (Exception e) {
-          log.error("Error logging form parameter {}: {}", key, e.getMessage());
-        }
-      });
-    } catch (Exception e) {
-      log.error("Error iterating form data: {}", e.getMessage(), e);
+        });
+
+    if ("separate".equals(rawMode)) {
+      response = uploadRaw(rawId, raw).then(response);
     }
-    
-    // Build curl command for manual testing
-    log.info("Building CURL command...");
-    try {
-      StringBuilder curlCmd = new StringBuilder("curl -X POST '").append(url).append("'");
-      curlCmd.append(" -H 'Content-Type: application/x-www-form-urlencoded'");
-      curlCmd.append(" -d '");
-      boolean first = true;
-      for (String key : formData.keySet()) {
-        if (!first) curlCmd.append("&");
-        first = false;
-        String value = formData.getFirst(key);
-        // URL encode the value
-        value = value != null ? value.replace("'", "'\\''") : "";
-        curlCmd.append(key).append("=").append(value);
+    return guarded(response).retryWhen(retry);
+  }
+
+  /**
+   * The multipart body: the form fields (or the JSON {@code payload} part) and the raw message. The
+   * parts are built once the request is written, so their buffers come from its factory, pooled on
+   * the Netty connector.
+   */
+  private BodyInserter<MultiValueMap<String, HttpEntity<?>>, ClientHttpRequest> multipart(
+      IncomingEmailPayload payload, List<String> recipients, MultiValueMap<String, String> formData, RawMessage raw) {
+    return (request, context) -> {
+      DataBufferFactory factory = request.bufferFactory();
+      MultipartBodyBuilder parts = new MultipartBodyBuilder();
+      if (json) {
+        parts.asyncPart("payload", Mono.fromCallable(() -> JsonPayloadWriter.write(
+                payload, recipients, null, factory)), DataBuffer.class)
+            .contentType(MediaType.APPLICATION_JSON);
+      } else {
+        formData.forEach((key, values) -> values.forEach(value -> parts.part(key, value)));
       }
-      curlCmd.append("'");
-      log.info("CURL command to reproduce:");
-      log.info("{}", curlCmd.toString());
-    } catch (Exception e) {
-      log.error("Error building CURL command: {}", e.getMessage(), e);
+      parts.asyncPart("raw", readRaw(raw, factory), DataBuffer.class)
+          .contentType(MESSAGE_RFC822)
+          .filename("message.eml");
+      return BodyInserters.fromMultipartData(parts.build()).insert(request, context);
+    };
+  }
+
+  /** Serializes the header map as {@code Name: v1, v2} lines. */
+  static String flattenHeaders(Map<String, List<String>> headers) {
+    return headers.entrySet().stream()
+        .map(entry -> {
+          String key = entry.getKey() != null ? entry.getKey() : "";
+          String value = entry.getValue() != null && !entry.getValue().isEmpty() 
+              ? String.join(", ", entry.getValue()) 
+              : "";
+          return key + ": " + value;
+        })
+        .collect(Collectors.joining("\n"));
+  }
+
+  /** The form fields of a single-message request. */
+  static MultiValueMap<String, String> formData(IncomingEmailPayload payload, List<String> recipients, String headers) {
+    MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+    formData.addAll("to", recipients);
+    formData.add("from", payload.mailFrom() != null ? payload.mailFrom() : "");
+    formData.add("subject", payload.subject() != null ? payload.subject() : "");
+    // Always send text and html parameters, even if empty
+    formData.add("text", payload.textBody() != null ? payload.textBody() : "");
+    formData.add("html", payload.htmlBody() != null ? payload.htmlBody() : "");
+    if (!headers.isEmpty()) {
+      formData.add("headers", headers);
+    }
+    // Parallel lists, one entry per attachment; the bytes are fetched by hash from the blob endpoint
+    for (AttachmentRef attachment : payload.attachments()) {
+      formData.add("attachmentSha256", attachment.sha256());
+      formData.add("attachmentName", attachment.filename());
+      formData.add("attachmentType", attachment.contentType());
+      formData.add("attachmentSize", String.valueOf(attachment.size()));
     }
-    log.info("=== END REQUEST DETAILS ===");
-    
-    log.info("Sending HTTP POST request NOW...");
+    return formData;
+  }
+
+  /** POSTs the original message on its own; file-backed messages go out with {@code sendfile}. */
+  private Mono<Void> uploadRaw(String rawId, RawMessage raw) {
+    BodyInserter<RawMessage, ClientHttpRequest> body = (request, context) -> writeRaw(request, raw);
+    return timed("raw", client.post()
+        .uri(rawUrl)
+        .header(RAW_ID_HEADER, rawId)
+        .contentType(MESSAGE_RFC822)
+        .body(body)
+        .retrieve()
+        .toBodilessEntity()
+        .timeout(timeout))
+        .doOnSuccess(r -> log.debug("HTTP POST raw message - URL: {}, id: {}, bytes: {}, status: {}",
+            rawUrl, rawId, raw.size(), r.getStatusCode()))
+        .doOnError(e -> log.error("HTTP POST raw message ERROR - URL: {}, id: {}, ERROR: {}",
+            rawUrl, rawId, e.getMessage()))
+        .then();
+  }
+
+  private static Mono<Void> writeRaw(ClientHttpRequest request, RawMessage raw) {
+    request.getHeaders().setContentLength(raw.size());
     try {
-      var response = client.post()
-          .uri(url)
-          .contentType(MediaType.APPLICATION_FORM_URLENCODED)
-          .bodyValue(formData)
-          .retrieve()
-          .toEntity(String.class)
-          .timeout(Duration.ofSeconds(10))
-          .doOnSubscribe(subscription -> {
-            log.info("HTTP POST request SUBSCRIBED - starting request to: {}", url);
-          })
-          .doOnNext(responseEntity -> {
-            log.info("HTTP POST RESPONSE RECEIVED - Status: {}, FROM: {}, TO: {}", 
-                responseEntity.getStatusCode(), payload.mailFrom(), toEmail);
-            log.info("Response headers: {}", responseEntity.getHeaders());
-            if (responseEntity.getBody() != null) {
-              log.info("Response body: {}", responseEntity.getBody());
-            }
-          })
-          .doOnSuccess(responseEntity -> {
-            log.info("HTTP POST SUCCESS - Status: {}, FROM: {}, TO: {}", 
-                responseEntity.getStatusCode(), payload.mailFrom(), toEmail);
-          })
+      RawMessage.FileRange range = raw.fileRange();
+      if (range != null && request instanceof ZeroCopyHttpOutputMessage zeroCopy) {
+        return zeroCopy.writeWith(range.file(), range.position(), range.count());
+      }
+    } catch (IOException e) {
+      return Mono.error(e);
+    }
+    return request.writeWith(readRaw(raw, request.bufferFactory()));
+  }
+
+  private static Flux<DataBuffer> readRaw(RawMessage raw, DataBufferFactory factory) {
+    return DataBufferUtils.readInputStream(raw::openStream, factory, RAW_CHUNK_BYTES);
+  }
+
+  /**
+   * Posts an NDJSON batch built by {@link BatchForwarder}. The downstream answers with one
+   * {@link BatchItemResult} per item, either as a JSON array or as NDJSON.
+   */
+  public Mono<List<BatchItemResult>> sendBatch(byte[] ndjson, int items) {
+    log.info("HTTP POST batch - URL: {}, items: {}, bytes: {}", batchUrl, items, ndjson.length);
+    return guarded(timed("batch", client.post()
+        .uri(batchUrl)
+        .contentType(APPLICATION_NDJSON)
+        .accept(MediaType.APPLICATION_JSON, APPLICATION_NDJSON)
+        .body(compressed(BodyInserters.fromValue(ndjson)))
+        .retrieve()
+        .toEntityList(BatchItemResult.class)
+        .timeout(timeout))
+        .map(entity -> entity.getBody() != null ? entity.getBody() : List.<BatchItemResult>of())
+        .doOnSuccess(results -> log.info("HTTP POST batch RESPONSE - URL: {}, items: {}, results: {}",
+            batchUrl, items, results != null ? results.size() : 0))
+        .doOnError(e -> log.error("HTTP POST batch ERROR - URL: {}, items: {}, ERROR: {}",
+            batchUrl, items, e.getMessage())));
+  }
+
+  /**
+   * Gzips in-memory bodies from {@code app.forward.http.compressMinBytes} up when
+   * {@code app.forward.http.compression} is {@code gzip}. Percent-encoded HTML shrinks several times.
+   */
+  private <T> BodyInserter<T, ? super ClientHttpRequest> compressed(BodyInserter<T, ? super ClientHttpRequest> body) {
+    return gzipMinBytes >= 0 ? GzipRequestBody.wrap(body, gzipMinBytes) : body;
+  }
+
+  /** Fails with {@link CircuitOpenException} while the breaker is open; otherwise runs the call and reports its outcome. */
+  private <T> Mono<T> guarded(Mono<T> call) {
+    return Mono.defer(() -> {
+      CircuitBreaker.State permit = breaker.acquire();
+      if (permit == CircuitBreaker.State.OPEN) {
+        return Mono.error(new CircuitOpenException("Downstream unavailable, circuit open"));
+      }
+      Mono<T> reported = call
+          .doOnSuccess(r -> breaker.onSuccess())
           .doOnError(e -> {
-            log.error("HTTP POST ERROR - URL: {}, FROM: {}, TO: {}, ERROR: {}", 
-                url, payload.mailFrom(), toEmail, e.getMessage(), e);
-            if (e instanceof org.springframework.web.reactive.function.client.WebClientResponseException) {
-              org.springframework.web.reactive.function.client.WebClientResponseException wcre = 
-                  (org.springframework.web.reactive.function.client.WebClientResponseException) e;
-              log.error("Response status: {}, Response body: {}", 
-                  wcre.getStatusCode(), wcre.getResponseBodyAsString());
+            if (isOverload(e)) {
+              breaker.onFailure();
+            } else {
+              breaker.onSuccess();
             }
-          })
-          .block();
-      
-      if (response != null) {
-        log.info("HTTP POST request COMPLETED - Status: {}, Body: {}", 
-            response.getStatusCode(), response.getBody());
-      } else {
-        log.warn("HTTP POST request COMPLETED but response is NULL");
-      }
-    } catch (Exception e) {
-      log.error("HTTP POST EXCEPTION - URL: {}, FROM: {}, TO: {}, ERROR: {}", 
-          url, payload.mailFrom(), toEmail, e.getMessage(), e);
-      log.error("Exception stack trace:", e);
-      throw e;
+          });
+      // Only an abandoned trial call frees the half-open slot; other cancellations say nothing
+      return permit == CircuitBreaker.State.HALF_OPEN ? reported.doOnCancel(breaker::onCancel) : reported;
+    });
+  }
+
+  /** Failures worth another attempt: the request likely did not reach a healthy backend. */
+  static boolean isTransient(Throwable e) {
+    if (e instanceof WebClientResponseException wcre) {
+      int status = wcre.getStatusCode().value();
+      return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+    return e instanceof WebClientRequestException;
+  }
+
+  /** Failures that mean the backend is down or past its capacity, as opposed to rejecting this request. */
+  static boolean isOverload(Throwable e) {
+    if (e instanceof WebClientResponseException wcre) {
+      return wcre.getStatusCode().is5xxServerError() || wcre.getStatusCode().value() == 429;
+    }
+    return e instanceof WebClientRequestException || e instanceof TimeoutException;
+  }
+
+  /** Records the downstream latency per request kind and HTTP status ("timeout" or "error" without a response). */
+  private <T> Mono<ResponseEntity<T>> timed(String kind, Mono<ResponseEntity<T>> request) {
+    return Mono.defer(() -> {
+      long start = System.nanoTime();
+      return request
+          .doOnSuccess(r -> recordForward(kind, r != null ? String.valueOf(r.getStatusCode().value()) : "error", start))
+          .doOnError(e -> recordForward(kind, statusOf(e), start));
+    });
+  }
+
+  private void recordForward(String kind, String status, long startNanos) {
+    forwardTimers.computeIfAbsent(kind + ' ' + status, key -> Timer.builder("forward.request")
+        .description("Downstream request latency")
+        .tag("kind", kind)
+        .tag("status", status)
+        .publishPercentileHistogram()
+        .register(registry)).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static String statusOf(Throwable e) {
+    if (e instanceof WebClientResponseException wcre) {
+      return String.valueOf(wcre.getStatusCode().value());
     }
-    log.info("=== FORWARD CLIENT FINISHED ===");
+    return e instanceof TimeoutException ? "timeout" : "error";
   }
 }
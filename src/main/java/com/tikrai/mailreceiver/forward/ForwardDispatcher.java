@@ -0,0 +1,331 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs forwards through {@link ForwardClient#send} without blocking a thread per request.
+ *
+ * <p>The number of outstanding requests is capped by an {@link AdaptiveLimit} that starts at
+ * {@code app.forward.concurrency.initial} and follows the downstream's latency and overload errors
+ * within {@code min..max}; up to {@code app.forward.queueCapacity} more wait in a bounded hand-off
+ * queue. Anything beyond that is refused immediately with {@link ForwardQueueFullException} so the
+ * SMTP layer can answer 451 fast. In sync mode the calling thread waits for a slot under the same
+ * limit instead of queueing.
+ * When batch mode is enabled, payloads are handed to {@link BatchForwarder} instead.
+ *
+ * <p>A message with several recipients is forwarded as one request per recipient, all sent in
+ * parallel, unless {@code app.forward.recipientMode} is {@code list}, which sends a single request
+ * carrying every recipient. Either way the message is parsed once and success is tracked per recipient.
+ *
+ * <p>Recipients the {@link IdempotencyCache} has seen delivered recently are not sent again; they are
+ * reported as delivered.
+ */
+@Component
+public class ForwardDispatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(ForwardDispatcher.class);
+
+  private record Task(IncomingEmailPayload payload, CompletableFuture<Void> result) {}
+
+  private final ForwardClient forwardClient;
+  private final BatchForwarder batchForwarder;
+  private final IdempotencyCache idempotency;
+  private final boolean async;
+  private final boolean perRecipient;
+  private final AdaptiveLimit limit;
+  private final BlockingQueue<Task> queue;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // Sync callers waiting for a slot
+  private final ReentrantLock slotLock = new ReentrantLock();
+  private final Condition slotFreed = slotLock.newCondition();
+  private final AtomicInteger slotWaiters = new AtomicInteger();
+
+  public ForwardDispatcher(
+      ForwardClient forwardClient,
+      BatchForwarder batchForwarder,
+      IdempotencyCache idempotency,
+      @Value("${app.forward.mode:sync}") String mode,
+      @Value("${app.forward.concurrency.initial:${app.forward.maxInFlight:16}}") int initialLimit,
+      @Value("${app.forward.concurrency.min:1}") int minLimit,
+      @Value("${app.forward.concurrency.max:64}") int maxLimit,
+      @Value("${app.forward.concurrency.tolerance:2.0}") double tolerance,
+      @Value("${app.forward.queueCapacity:256}") int queueCapacity,
+      @Value("${app.forward.recipientMode:each}") String recipientMode,
+      MeterRegistry registry
+  ) {
+    this.forwardClient = forwardClient;
+    this.batchForwarder = batchForwarder;
+    this.idempotency = idempotency;
+    this.async = "async".equalsIgnoreCase(mode);
+    this.perRecipient = !"list".equalsIgnoreCase(recipientMode);
+    this.limit = new AdaptiveLimit(initialLimit, minLimit, maxLimit, tolerance);
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    log.info("Forward dispatcher - mode: {}, recipients: {}, concurrency: {} ({}..{}), queueCapacity: {}",
+        async ? "async" : "sync", perRecipient ? "each" : "list", limit.get(), minLimit, maxLimit, queueCapacity);
+    Gauge.builder("forward.inflight", inFlight, AtomicInteger::get)
+        .description("Downstream requests in progress")
+        .register(registry);
+    Gauge.builder("forward.concurrency.limit", limit, AdaptiveLimit::get)
+        .description("Current adaptive limit on downstream requests in progress")
+        .register(registry);
+    Gauge.builder("forward.queued", queue, BlockingQueue::size)
+        .description("Forwards waiting for an in-flight slot")
+        .register(registry);
+  }
+
+  public boolean isAsync() {
+    return async;
+  }
+
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  public int queued() {
+    return queue.size();
+  }
+
+  /**
+   * Queues the payload for forwarding. The returned future completes when the downstream accepted it.
+   *
+   * @throws ForwardQueueFullException when the hand-off queue is full
+   */
+  public CompletableFuture<Void> submit(IncomingEmailPayload payload) {
+    if (batchForwarder.isEnabled()) {
+      return batchForwarder.submit(payload);
+    }
+    Task task = new Task(payload, new CompletableFuture<>());
+    if (!queue.offer(task)) {
+      throw new ForwardQueueFullException(
+          "Forward queue full (" + inFlight.get() + " in flight, " + queue.size() + " queued)");
+    }
+    drain();
+    return task.result();
+  }
+
+  /** The requests to send for this payload: one per recipient, or the payload itself in list mode. */
+  public List<IncomingEmailPayload> split(IncomingEmailPayload payload) {
+    List<String> rcptTo = payload.rcptTo();
+    if (!perRecipient || rcptTo == null || rcptTo.size() <= 1) {
+      return List.of(payload);
+    }
+    return rcptTo.stream().map(rcpt -> payload.withRcptTo(List.of(rcpt))).toList();
+  }
+
+  /**
+   * Submits every request for the payload. The report completes once all of them finished; a part
+   * refused by a full queue is reported as failed with {@link ForwardQueueFullException}.
+   */
+  public CompletableFuture<DeliveryReport> submitAll(IncomingEmailPayload payload) {
+    IncomingEmailPayload keyed = idempotency.keyed(payload);
+    List<String> done = idempotency.alreadyDelivered(keyed);
+    IncomingEmailPayload pending = pending(keyed, done);
+    if (pending == null) {
+      return CompletableFuture.completedFuture(new DeliveryReport(done, Map.of()));
+    }
+    List<IncomingEmailPayload> parts = split(pending);
+    List<CompletableFuture<Void>> results = submitParts(parts);
+    return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new))
+        .handle((ok, e) -> remember(keyed, done, DeliveryReport.of(parts, results)));
+  }
+
+  /**
+   * Forwards the payload and waits for the outcome of every recipient. In sync mode the requests
+   * go out from this thread once it got a slot under the limit; in async or batch mode they go
+   * through the bounded pipeline. Either way the wait, retries included, is bounded by twice
+   * {@code app.forward.timeoutMs}: one timeout for queueing and one for the requests themselves.
+   */
+  public DeliveryReport forward(IncomingEmailPayload payload) throws Exception {
+    IncomingEmailPayload keyed = idempotency.keyed(payload);
+    List<String> done = idempotency.alreadyDelivered(keyed);
+    IncomingEmailPayload pending = pending(keyed, done);
+    if (pending == null) {
+      return new DeliveryReport(done, Map.of());
+    }
+    return remember(keyed, done, forwardPending(pending));
+  }
+
+  private DeliveryReport forwardPending(IncomingEmailPayload payload) throws Exception {
+    List<IncomingEmailPayload> parts = split(payload);
+    long waitMs = 2 * forwardClient.timeout().toMillis();
+    if (!async && !batchForwarder.isEnabled()) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+      List<CompletableFuture<Void>> results = new ArrayList<>(parts.size());
+      for (IncomingEmailPayload part : parts) {
+        boolean acquired = acquireSlot(deadline);
+        long left = deadline - System.nanoTime();
+        if (acquired && left <= 0) {
+          // Won right at the deadline: no time left for the request, so report busy like a missed slot
+          release();
+          acquired = false;
+        }
+        if (!acquired) {
+          results.add(CompletableFuture.failedFuture(new ForwardQueueFullException(
+              "No forward slot free within " + waitMs + " ms (" + inFlight.get() + " in flight)")));
+          continue;
+        }
+        // Cuts retries short at the deadline; cancelling releases the slot
+        results.add(limited(part)
+            .timeout(Duration.ofNanos(left))
+            .then()
+            .toFuture());
+      }
+      CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).handle((ok, e) -> null).join();
+      return DeliveryReport.of(parts, results);
+    }
+    List<CompletableFuture<Void>> results = submitParts(parts);
+    try {
+      CompletableFuture.allOf(results.toArray(CompletableFuture[]::new))
+          .handle((ok, e) -> null)
+          .get(waitMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      results.forEach(result -> result.cancel(false));
+      throw e;
+    }
+    return DeliveryReport.of(parts, results);
+  }
+
+  /** The payload without the recipients in {@code done}, or null when none are left. */
+  private static IncomingEmailPayload pending(IncomingEmailPayload payload, List<String> done) {
+    if (done.isEmpty()) {
+      return payload;
+    }
+    List<String> rest = payload.rcptTo().stream().filter(rcpt -> !done.contains(rcpt)).toList();
+    return rest.isEmpty() ? null : payload.withRcptTo(rest);
+  }
+
+  private DeliveryReport remember(IncomingEmailPayload keyed, List<String> done, DeliveryReport report) {
+    idempotency.markDelivered(keyed, report.delivered());
+    return done.isEmpty() ? report : report.withDelivered(done);
+  }
+
+  private List<CompletableFuture<Void>> submitParts(List<IncomingEmailPayload> parts) {
+    List<CompletableFuture<Void>> results = new ArrayList<>(parts.size());
+    for (IncomingEmailPayload part : parts) {
+      try {
+        results.add(submit(part));
+      } catch (ForwardQueueFullException e) {
+        results.add(CompletableFuture.failedFuture(e));
+      }
+    }
+    return results;
+  }
+
+  private void drain() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit.get()) {
+        return;
+      }
+      if (!inFlight.compareAndSet(current, current + 1)) {
+        continue;
+      }
+      Task task = queue.poll();
+      if (task == null) {
+        inFlight.decrementAndGet();
+        // Re-check: a submit may have queued a task while this thread held the slot
+        if (queue.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+      start(task);
+    }
+  }
+
+  private void start(Task task) {
+    if (task.result().isDone()) {
+      // Caller already gave up waiting
+      release();
+      return;
+    }
+    Disposable request = limited(task.payload())
+        .subscribe(
+            response -> task.result().complete(null),
+            task.result()::completeExceptionally,
+            () -> task.result().complete(null));
+    // A caller that gives up aborts the request, so the raw message is not read after its transaction ends
+    task.result().whenComplete((ignored, e) -> {
+      if (task.result().isCancelled()) {
+        request.dispose();
+      }
+    });
+  }
+
+  /** The request for a payload that holds an in-flight slot; feeds the limit and frees the slot when done. */
+  private Mono<ResponseEntity<String>> limited(IncomingEmailPayload payload) {
+    return Mono.defer(() -> {
+      long start = System.nanoTime();
+      return forwardClient.send(payload)
+          .doOnSuccess(response -> limit.onSample(System.nanoTime() - start, false, inFlight.get()))
+          .doOnError(e -> {
+            // Nothing reached the backend while the circuit is open, so it says nothing about its capacity
+            if (!(e instanceof CircuitOpenException)) {
+              limit.onSample(System.nanoTime() - start, ForwardClient.isOverload(e), inFlight.get());
+            }
+          })
+          .doFinally(signal -> release());
+    });
+  }
+
+  /** Sync mode: takes an in-flight slot, waiting until {@code deadline} (nanoTime) for one to free up. */
+  private boolean acquireSlot(long deadline) throws InterruptedException {
+    while (true) {
+      int current = inFlight.get();
+      if (current < limit.get()) {
+        if (inFlight.compareAndSet(current, current + 1)) {
+          return true;
+        }
+        continue;
+      }
+      long left = deadline - System.nanoTime();
+      if (left <= 0) {
+        return false;
+      }
+      slotLock.lock();
+      slotWaiters.incrementAndGet();
+      try {
+        // Bounded wait: a slot freed between the check and the wait is picked up on the next pass
+        slotFreed.awaitNanos(Math.min(left, TimeUnit.MILLISECONDS.toNanos(10)));
+      } finally {
+        slotWaiters.decrementAndGet();
+        slotLock.unlock();
+      }
+    }
+  }
+
+  private void release() {
+    inFlight.decrementAndGet();
+    if (slotWaiters.get() > 0) {
+      slotLock.lock();
+      try {
+        slotFreed.signal();
+      } finally {
+        slotLock.unlock();
+      }
+    }
+    drain();
+  }
+}
@@ -0,0 +1,81 @@
+package com.tikrai.mailreceiver.forward;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Connection pool and protocol for calls to the downstream. Replaces Spring Boot's default connector,
+ * whose pool is capped at {@code max(16, 2 * cores)} connections and keeps idle connections until
+ * the server drops them.
+ *
+ * <p>{@code app.forward.http.protocol} {@code h2c} multiplexes requests over a few cleartext HTTP/2
+ * connections (prior knowledge, the downstream must speak it); the default {@code http1} keeps one
+ * request per pooled connection.
+ */
+@Configuration
+public class ForwardHttpConfig {
+
+  private static final Logger log = LoggerFactory.getLogger(ForwardHttpConfig.class);
+
+  @Bean(destroyMethod = "dispose")
+  public ConnectionProvider forwardConnectionProvider(Environment env) {
+    int maxConnections = Integer.parseInt(env.getProperty("app.forward.http.maxConnections", "256"));
+    int pendingAcquireMax = Integer.parseInt(env.getProperty("app.forward.http.pendingAcquireMax", "1024"));
+    long maxIdleMs = Long.parseLong(env.getProperty("app.forward.http.maxIdleTimeMs", "30000"));
+    long maxLifeMs = Long.parseLong(env.getProperty("app.forward.http.maxLifeTimeMs", "300000"));
+    long evictMs = Long.parseLong(env.getProperty("app.forward.http.evictIntervalMs", "10000"));
+
+    log.info("Forward connection pool - maxConnections: {}, pendingAcquireMax: {}, maxIdleTimeMs: {}, maxLifeTimeMs: {}",
+        maxConnections, pendingAcquireMax, maxIdleMs, maxLifeMs);
+    return ConnectionProvider.builder("forward")
+        .maxConnections(maxConnections)
+        .pendingAcquireMaxCount(pendingAcquireMax)
+        // Idle connections are closed before the downstream or a proxy silently drops them
+        .maxIdleTime(Duration.ofMillis(maxIdleMs))
+        .maxLifeTime(Duration.ofMillis(maxLifeMs))
+        .evictInBackground(Duration.ofMillis(evictMs))
+        // Most recently used first, so a quiet period lets the surplus go idle and be evicted
+        .lifo()
+        .build();
+  }
+
+  @Bean
+  public ClientHttpConnector forwardHttpConnector(ConnectionProvider forwardConnectionProvider, Environment env) {
+    String protocol = env.getProperty("app.forward.http.protocol", "http1").trim().toLowerCase(Locale.ROOT);
+    int connectTimeoutMs = Integer.parseInt(env.getProperty("app.forward.http.connectTimeoutMs", "2000"));
+    boolean compress = "gzip".equalsIgnoreCase(env.getProperty("app.forward.http.compression", "none").trim());
+
+    HttpClient client = HttpClient.create(forwardConnectionProvider)
+        .protocol("h2c".equals(protocol) ? HttpProtocol.H2C : HttpProtocol.HTTP11)
+        .keepAlive(true)
+        // Accept gzip responses when requests are gzipped too
+        .compress(compress)
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+        .option(ChannelOption.SO_KEEPALIVE, true)
+        .option(ChannelOption.TCP_NODELAY, true);
+    if (Epoll.isAvailable()) {
+      // Detect a dead peer on an idle pooled connection within about a minute instead of hours
+      client = client
+          .option(EpollChannelOption.TCP_KEEPIDLE, 30)
+          .option(EpollChannelOption.TCP_KEEPINTVL, 10)
+          .option(EpollChannelOption.TCP_KEEPCNT, 3);
+    }
+    log.info("Forward HTTP client - protocol: {}, connectTimeoutMs: {}, compression: {}",
+        "h2c".equals(protocol) ? "h2c" : "http1", connectTimeoutMs, compress ? "gzip" : "none");
+    return new ReactorClientHttpConnector(client);
+  }
+}
@@ -0,0 +1,9 @@
+package com.tikrai.mailreceiver.forward;
+
+/** Thrown when the forward pipeline cannot take more work; callers should answer with a temporary failure. */
+public class ForwardQueueFullException extends RuntimeException {
+
+  public ForwardQueueFullException(String message) {
+    super(message);
+  }
+}
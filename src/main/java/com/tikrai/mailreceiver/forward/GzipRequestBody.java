@@ -0,0 +1,63 @@
+package com.tikrai.mailreceiver.forward;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.http.client.reactive.ClientHttpRequestDecorator;
+import org.springframework.web.reactive.function.BodyInserter;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips an in-memory request body ({@code Content-Encoding: gzip}) once it reaches {@code minBytes};
+ * smaller bodies go out unchanged. Only meant for bodies that are already fully buffered, such as the
+ * encoded form or an NDJSON batch: the body is joined before it is compressed.
+ */
+final class GzipRequestBody {
+
+  private GzipRequestBody() {}
+
+  static <T> BodyInserter<T, ClientHttpRequest> wrap(BodyInserter<T, ? super ClientHttpRequest> body, int minBytes) {
+    return (request, context) -> body.insert(new ClientHttpRequestDecorator(request) {
+      @Override
+      public Mono<Void> writeWith(Publisher<? extends DataBuffer> chunks) {
+        return DataBufferUtils.join(chunks).flatMap(joined -> {
+          if (joined.readableByteCount() < minBytes) {
+            return super.writeWith(Mono.just(joined));
+          }
+          byte[] gzipped;
+          try (InputStream in = joined.asInputStream(true)) {
+            gzipped = gzip(in, joined.readableByteCount());
+          } catch (IOException e) {
+            return Mono.error(new UncheckedIOException(e));
+          }
+          HttpHeaders headers = getHeaders();
+          headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+          headers.setContentLength(gzipped.length);
+          return super.writeWith(Mono.just(bufferFactory().wrap(gzipped)));
+        });
+      }
+    }, context);
+  }
+
+  private static byte[] gzip(InputStream in, int size) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(256, size / 4));
+    // Level 1: most of the gain on text and percent-encoding at a fraction of the CPU of the default
+    try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192) {
+      {
+        def.setLevel(Deflater.BEST_SPEED);
+      }
+    }) {
+      in.transferTo(gz);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,204 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which recipients already got a message, so a message retried by the sending MTA after a
+ * 451 is not forwarded again to the recipients that were delivered the first time.
+ *
+ * <p>A message is identified by its envelope sender and either its Message-ID or, when it has none,
+ * a SHA-256 of the raw bytes below the leading Received headers. Entries live for
+ * {@code app.forward.idempotency.ttlMs}; at most {@code maxEntries} are kept. The same key goes
+ * downstream as an {@code Idempotency-Key} header, so the backend can also drop a retry of a request
+ * that timed out here but was processed there.
+ */
+@Component
+public class IdempotencyCache {
+
+  private static final Logger log = LoggerFactory.getLogger(IdempotencyCache.class);
+
+  private final boolean enabled;
+  private final long ttlNanos;
+  private final int maxEntries;
+  private final Map<String, Long> delivered = new ConcurrentHashMap<>();
+  private final Counter suppressed;
+
+  public IdempotencyCache(
+      @Value("${app.forward.idempotency.enabled:true}") boolean enabled,
+      @Value("${app.forward.idempotency.ttlMs:3600000}") long ttlMs,
+      @Value("${app.forward.idempotency.maxEntries:100000}") int maxEntries,
+      MeterRegistry registry
+  ) {
+    this.enabled = enabled;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    this.maxEntries = maxEntries;
+    this.suppressed = Counter.builder("forward.duplicates.suppressed")
+        .description("Recipients not forwarded again because they already got the message")
+        .register(registry);
+    log.info("Forward idempotency - enabled: {}, ttlMs: {}, maxEntries: {}", enabled, ttlMs, maxEntries);
+  }
+
+  /** The payload with its {@code messageKey} set; unchanged when disabled or already keyed. */
+  public IncomingEmailPayload keyed(IncomingEmailPayload payload) {
+    if (!enabled || payload.messageKey() != null) {
+      return payload;
+    }
+    return payload.withMessageKey(keyOf(payload));
+  }
+
+  /** The recipients of a keyed payload that got it within the TTL. */
+  public List<String> alreadyDelivered(IncomingEmailPayload payload) {
+    if (payload.messageKey() == null || payload.rcptTo() == null) {
+      return List.of();
+    }
+    long now = System.nanoTime();
+    List<String> done = new ArrayList<>();
+    for (String rcpt : payload.rcptTo()) {
+      Long expiresAt = delivered.get(entry(payload.messageKey(), rcpt));
+      if (expiresAt != null && expiresAt - now > 0) {
+        done.add(rcpt);
+      }
+    }
+    if (!done.isEmpty()) {
+      suppressed.increment(done.size());
+      log.info("Duplicate message {} - not forwarding again to {}", payload.messageKey(), done);
+    }
+    return done;
+  }
+
+  public void markDelivered(IncomingEmailPayload payload, List<String> recipients) {
+    if (payload.messageKey() == null || recipients.isEmpty()) {
+      return;
+    }
+    long expiresAt = System.nanoTime() + ttlNanos;
+    if (delivered.size() + recipients.size() > maxEntries) {
+      evict();
+    }
+    for (String rcpt : recipients) {
+      delivered.put(entry(payload.messageKey(), rcpt), expiresAt);
+    }
+  }
+
+  /** Header value for one downstream request: the message key plus the recipients it carries. */
+  static String requestKey(String messageKey, List<String> recipients) {
+    return sha256(messageKey + "\n" + String.join(",", recipients));
+  }
+
+  private void evict() {
+    long now = System.nanoTime();
+    delivered.values().removeIf(expiresAt -> expiresAt - now <= 0);
+    // Still full of live entries: drop an arbitrary tenth rather than grow
+    Iterator<String> it = delivered.keySet().iterator();
+    for (int i = delivered.size() - maxEntries * 9 / 10; i > 0 && it.hasNext(); i--) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private static String entry(String messageKey, String rcpt) {
+    return messageKey + "\n" + rcpt;
+  }
+
+  private static String keyOf(IncomingEmailPayload payload) {
+    String messageId = header(payload.headers(), "Message-ID");
+    if (messageId != null && !messageId.isBlank()) {
+      return sha256("id\n" + messageId.trim() + "\n" + payload.mailFrom());
+    }
+    if (payload.raw() == null) {
+      return null;
+    }
+    MessageDigest digest = newDigest();
+    digest.update((payload.mailFrom() + "\n").getBytes(StandardCharsets.UTF_8));
+    try (InputStream in = new BufferedInputStream(payload.raw().openStream())) {
+      skipReceived(in);
+      new DigestInputStream(in, digest).transferTo(OutputStream.nullOutputStream());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return "raw-" + HexFormat.of().formatHex(digest.digest());
+  }
+
+  /** Skips the leading Received headers, which differ on every delivery attempt (ours carries a timestamp). */
+  private static void skipReceived(InputStream in) throws IOException {
+    byte[] prefix = "received:".getBytes(StandardCharsets.US_ASCII);
+    boolean inReceived = false;
+    while (true) {
+      in.mark(prefix.length);
+      int first = in.read();
+      boolean continuation = first == ' ' || first == '\t';
+      boolean received = first >= 0 && !continuation && startsWith(in, first, prefix);
+      if (!(received || continuation && inReceived)) {
+        in.reset();
+        return;
+      }
+      inReceived = true;
+      int b;
+      while ((b = in.read()) >= 0 && b != '\n') {
+        // rest of the line
+      }
+      if (b < 0) {
+        return;
+      }
+    }
+  }
+
+  private static boolean startsWith(InputStream in, int first, byte[] prefix) throws IOException {
+    int b = first;
+    for (int i = 0; i < prefix.length; i++) {
+      if (i > 0) {
+        b = in.read();
+      }
+      if (Character.toLowerCase(b) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String header(Map<String, List<String>> headers, String name) {
+    if (headers == null) {
+      return null;
+    }
+    for (Map.Entry<String, List<String>> h : headers.entrySet()) {
+      if (name.equalsIgnoreCase(h.getKey()) && h.getValue() != null && !h.getValue().isEmpty()) {
+        return h.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  private static String sha256(String value) {
+    return HexFormat.of().formatHex(newDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.tikrai.mailreceiver.model.AttachmentRef;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.web.reactive.function.BodyInserter;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a single-message request as one JSON object with the fields of a {@link BatchItem} (plus
+ * {@code rawId} when the raw message goes separately). Headers keep every value of a repeated field
+ * and {@code rcptTo} every recipient. The generator streams straight into a buffer from the
+ * request's factory, pooled on the Netty connector, so bodies are encoded once with no form string.
+ */
+final class JsonPayloadWriter {
+
+  private static final JsonFactory FACTORY = new JsonFactory();
+
+  private JsonPayloadWriter() {}
+
+  static BodyInserter<IncomingEmailPayload, ClientHttpRequest> body(
+      IncomingEmailPayload payload, List<String> recipients, String rawId) {
+    return (request, context) -> Mono.defer(() -> {
+      DataBuffer buffer;
+      try {
+        buffer = write(payload, recipients, rawId, request.bufferFactory());
+      } catch (IOException e) {
+        return Mono.error(e);
+      }
+      request.getHeaders().setContentLength(buffer.readableByteCount());
+      return request.writeWith(Mono.just(buffer));
+    });
+  }
+
+  /** The caller owns the returned buffer. */
+  static DataBuffer write(IncomingEmailPayload payload, List<String> recipients, String rawId,
+      DataBufferFactory factory) throws IOException {
+    DataBuffer buffer = factory.allocateBuffer(estimate(payload));
+    try (OutputStream out = buffer.asOutputStream();
+         JsonGenerator json = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      json.writeStartObject();
+      json.writeStringField("to", recipients.isEmpty() ? "" : recipients.get(0));
+      json.writeArrayFieldStart("rcptTo");
+      for (String recipient : recipients) {
+        json.writeString(recipient);
+      }
+      json.writeEndArray();
+      json.writeStringField("from", orEmpty(payload.mailFrom()));
+      json.writeStringField("subject", orEmpty(payload.subject()));
+      json.writeStringField("text", orEmpty(payload.textBody()));
+      json.writeStringField("html", orEmpty(payload.htmlBody()));
+      json.writeObjectFieldStart("headers");
+      if (payload.headers() != null) {
+        for (Map.Entry<String, List<String>> header : payload.headers().entrySet()) {
+          json.writeArrayFieldStart(orEmpty(header.getKey()));
+          if (header.getValue() != null) {
+            for (String value : header.getValue()) {
+              json.writeString(orEmpty(value));
+            }
+          }
+          json.writeEndArray();
+        }
+      }
+      json.writeEndObject();
+      json.writeArrayFieldStart("attachments");
+      for (AttachmentRef attachment : payload.attachments()) {
+        json.writeStartObject();
+        json.writeStringField("sha256", attachment.sha256());
+        json.writeStringField("filename", attachment.filename());
+        json.writeStringField("contentType", attachment.contentType());
+        json.writeNumberField("size", attachment.size());
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      if (rawId != null) {
+        json.writeStringField("rawId", rawId);
+      }
+      json.writeEndObject();
+    } catch (IOException | RuntimeException e) {
+      DataBufferUtils.release(buffer);
+      throw e;
+    }
+    return buffer;
+  }
+
+  // Bodies dominate; one growth step at most for mostly-ASCII mail
+  private static int estimate(IncomingEmailPayload payload) {
+    long chars = 512L + length(payload.subject()) + length(payload.textBody()) + length(payload.htmlBody());
+    if (payload.headers() != null) {
+      chars += payload.headers().size() * 64L;
+    }
+    return (int) Math.min(chars + chars / 8, 16 * 1024 * 1024);
+  }
+
+  private static int length(String s) {
+    return s != null ? s.length() : 0;
+  }
+
+  private static String orEmpty(String s) {
+    return s != null ? s : "";
+  }
+}
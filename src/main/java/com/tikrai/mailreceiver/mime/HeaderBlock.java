@@ -0,0 +1,120 @@
+package com.tikrai.mailreceiver.mime;
+
+import jakarta.mail.internet.MimeUtility;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The top-level header section of a message, read ahead of the body so that header-only checks can
+ * run before any MIME parsing. {@link #replay} gives back the whole message for the extractor.
+ */
+public final class HeaderBlock {
+
+  private final byte[] bytes;
+  private final int length;
+  private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+  private final String subject;
+  private final String text;
+
+  private HeaderBlock(byte[] bytes, int length, int headerLength) throws IOException {
+    this.bytes = bytes;
+    this.length = length;
+    StringBuilder text = new StringBuilder(headerLength);
+    String subject = null;
+    MimeLineReader reader = new MimeLineReader(new ByteArrayInputStream(bytes, 0, headerLength));
+    for (StreamingMimeExtractor.Header h : StreamingMimeExtractor.readHeaders(reader)) {
+      headers.computeIfAbsent(h.name(), k -> new ArrayList<>()).add(h.value());
+      text.append(h.name()).append(": ").append(MimeUtility.unfold(h.value())).append('\n');
+      if (subject == null && h.name().equalsIgnoreCase("Subject")) {
+        subject = StreamingMimeExtractor.decodeText(h.value());
+      }
+    }
+    this.subject = subject != null ? subject : "";
+    this.text = text.toString();
+  }
+
+  /**
+   * Reads up to the blank line that ends the header section, or {@code maxBytes} when there is none
+   * (everything read is then taken as headers). Reads in chunks, so part of the body may be consumed.
+   */
+  public static HeaderBlock read(InputStream in, int maxBytes) throws IOException {
+    byte[] buf = new byte[Math.min(8192, maxBytes)];
+    int length = 0;
+    int scanned = 0;
+    while (true) {
+      int end = headerEnd(buf, scanned, length);
+      if (end >= 0) {
+        return new HeaderBlock(buf, length, end);
+      }
+      scanned = Math.max(0, length - 3);
+      if (length == maxBytes) {
+        return new HeaderBlock(buf, length, length);
+      }
+      if (length == buf.length) {
+        buf = Arrays.copyOf(buf, Math.min(maxBytes, buf.length * 2));
+      }
+      int n = in.read(buf, length, buf.length - length);
+      if (n < 0) {
+        return new HeaderBlock(buf, length, length);
+      }
+      length += n;
+    }
+  }
+
+  /** Offset just past the blank line in {@code buf[from, to)}, -1 if it was not seen yet. */
+  private static int headerEnd(byte[] buf, int from, int to) {
+    if (from == 0 && to > 0 && (buf[0] == '\n' || to > 1 && buf[0] == '\r' && buf[1] == '\n')) {
+      return buf[0] == '\n' ? 1 : 2;
+    }
+    for (int i = from; i < to - 1; i++) {
+      if (buf[i] == '\n') {
+        if (buf[i + 1] == '\n') {
+          return i + 2;
+        }
+        if (buf[i + 1] == '\r' && i + 2 < to && buf[i + 2] == '\n') {
+          return i + 3;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Values of {@code name}, in message order; the name is matched case-insensitively. */
+  public List<String> values(String name) {
+    return headers.getOrDefault(name, List.of());
+  }
+
+  /** The decoded Subject, empty when there is none. */
+  public String subject() {
+    return subject;
+  }
+
+  /** All header fields as unfolded {@code Name: value} lines. */
+  public String text() {
+    return text;
+  }
+
+  /**
+   * The message from its first byte: what {@link #read} consumed, then the rest of {@code in}.
+   * {@code in} stays open: SequenceInputStream closes each stream it reaches the end of, and the
+   * caller still reads {@code in} afterwards.
+   */
+  public InputStream replay(InputStream in) {
+    InputStream rest = new FilterInputStream(in) {
+      @Override
+      public void close() {
+        // Left to the owner of in
+      }
+    };
+    return new SequenceInputStream(new ByteArrayInputStream(bytes, 0, length), rest);
+  }
+}
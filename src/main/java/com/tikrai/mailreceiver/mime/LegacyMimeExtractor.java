@@ -0,0 +1,248 @@
+package com.tikrai.mailreceiver.mime;
+
+import jakarta.mail.Header;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Original extractor built on {@link MimeMessage}: buffers the whole message and walks it with
+ * {@code getContent()}, re-parsing multiparts from the raw bytes when Jakarta Activation fails.
+ * Kept selectable through {@code app.mime.parser=legacy} as the reference for
+ * {@link StreamingMimeExtractor}.
+ */
+public final class LegacyMimeExtractor implements MimeExtractor {
+
+  private static final Logger log = LoggerFactory.getLogger(LegacyMimeExtractor.class);
+
+  // Session is immutable once created, one instance serves all messages
+  private static final Session MAIL_SESSION = Session.getInstance(new Properties());
+
+  @Override
+  public ParsedMessage extract(InputStream message) throws IOException {
+    byte[] rawBytes = message.readAllBytes();
+    String subject = "";
+    Map<String, List<String>> headers = new LinkedHashMap<>();
+    BodyParts bodies = new BodyParts("", "");
+
+    MimeMessage msg;
+    try {
+      msg = new MimeMessage(MAIL_SESSION, new java.io.ByteArrayInputStream(rawBytes));
+    } catch (Exception e) {
+      throw new IOException("Failed to parse message: " + e.getMessage(), e);
+    }
+
+    try {
+      subject = Optional.ofNullable(msg.getSubject()).orElse("");
+    } catch (Exception e) {
+      log.warn("Failed to extract subject, using empty string: {}", e.getMessage());
+    }
+
+    try {
+      @SuppressWarnings("unchecked")
+      Enumeration<Header> allHeaders = msg.getAllHeaders();
+      while (allHeaders.hasMoreElements()) {
+        Header h = allHeaders.nextElement();
+        headers.computeIfAbsent(h.getName(), k -> new ArrayList<>()).add(h.getValue());
+      }
+    } catch (Exception e) {
+      log.warn("Failed to extract headers, using empty map: {}", e.getMessage());
+    }
+
+    try {
+      log.debug("SMTP EMAIL Content-Type: {}", msg.getContentType());
+      bodies = extractBodies(msg, rawBytes);
+    } catch (Exception e) {
+      log.warn("Failed to extract body parts, using empty strings: {}", e.getMessage());
+    }
+
+    return new ParsedMessage(
+        subject,
+        headers,
+        bodies.text != null ? bodies.text : "",
+        bodies.html != null ? bodies.html : ""
+    );
+  }
+
+  private static class BodyParts {
+    final String text;
+    final String html;
+    BodyParts(String text, String html) { this.text = text; this.html = html; }
+  }
+
+  private static BodyParts extractBodies(Part part) throws Exception {
+    return extractBodies(part, null);
+  }
+  
+  private static BodyParts extractBodies(Part part, byte[] rawBytes) throws Exception {
+    String text = null;
+    String html = null;
+
+    try {
+      String contentType = part.getContentType();
+      log.debug("Extracting body from part with Content-Type: {}", contentType);
+      
+      if (part.isMimeType("text/plain")) {
+        Object content = part.getContent();
+        log.debug("Found text/plain part, content type: {}", content != null ? content.getClass() : "null");
+        if (content instanceof String) {
+          text = (String) content;
+        } else if (content instanceof InputStream) {
+          text = new String(((InputStream) content).readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+        } else {
+          text = Objects.toString(content, "");
+        }
+        log.debug("Extracted text/plain: {} chars", text != null ? text.length() : 0);
+      } else if (part.isMimeType("text/html")) {
+        Object content = part.getContent();
+        log.debug("Found text/html part, content type: {}", content != null ? content.getClass() : "null");
+        if (content instanceof String) {
+          html = (String) content;
+        } else if (content instanceof InputStream) {
+          html = new String(((InputStream) content).readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+        } else {
+          html = Objects.toString(content, "");
+        }
+        log.debug("Extracted text/html: {} chars", html != null ? html.length() : 0);
+      } else if (part.isMimeType("multipart/*")) {
+        log.debug("Found multipart/*, extracting sub-parts, Content-Type: {}", contentType);
+        Multipart mp = null;
+        try {
+          // First, try to get content directly using getContent() - but catch ClassCastException
+          try {
+            Object content = part.getContent();
+            log.debug("getContent() returned: {}", content != null ? content.getClass().getName() : "null");
+            if (content instanceof MimeMultipart) {
+              mp = (MimeMultipart) content;
+              log.debug("Successfully got MimeMultipart from getContent()");
+            } else if (content instanceof Multipart) {
+              mp = (Multipart) content;
+              log.debug("Successfully got Multipart from getContent()");
+            } else {
+              log.warn("getContent() returned unexpected type: {}", content != null ? content.getClass().getName() : "null");
+            }
+          } catch (ClassCastException e) {
+            log.warn("ClassCastException getting multipart content (Jakarta Activation conflict), trying alternative method: {}", e.getMessage());
+            // Alternative: use InputStream directly to create MimeMultipart
+            try {
+              if (part instanceof MimeMessage) {
+                // For MimeMessage, try to get the multipart from the message's input stream
+                log.debug("Attempting to create MimeMultipart from MimeMessage InputStream");
+                MimeMessage mimeMsg = (MimeMessage) part;
+                try (java.io.InputStream is = mimeMsg.getInputStream()) {
+                  // Create a new MimeMultipart from the content type and input stream
+                  String ct = mimeMsg.getContentType();
+                  if (ct != null && ct.toLowerCase().startsWith("multipart/")) {
+                    mp = new MimeMultipart(new jakarta.mail.util.ByteArrayDataSource(
+                        is.readAllBytes(), ct));
+                    log.debug("Successfully created MimeMultipart from InputStream");
+                  }
+                }
+              } else if (part instanceof jakarta.mail.internet.MimeBodyPart) {
+                // For MimeBodyPart, try to get the multipart from the body part's input stream
+                log.debug("Attempting to create MimeMultipart from MimeBodyPart InputStream");
+                jakarta.mail.internet.MimeBodyPart mimePart = (jakarta.mail.internet.MimeBodyPart) part;
+                try (java.io.InputStream is = mimePart.getInputStream()) {
+                  String ct = mimePart.getContentType();
+                  if (ct != null && ct.toLowerCase().startsWith("multipart/")) {
+                    mp = new MimeMultipart(new jakarta.mail.util.ByteArrayDataSource(
+                        is.readAllBytes(), ct));
+                    log.debug("Successfully created MimeMultipart from MimeBodyPart InputStream");
+                  }
+                }
+              }
+            } catch (Exception e2) {
+              log.error("Failed to create MimeMultipart from InputStream: {}", e2.getMessage(), e2);
+              // Last resort: if we have raw bytes and part is MimeMessage, try parsing from scratch
+              if (rawBytes != null && part instanceof MimeMessage) {
+                try {
+                  log.debug("Last resort: attempting to parse MimeMessage from raw bytes");
+                  MimeMessage rawMsg = new MimeMessage(MAIL_SESSION, new java.io.ByteArrayInputStream(rawBytes));
+                  // Try to get multipart without using getContent() - use getInputStream() instead
+                  try (java.io.InputStream rawIs = rawMsg.getInputStream()) {
+                    String rawCt = rawMsg.getContentType();
+                    if (rawCt != null && rawCt.toLowerCase().startsWith("multipart/")) {
+                      mp = new MimeMultipart(new jakarta.mail.util.ByteArrayDataSource(
+                          rawIs.readAllBytes(), rawCt));
+                      log.debug("Successfully created MimeMultipart from raw bytes InputStream");
+                    }
+                  }
+                } catch (Exception e3) {
+                  log.error("Failed to parse multipart from raw bytes InputStream: {}", e3.getMessage(), e3);
+                }
+              }
+            }
+          } catch (Exception e) {
+            log.warn("Exception getting multipart content: {}", e.getMessage(), e);
+          }
+        } catch (Exception e) {
+          log.error("Unexpected exception getting multipart content: {}", e.getMessage(), e);
+        }
+        
+        if (mp != null) {
+          log.debug("Multipart has {} parts", mp.getCount());
+          for (int i = 0; i < mp.getCount(); i++) {
+            try {
+              Part bodyPart = mp.getBodyPart(i);
+              String partContentType = bodyPart.getContentType();
+              log.debug("Processing multipart part {} of {} - Content-Type: {}", i + 1, mp.getCount(), partContentType);
+              
+              // Pass rawBytes recursively so nested multiparts can be parsed
+              BodyParts bp = extractBodies(bodyPart, rawBytes);
+              
+              if (text == null && bp.text != null && !bp.text.isEmpty()) {
+                text = bp.text;
+                log.debug("Found text from multipart part {}: {} chars", i + 1, text.length());
+              }
+              if (html == null && bp.html != null && !bp.html.isEmpty()) {
+                html = bp.html;
+                log.debug("Found html from multipart part {}: {} chars", i + 1, html.length());
+              }
+            } catch (Exception e) {
+              log.error("Error extracting body from multipart part {}: {}", i + 1, e.getMessage(), e);
+            }
+          }
+        } else {
+          log.error("Could not extract multipart content from part with Content-Type: {}", contentType);
+        }
+      } else {
+        log.debug("Skipping part with MIME type: {} (not text/plain, text/html, or multipart/*)", contentType);
+      }
+    } catch (ClassCastException e) {
+      log.error("ClassCastException while extracting body from part with MIME type: {}, error: {}", 
+          part.getContentType(), e.getMessage(), e);
+      // Return empty bodies if we can't parse
+    } catch (Exception e) {
+      log.error("Exception while extracting body from part with MIME type: {}, error: {}", 
+          part.getContentType(), e.getMessage(), e);
+    }
+    
+    return new BodyParts(
+        text != null ? text : "",
+        html != null ? html : ""
+    );
+  }
+  
+  private static String extractBoundary(String contentType) {
+    if (contentType == null) return null;
+    int idx = contentType.indexOf("boundary=");
+    if (idx == -1) return null;
+    String boundary = contentType.substring(idx + "boundary=".length());
+    // Remove quotes if present
+    if (boundary.startsWith("\"")) {
+      boundary = boundary.substring(1);
+    }
+    if (boundary.endsWith("\"")) {
+      boundary = boundary.substring(0, boundary.length() - 1);
+    }
+    return boundary.trim();
+  }
+}
@@ -0,0 +1,10 @@
+package com.tikrai.mailreceiver.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Pulls subject, headers and the first text/plain and text/html bodies out of an RFC822 message. */
+public interface MimeExtractor {
+
+  ParsedMessage extract(InputStream message) throws IOException;
+}
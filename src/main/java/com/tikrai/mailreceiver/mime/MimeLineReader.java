@@ -0,0 +1,89 @@
+package com.tikrai.mailreceiver.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Splits a stream into lines (terminator included) without materializing long lines.
+ *
+ * <p>Only the first {@link #PREFIX_BYTES} bytes of a line are kept, which is enough to recognize a
+ * MIME boundary. Once a line outgrows the prefix, the prefix and the rest of the line are streamed
+ * to the caller's overflow sink, or discarded when there is none.
+ */
+final class MimeLineReader {
+
+  static final int PREFIX_BYTES = 256;
+
+  private final InputStream in;
+  private final byte[] buf = new byte[8192];
+  private final byte[] prefix = new byte[PREFIX_BYTES];
+  private int pos;
+  private int limit;
+  private int prefixLength;
+  private boolean overflowed;
+
+  MimeLineReader(InputStream in) {
+    this.in = in;
+  }
+
+  /** Reads the next line and returns its length, or -1 at end of stream. */
+  int readLine(OutputStream overflow) throws IOException {
+    prefixLength = 0;
+    overflowed = false;
+    int total = 0;
+    while (true) {
+      if (pos == limit) {
+        limit = in.read(buf, 0, buf.length);
+        pos = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return total == 0 ? -1 : total;
+        }
+      }
+      int start = pos;
+      while (pos < limit && buf[pos] != '\n') {
+        pos++;
+      }
+      boolean eol = pos < limit;
+      if (eol) {
+        pos++;
+      }
+      append(buf, start, pos - start, overflow);
+      total += pos - start;
+      if (eol) {
+        return total;
+      }
+    }
+  }
+
+  /** True when the last line was longer than the prefix; its bytes then went to the overflow sink. */
+  boolean overflowed() {
+    return overflowed;
+  }
+
+  byte[] prefix() {
+    return prefix;
+  }
+
+  int prefixLength() {
+    return prefixLength;
+  }
+
+  private void append(byte[] src, int off, int len, OutputStream overflow) throws IOException {
+    if (!overflowed && prefixLength + len <= PREFIX_BYTES) {
+      System.arraycopy(src, off, prefix, prefixLength, len);
+      prefixLength += len;
+      return;
+    }
+    if (!overflowed) {
+      overflowed = true;
+      if (overflow != null) {
+        overflow.write(prefix, 0, prefixLength);
+      }
+    }
+    if (overflow != null) {
+      overflow.write(src, off, len);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package com.tikrai.mailreceiver.mime;
+
+import com.tikrai.mailreceiver.model.AttachmentRef;
+
+import java.util.List;
+import java.util.Map;
+
+public record ParsedMessage(
+    String subject,
+    Map<String, List<String>> headers,
+    String textBody,
+    String htmlBody,
+    List<AttachmentRef> attachments
+) {
+
+  public ParsedMessage(String subject, Map<String, List<String>> headers, String textBody, String htmlBody) {
+    this(subject, headers, textBody, htmlBody, List.of());
+  }
+}
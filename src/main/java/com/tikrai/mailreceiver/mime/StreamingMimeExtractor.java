@@ -0,0 +1,531 @@
+package com.tikrai.mailreceiver.mime;
+
+import jakarta.mail.MessagingException;
+import com.tikrai.mailreceiver.blob.BlobStore;
+import com.tikrai.mailreceiver.model.AttachmentRef;
+import jakarta.mail.internet.ContentDisposition;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Single-pass MIME extractor.
+ *
+ * <p>Reads the message line by line, tracking the stack of open multipart boundaries. Only the
+ * first non-empty text/plain and text/html parts are captured and then decoded (transfer encoding,
+ * then charset); every other part, including attachments, is skipped without being buffered.
+ * Results match {@link LegacyMimeExtractor}: same header map, RFC 2047 decoded subject, and the
+ * first text bodies in depth-first order. Unlike the legacy path, a part with an unknown charset is
+ * decoded as UTF-8 instead of being dropped.
+ *
+ * <p>Given a {@link BlobStore}, parts that carry a file name or {@code Content-Disposition: attachment}
+ * are decoded as they are read and streamed into the store; the message keeps only an
+ * {@link AttachmentRef} for each. Without a store they are skipped as before.
+ */
+public final class StreamingMimeExtractor implements MimeExtractor {
+
+  private static final Logger log = LoggerFactory.getLogger(StreamingMimeExtractor.class);
+
+  private static final int MAX_DEPTH = 32;
+
+  record Header(String name, String value) {}
+
+  /** A boundary line: which enclosing boundary matched and whether it was the closing delimiter. */
+  private record Hit(byte[] boundary, boolean closing) {}
+
+  private static final class Bodies {
+    String text;
+    String html;
+    final List<AttachmentRef> attachments = new ArrayList<>();
+  }
+
+  private final BlobStore blobs;
+
+  public StreamingMimeExtractor() {
+    this(null);
+  }
+
+  public StreamingMimeExtractor(BlobStore blobs) {
+    this.blobs = blobs;
+  }
+
+  @Override
+  public ParsedMessage extract(InputStream message) throws IOException {
+    MimeLineReader reader = new MimeLineReader(message);
+    List<Header> topHeaders = readHeaders(reader);
+
+    Map<String, List<String>> headers = new LinkedHashMap<>();
+    String subject = null;
+    for (Header h : topHeaders) {
+      headers.computeIfAbsent(h.name(), k -> new ArrayList<>()).add(h.value());
+      if (subject == null && h.name().equalsIgnoreCase("Subject")) {
+        subject = decodeText(h.value());
+      }
+    }
+
+    Bodies bodies = new Bodies();
+    walk(reader, topHeaders, new ArrayDeque<>(), bodies, 0);
+    return new ParsedMessage(
+        subject != null ? subject : "",
+        headers,
+        bodies.text != null ? bodies.text : "",
+        bodies.html != null ? bodies.html : "",
+        List.copyOf(bodies.attachments)
+    );
+  }
+
+  /** Consumes one entity (headers already read) and returns the boundary that ended it, or null at EOF. */
+  private Hit walk(MimeLineReader reader, List<Header> headers, Deque<byte[]> boundaries,
+                          Bodies out, int depth) throws IOException {
+    ContentType ct = contentType(headers);
+    String boundaryParam = ct.getParameter("boundary");
+
+    if (ct.getPrimaryType().equalsIgnoreCase("multipart") && boundaryParam != null && depth < MAX_DEPTH) {
+      byte[] boundary = boundaryParam.getBytes(StandardCharsets.ISO_8859_1);
+      boundaries.push(boundary);
+      boolean popped = false;
+      try {
+        Hit hit = skip(reader, boundaries);
+        while (hit != null && hit.boundary() == boundary && !hit.closing()) {
+          hit = walk(reader, readHeaders(reader), boundaries, out, depth + 1);
+        }
+        if (hit != null && hit.boundary() == boundary) {
+          boundaries.pop();
+          popped = true;
+          return skip(reader, boundaries);
+        }
+        // End of stream or an enclosing boundary: this multipart was never closed
+        return hit;
+      } finally {
+        if (!popped) {
+          boundaries.pop();
+        }
+      }
+    }
+
+    String filename = blobs != null ? attachmentName(headers, ct) : null;
+    boolean wantText = out.text == null && filename == null && ct.match("text/plain");
+    boolean wantHtml = out.html == null && filename == null && ct.match("text/html");
+    if (filename != null) {
+      return store(reader, boundaries, headers, ct, filename, out);
+    }
+    if (!wantText && !wantHtml) {
+      return skip(reader, boundaries);
+    }
+
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    Hit hit = copy(reader, boundaries, raw);
+    byte[] bytes = raw.toByteArray();
+    int length = bytes.length;
+    if (hit != null) {
+      // The line break before a boundary belongs to the boundary, not to the part
+      length = stripTrailingLineBreak(bytes, length);
+    }
+    String body = decodeBody(bytes, length, header(headers, "Content-Transfer-Encoding"),
+        ct.getParameter("charset"));
+    if (!body.isEmpty()) {
+      if (wantText) {
+        out.text = body;
+      } else {
+        out.html = body;
+      }
+    }
+    return hit;
+  }
+
+  /** Streams the decoded part into the blob store; a store failure loses the attachment, not the message. */
+  private Hit store(MimeLineReader reader, Deque<byte[]> boundaries, List<Header> headers, ContentType ct,
+                    String filename, Bodies out) throws IOException {
+    PartStream part = new PartStream(reader, boundaries);
+    try (InputStream decoded = decode(part, header(headers, "Content-Transfer-Encoding"))) {
+      BlobStore.Blob blob = blobs.put(decoded);
+      out.attachments.add(new AttachmentRef(blob.sha256(), filename, ct.getBaseType().toLowerCase(Locale.ROOT),
+          blob.size()));
+    } catch (IOException e) {
+      if (part.readError != null) {
+        // The message itself could not be read (e.g. DATA over the size limit)
+        throw part.readError;
+      }
+      log.warn("Failed to store attachment {}: {}", filename, e.getMessage());
+    }
+    return part.drain();
+  }
+
+  /** The file name of an attachment part, "" for an unnamed attachment, or null for an inline body part. */
+  private static String attachmentName(List<Header> headers, ContentType ct) {
+    String disposition = header(headers, "Content-Disposition");
+    String name = null;
+    boolean attachment = false;
+    if (disposition != null) {
+      try {
+        ContentDisposition cd = new ContentDisposition(MimeUtility.unfold(disposition));
+        attachment = "attachment".equalsIgnoreCase(cd.getDisposition());
+        name = cd.getParameter("filename");
+      } catch (ParseException e) {
+        attachment = disposition.trim().toLowerCase(Locale.ROOT).startsWith("attachment");
+      }
+    }
+    if (name == null) {
+      name = ct.getParameter("name");
+    }
+    if (name != null) {
+      return decodeText(name);
+    }
+    return attachment ? "" : null;
+  }
+
+  private static InputStream decode(InputStream part, String transferEncoding) {
+    String encoding = transferEncoding != null ? transferEncoding.trim().toLowerCase(Locale.ROOT) : "";
+    if (encoding.isEmpty() || encoding.equals("7bit") || encoding.equals("8bit") || encoding.equals("binary")) {
+      return part;
+    }
+    try {
+      return MimeUtility.decode(part, encoding);
+    } catch (MessagingException e) {
+      log.debug("Unknown Content-Transfer-Encoding {}, storing raw bytes", encoding);
+      return part;
+    }
+  }
+
+  static List<Header> readHeaders(MimeLineReader reader) throws IOException {
+    List<Header> headers = new ArrayList<>();
+    ByteArrayOutputStream longLine = new ByteArrayOutputStream();
+    String name = null;
+    StringBuilder value = null;
+    while (true) {
+      longLine.reset();
+      int len = reader.readLine(longLine);
+      if (len < 0) {
+        break;
+      }
+      String line = reader.overflowed()
+          ? headerString(longLine.toByteArray(), longLine.size())
+          : headerString(reader.prefix(), reader.prefixLength());
+      line = stripLineBreak(line);
+      if (line.isEmpty()) {
+        break;
+      }
+      if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && value != null) {
+        value.append("\r\n").append(line);
+        continue;
+      }
+      if (name != null) {
+        headers.add(new Header(name, value.toString()));
+        name = null;
+        value = null;
+      }
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        continue;
+      }
+      name = line.substring(0, colon).trim();
+      int start = colon + 1;
+      while (start < line.length() && (line.charAt(start) == ' ' || line.charAt(start) == '\t')) {
+        start++;
+      }
+      value = new StringBuilder(line.substring(start));
+    }
+    if (name != null) {
+      headers.add(new Header(name, value.toString()));
+    }
+    return headers;
+  }
+
+  private static Hit skip(MimeLineReader reader, Deque<byte[]> boundaries) throws IOException {
+    while (reader.readLine(null) >= 0) {
+      if (!reader.overflowed()) {
+        Hit hit = matchBoundary(reader.prefix(), reader.prefixLength(), boundaries);
+        if (hit != null) {
+          return hit;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Hit copy(MimeLineReader reader, Deque<byte[]> boundaries, ByteArrayOutputStream sink)
+      throws IOException {
+    while (reader.readLine(sink) >= 0) {
+      if (reader.overflowed()) {
+        continue;
+      }
+      Hit hit = matchBoundary(reader.prefix(), reader.prefixLength(), boundaries);
+      if (hit != null) {
+        return hit;
+      }
+      sink.write(reader.prefix(), 0, reader.prefixLength());
+    }
+    return null;
+  }
+
+  private static Hit matchBoundary(byte[] line, int length, Deque<byte[]> boundaries) {
+    if (boundaries.isEmpty() || length < 2 || line[0] != '-' || line[1] != '-') {
+      return null;
+    }
+    for (byte[] boundary : boundaries) {
+      if (!regionMatches(line, 2, length, boundary)) {
+        continue;
+      }
+      int i = 2 + boundary.length;
+      boolean closing = i + 1 < length && line[i] == '-' && line[i + 1] == '-';
+      if (closing) {
+        i += 2;
+      }
+      // Only transport padding may follow the delimiter
+      while (i < length && (line[i] == ' ' || line[i] == '\t' || line[i] == '\r' || line[i] == '\n')) {
+        i++;
+      }
+      if (i == length) {
+        return new Hit(boundary, closing);
+      }
+    }
+    return null;
+  }
+
+  private static boolean regionMatches(byte[] line, int offset, int length, byte[] boundary) {
+    if (offset + boundary.length > length) {
+      return false;
+    }
+    for (int i = 0; i < boundary.length; i++) {
+      if (line[offset + i] != boundary[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static ContentType contentType(List<Header> headers) {
+    String value = header(headers, "Content-Type");
+    if (value != null) {
+      String unfolded = MimeUtility.unfold(value);
+      try {
+        return new ContentType(unfolded);
+      } catch (ParseException e) {
+        // Keep the media type even when the parameters are malformed
+        int semi = unfolded.indexOf(';');
+        String type = (semi >= 0 ? unfolded.substring(0, semi) : unfolded).trim().toLowerCase(Locale.ROOT);
+        int slash = type.indexOf('/');
+        if (slash > 0) {
+          return new ContentType(type.substring(0, slash), type.substring(slash + 1), null);
+        }
+        log.debug("Unparseable Content-Type, treating as text/plain: {}", unfolded);
+      }
+    }
+    return new ContentType("text", "plain", null);
+  }
+
+  private static String header(List<Header> headers, String name) {
+    for (Header h : headers) {
+      if (h.name().equalsIgnoreCase(name)) {
+        return h.value();
+      }
+    }
+    return null;
+  }
+
+  private static String decodeBody(byte[] raw, int length, String transferEncoding, String charsetName) {
+    byte[] decoded = raw;
+    int decodedLength = length;
+    String encoding = transferEncoding != null ? transferEncoding.trim().toLowerCase(Locale.ROOT) : "";
+    if (!encoding.isEmpty() && !encoding.equals("7bit") && !encoding.equals("8bit") && !encoding.equals("binary")) {
+      try (InputStream in = MimeUtility.decode(new ByteArrayInputStream(raw, 0, length), encoding)) {
+        decoded = in.readAllBytes();
+        decodedLength = decoded.length;
+      } catch (MessagingException e) {
+        log.debug("Unknown Content-Transfer-Encoding {}, using raw bytes", encoding);
+      } catch (IOException e) {
+        log.warn("Failed to decode {} body part: {}", encoding, e.getMessage());
+        return "";
+      }
+    }
+    return new String(decoded, 0, decodedLength, charset(charsetName));
+  }
+
+  private static Charset charset(String name) {
+    if (name == null || name.isBlank()) {
+      return StandardCharsets.UTF_8;
+    }
+    try {
+      return Charset.forName(MimeUtility.javaCharset(name.trim()));
+    } catch (RuntimeException e) {
+      log.debug("Unsupported charset {}, falling back to UTF-8", name);
+      return StandardCharsets.UTF_8;
+    }
+  }
+
+  static String decodeText(String value) {
+    String unfolded = MimeUtility.unfold(value);
+    try {
+      return MimeUtility.decodeText(unfolded);
+    } catch (UnsupportedEncodingException e) {
+      return unfolded;
+    }
+  }
+
+  /** Header bytes are ASCII by RFC 5322; accept UTF-8 (RFC 6532) and fall back to Latin-1 for anything else. */
+  private static String headerString(byte[] bytes, int length) {
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] < 0) {
+        try {
+          return StandardCharsets.UTF_8.newDecoder()
+              .onMalformedInput(CodingErrorAction.REPORT)
+              .onUnmappableCharacter(CodingErrorAction.REPORT)
+              .decode(ByteBuffer.wrap(bytes, 0, length))
+              .toString();
+        } catch (CharacterCodingException e) {
+          break;
+        }
+      }
+    }
+    return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * The raw bytes of one part, read up to the boundary that ends it. Each line break is held back
+   * until the next line turns out not to be a boundary, because the break before a boundary belongs
+   * to the boundary.
+   */
+  private static final class PartStream extends InputStream {
+    private final MimeLineReader reader;
+    private final Deque<byte[]> boundaries;
+    private final LineBuffer line = new LineBuffer();
+    private final byte[] lineBreak = new byte[2];
+    private int lineBreakLength;
+    private byte[] chunk = new byte[0];
+    private int chunkPos;
+    private int chunkLength;
+    private boolean done;
+    private Hit hit;
+    IOException readError;
+
+    PartStream(MimeLineReader reader, Deque<byte[]> boundaries) {
+      this.reader = reader;
+      this.boundaries = boundaries;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (chunkPos == chunkLength) {
+        if (!nextLine()) {
+          return -1;
+        }
+      }
+      int n = Math.min(len, chunkLength - chunkPos);
+      System.arraycopy(chunk, chunkPos, b, off, n);
+      chunkPos += n;
+      return n;
+    }
+
+    /** Reads whatever the decoder left of the part and returns the boundary that ended it, or null at EOF. */
+    Hit drain() throws IOException {
+      while (nextLine()) {
+        chunkPos = chunkLength;
+      }
+      return hit;
+    }
+
+    private boolean nextLine() throws IOException {
+      if (done) {
+        return false;
+      }
+      line.reset();
+      int length;
+      try {
+        length = reader.readLine(line);
+      } catch (IOException e) {
+        readError = e;
+        throw e;
+      }
+      if (length < 0) {
+        done = true;
+        // No closing boundary: the last line break is part of the content
+        chunk = lineBreak;
+        chunkPos = 0;
+        chunkLength = lineBreakLength;
+        lineBreakLength = 0;
+        return chunkLength > 0;
+      }
+      byte[] bytes;
+      if (reader.overflowed()) {
+        bytes = line.buffer();
+        length = line.size();
+      } else {
+        bytes = reader.prefix();
+        length = reader.prefixLength();
+        hit = matchBoundary(bytes, length, boundaries);
+        if (hit != null) {
+          done = true;
+          return false;
+        }
+      }
+      int content = stripTrailingLineBreak(bytes, length);
+      if (chunk.length < lineBreakLength + content) {
+        chunk = new byte[Math.max(lineBreakLength + content, 2 * chunk.length)];
+      }
+      System.arraycopy(lineBreak, 0, chunk, 0, lineBreakLength);
+      System.arraycopy(bytes, 0, chunk, lineBreakLength, content);
+      chunkPos = 0;
+      chunkLength = lineBreakLength + content;
+      lineBreakLength = length - content;
+      System.arraycopy(bytes, content, lineBreak, 0, lineBreakLength);
+      return true;
+    }
+  }
+
+  /** Overflow sink whose bytes can be read without a copy. */
+  private static final class LineBuffer extends ByteArrayOutputStream {
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+  private static String stripLineBreak(String line) {
+    int end = line.length();
+    if (end > 0 && line.charAt(end - 1) == '\n') {
+      end--;
+    }
+    if (end > 0 && line.charAt(end - 1) == '\r') {
+      end--;
+    }
+    return line.substring(0, end);
+  }
+
+  private static int stripTrailingLineBreak(byte[] bytes, int length) {
+    if (length > 0 && bytes[length - 1] == '\n') {
+      length--;
+      if (length > 0 && bytes[length - 1] == '\r') {
+        length--;
+      }
+    }
+    return length;
+  }
+}
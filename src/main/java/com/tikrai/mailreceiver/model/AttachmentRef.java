@@ -0,0 +1,9 @@
+package com.tikrai.mailreceiver.model;
+
+/** An attachment kept in the blob store: its SHA-256 (hex) names the blob, the rest describes the part. */
+public record AttachmentRef(
+    String sha256,
+    String filename,
+    String contentType,
+    long size
+) {}
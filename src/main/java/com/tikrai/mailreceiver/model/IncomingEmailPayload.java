@@ -1,8 +1,16 @@
 package com.tikrai.mailreceiver.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Parsed message handed to the forward pipeline. {@code raw} points at the original bytes and is
+ * only valid while its owner (SMTP transaction or spool entry) is alive; it is never serialized.
+ * {@code attachments} reference parts kept in the blob store, empty when there are none.
+ * {@code messageKey} identifies the message across SMTP retries; it is derived again when needed.
+ */
 public record IncomingEmailPayload(
     String mailFrom,
     List<String> rcptTo,
@@ -10,5 +18,29 @@ public record IncomingEmailPayload(
     String textBody,
     String htmlBody,
     Map<String, List<String>> headers,
-    String rawBase64
-) {}
+    List<AttachmentRef> attachments,
+    @JsonIgnore RawMessage raw,
+    @JsonIgnore String messageKey
+) {
+
+  public IncomingEmailPayload {
+    attachments = attachments != null ? attachments : List.of();
+  }
+
+  /** Base64 of the original message, encoded on demand. */
+  public String rawBase64() {
+    return raw != null ? raw.toBase64() : "";
+  }
+
+  public IncomingEmailPayload withRcptTo(List<String> rcptTo) {
+    return new IncomingEmailPayload(mailFrom, rcptTo, subject, textBody, htmlBody, headers, attachments, raw, messageKey);
+  }
+
+  public IncomingEmailPayload withRaw(RawMessage raw) {
+    return new IncomingEmailPayload(mailFrom, rcptTo, subject, textBody, htmlBody, headers, attachments, raw, messageKey);
+  }
+
+  public IncomingEmailPayload withMessageKey(String messageKey) {
+    return new IncomingEmailPayload(mailFrom, rcptTo, subject, textBody, htmlBody, headers, attachments, raw, messageKey);
+  }
+}
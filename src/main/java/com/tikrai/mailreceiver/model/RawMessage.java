@@ -0,0 +1,90 @@
+package com.tikrai.mailreceiver.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+
+/**
+ * The original RFC822 bytes of a message, wherever they currently live (pooled heap buffer,
+ * spill file or spool segment). Encoding is left to the consumer that actually needs it.
+ */
+public interface RawMessage {
+
+  RawMessage EMPTY = of(ByteBuffer.allocate(0));
+
+  /** A byte range of a file, which can be handed to {@code sendfile} instead of being read. */
+  record FileRange(Path file, long position, long count) {}
+
+  long size();
+
+  InputStream openStream() throws IOException;
+
+  /** Where the bytes sit on disk, or null when they are only in memory. */
+  default FileRange fileRange() throws IOException {
+    return null;
+  }
+
+  /** Base64 of the whole message; allocates roughly 4/3 of {@link #size()}, so only call when needed. */
+  default String toBase64() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, (size() + 2) / 3 * 4));
+    try (InputStream in = openStream(); OutputStream b64 = Base64.getEncoder().wrap(out)) {
+      in.transferTo(b64);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toString(StandardCharsets.US_ASCII);
+  }
+
+  /** Wraps the remaining bytes of the buffer without copying them. */
+  static RawMessage of(ByteBuffer bytes) {
+    return of(bytes, null);
+  }
+
+  /** Like {@link #of(ByteBuffer)}, for a buffer that maps the given file range. */
+  static RawMessage of(ByteBuffer bytes, FileRange range) {
+    ByteBuffer content = bytes.slice();
+    return new RawMessage() {
+      @Override
+      public long size() {
+        return content.remaining();
+      }
+
+      @Override
+      public FileRange fileRange() {
+        return range;
+      }
+
+      @Override
+      public InputStream openStream() {
+        ByteBuffer view = content.duplicate();
+        return new InputStream() {
+          @Override
+          public int read() {
+            return view.hasRemaining() ? view.get() & 0xff : -1;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) {
+            if (!view.hasRemaining()) {
+              return -1;
+            }
+            int n = Math.min(len, view.remaining());
+            view.get(b, off, n);
+            return n;
+          }
+
+          @Override
+          public int available() {
+            return view.remaining();
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,261 @@
+package com.tikrai.mailreceiver.smtp;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a connection or a message is let in, before any DATA is read.
+ *
+ * <p>Connections are checked when accepted against a per-IP and a global session cap and turned
+ * away with 421 (subethasmtp also enforces the global cap as its own {@code maxConnections}). At
+ * MAIL FROM, a per-IP and a per-sender token bucket limit the message rate. Buckets are a single
+ * lock-free timestamp (GCRA); a bucket that has refilled completely carries no state and is
+ * dropped, which keeps the maps bounded by {@code maxTrackedKeys}. A limit of 0 disables that check.
+ *
+ * <p>Once {@link #startDrain()} was called, every new connection and every new transaction in an
+ * open session is answered with 421, and {@link #activeTransactions()} tells when the rest are done.
+ */
+@Component
+public class AdmissionControl {
+
+  private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+  private final int maxSessions;
+  private final int maxSessionsPerIp;
+  private final RateLimiter ipRate;
+  private final RateLimiter senderRate;
+  private final Map<InetAddress, Integer> sessionsByIp = new ConcurrentHashMap<>();
+  private final AtomicInteger activeSessions = new AtomicInteger();
+  private final AtomicInteger activeTransactions = new AtomicInteger();
+  private volatile boolean draining;
+  private final SmtpMetrics metrics;
+
+  public AdmissionControl(
+      @Value("${app.smtp.admission.maxSessions:200}") int maxSessions,
+      @Value("${app.smtp.admission.maxSessionsPerIp:20}") int maxSessionsPerIp,
+      @Value("${app.smtp.admission.ipMessagesPerMinute:120}") int ipMessagesPerMinute,
+      @Value("${app.smtp.admission.ipBurst:20}") int ipBurst,
+      @Value("${app.smtp.admission.senderMessagesPerMinute:60}") int senderMessagesPerMinute,
+      @Value("${app.smtp.admission.senderBurst:10}") int senderBurst,
+      @Value("${app.smtp.admission.maxTrackedKeys:100000}") int maxTrackedKeys,
+      SmtpMetrics metrics,
+      MeterRegistry registry
+  ) {
+    this.metrics = metrics;
+    this.maxSessions = maxSessions;
+    this.maxSessionsPerIp = maxSessionsPerIp;
+    this.ipRate = new RateLimiter(ipMessagesPerMinute, ipBurst, maxTrackedKeys);
+    this.senderRate = new RateLimiter(senderMessagesPerMinute, senderBurst, maxTrackedKeys);
+    log.info("SMTP admission - maxSessions: {}, maxSessionsPerIp: {}, per IP: {}/min (burst {}), per sender: {}/min (burst {})",
+        maxSessions, maxSessionsPerIp, ipMessagesPerMinute, ipBurst, senderMessagesPerMinute, senderBurst);
+    Gauge.builder("smtp.sessions.active", activeSessions, AtomicInteger::get)
+        .description("Open SMTP connections")
+        .register(registry);
+    Gauge.builder("smtp.transactions.active", activeTransactions, AtomicInteger::get)
+        .description("Mail transactions between MAIL FROM and their end")
+        .register(registry);
+  }
+
+  public void startDrain() {
+    draining = true;
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  public void transactionStarted() {
+    activeTransactions.incrementAndGet();
+  }
+
+  public void transactionFinished() {
+    activeTransactions.decrementAndGet();
+  }
+
+  public int activeTransactions() {
+    return activeTransactions.get();
+  }
+
+  /** Global session cap, also applied by {@code SMTPServer.setMaxConnections}. */
+  public int maxSessions() {
+    return maxSessions;
+  }
+
+  /** A server socket whose accepted sockets count against the per-IP session cap until they are closed. */
+  public ServerSocket newServerSocket() throws IOException {
+    return new ServerSocket() {
+      @Override
+      public Socket accept() throws IOException {
+        while (true) {
+          AdmittedSocket socket = new AdmittedSocket();
+          implAccept(socket);
+          if (socket.admit()) {
+            return socket;
+          }
+        }
+      }
+    };
+  }
+
+  /** Returns null when the sender may start a message, otherwise a short reason label. */
+  public String checkMessage(InetAddress ip, String sender) {
+    if (ip != null && !ipRate.tryAcquire(ip)) {
+      return "ip_rate_exceeded";
+    }
+    String key = sender != null ? sender.trim().toLowerCase(Locale.ROOT) : "";
+    if (!key.isEmpty() && !senderRate.tryAcquire(key)) {
+      return "sender_rate_exceeded";
+    }
+    return null;
+  }
+
+  /**
+   * Counts a new session from {@code ip}. Returns null when it may proceed, otherwise the 421 reply to
+   * send before closing; every admitted session is released with {@link #releaseSession}.
+   */
+  public String admitSession(InetAddress ip) {
+    if (draining) {
+      log.debug("SMTP connection refused - shutting down ({})", ip != null ? ip.getHostAddress() : "unknown");
+      metrics.reject("draining");
+      return "421 4.3.2 Service shutting down, try again later";
+    }
+    if (maxSessionsPerIp > 0 && ip != null) {
+      boolean[] counted = new boolean[1];
+      // compute() is atomic per key, so concurrent accepts from one IP cannot overshoot the cap
+      sessionsByIp.compute(ip, (k, n) -> {
+        int current = n != null ? n : 0;
+        if (current >= maxSessionsPerIp) {
+          return n;
+        }
+        counted[0] = true;
+        return current + 1;
+      });
+      if (!counted[0]) {
+        log.warn("SMTP connection refused - too many sessions from {}", ip.getHostAddress());
+        metrics.reject("too_many_sessions_per_ip");
+        return "421 4.7.0 Too many connections from your address, try again later";
+      }
+    }
+    if (activeSessions.incrementAndGet() > maxSessions && maxSessions > 0) {
+      releaseSession(ip);
+      log.warn("SMTP connection refused - {} sessions open", maxSessions);
+      metrics.reject("too_many_sessions");
+      return "421 4.7.0 Too many connections, try again later";
+    }
+    return null;
+  }
+
+  public void releaseSession(InetAddress ip) {
+    activeSessions.decrementAndGet();
+    releaseIp(ip);
+  }
+
+  private void releaseIp(InetAddress ip) {
+    if (maxSessionsPerIp > 0 && ip != null) {
+      sessionsByIp.computeIfPresent(ip, (k, n) -> n > 1 ? n - 1 : null);
+    }
+  }
+
+  private final class AdmittedSocket extends Socket {
+    private final AtomicBoolean open = new AtomicBoolean();
+    private InetAddress ip;
+
+    /** Counts the session, or answers 421 and closes the socket when it is over a cap. */
+    boolean admit() {
+      ip = getInetAddress();
+      String reply = admitSession(ip);
+      if (reply != null) {
+        refuse(reply + "\r\n");
+        return false;
+      }
+      open.set(true);
+      return true;
+    }
+
+    private void refuse(String reply) {
+      try (this) {
+        OutputStream out = getOutputStream();
+        out.write(reply.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+      } catch (IOException e) {
+        log.debug("Failed to send 421 to {}: {}", ip, e.getMessage());
+      }
+    }
+
+    // Not synchronized: open guards the bookkeeping, and a monitor held across close() would pin a virtual thread
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (open.compareAndSet(true, false)) {
+          releaseSession(ip);
+        }
+      }
+    }
+  }
+
+  /** Token buckets keyed by IP or sender, each stored as its theoretical arrival time in nanoseconds. */
+  private static final class RateLimiter {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxKeys;
+    private final Map<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    RateLimiter(int perMinute, int burst, int maxKeys) {
+      this.intervalNanos = perMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / perMinute : 0;
+      this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+      this.maxKeys = maxKeys;
+    }
+
+    boolean tryAcquire(Object key) {
+      if (intervalNanos == 0) {
+        return true;
+      }
+      long now = System.nanoTime();
+      AtomicLong tat = buckets.get(key);
+      if (tat == null) {
+        if (buckets.size() >= maxKeys) {
+          evictIdle(now);
+          if (buckets.size() >= maxKeys) {
+            // Table full of active keys: let the message through rather than block unknown senders
+            return true;
+          }
+        }
+        tat = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+      }
+      while (true) {
+        long current = tat.get();
+        long base = Math.max(current, now);
+        if (base - now > toleranceNanos) {
+          return false;
+        }
+        if (tat.compareAndSet(current, base + intervalNanos)) {
+          return true;
+        }
+      }
+    }
+
+    private void evictIdle(long now) {
+      buckets.entrySet().removeIf(e -> e.getValue().get() - now <= 0);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package com.tikrai.mailreceiver.smtp;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The message body as the {@link java.io.InputStream} that {@code MessageHandler.data} reads, fed
+ * by the session with slices of the received buffers (DATA lines or BDAT chunks). At most
+ * {@code limit} bytes wait here; beyond that {@link #offer} blocks, and with it the socket reads.
+ */
+final class BodyPipe extends InputStream {
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<>();
+  private final long limit;
+  private long buffered;
+  private boolean finished;
+  private boolean closed;
+  private IOException failure;
+
+  BodyPipe(long limit) {
+    this.limit = limit;
+  }
+
+  /** Session: appends {@code chunk}, taking ownership; dropped once the reader has closed the stream. */
+  void offer(ByteBuf chunk) throws IOException {
+    lock.lock();
+    try {
+      while (buffered >= limit && !closed) {
+        changed.await();
+      }
+      if (closed || !chunk.isReadable()) {
+        chunk.release();
+        return;
+      }
+      chunks.add(chunk);
+      buffered += chunk.readableBytes();
+      changed.signalAll();
+    } catch (InterruptedException e) {
+      chunk.release();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while passing message data");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Session: the body is complete, the reader sees end of stream after the queued chunks. */
+  void finish() {
+    lock.lock();
+    try {
+      finished = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Session: the body will not be completed; the reader gets {@code failure} after the queued chunks. */
+  void fail(IOException failure) {
+    lock.lock();
+    try {
+      this.failure = failure;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    lock.lock();
+    try {
+      while (chunks.isEmpty()) {
+        if (closed) {
+          throw new IOException("Stream closed");
+        }
+        if (failure != null) {
+          throw failure;
+        }
+        if (finished) {
+          return -1;
+        }
+        changed.await();
+      }
+      ByteBuf head = chunks.peek();
+      int n = Math.min(len, head.readableBytes());
+      head.readBytes(b, off, n);
+      if (!head.isReadable()) {
+        chunks.poll().release();
+      }
+      buffered -= n;
+      changed.signalAll();
+      return n;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading message data");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int available() {
+    lock.lock();
+    try {
+      return (int) Math.min(Integer.MAX_VALUE, buffered);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Reader side: releases what is queued; later chunks are dropped as they arrive. */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      chunks.forEach(ByteBuf::release);
+      chunks.clear();
+      buffered = 0;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
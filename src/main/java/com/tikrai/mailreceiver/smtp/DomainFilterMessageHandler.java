@@ -1,332 +1,352 @@
 package com.tikrai.mailreceiver.smtp;
 
-import com.tikrai.mailreceiver.forward.ForwardClient;
+import com.tikrai.mailreceiver.filter.FilterChain;
+import com.tikrai.mailreceiver.filter.FilterVerdict;
+import com.tikrai.mailreceiver.forward.DeliveryReport;
+import com.tikrai.mailreceiver.forward.ForwardDispatcher;
+import com.tikrai.mailreceiver.mime.HeaderBlock;
+import com.tikrai.mailreceiver.mime.MimeExtractor;
+import com.tikrai.mailreceiver.mime.ParsedMessage;
 import com.tikrai.mailreceiver.model.IncomingEmailPayload;
-import jakarta.mail.Header;
-import jakarta.mail.Multipart;
-import jakarta.mail.Part;
-import jakarta.mail.Session;
-import jakarta.mail.internet.MimeMessage;
-import jakarta.mail.internet.MimeMultipart;
+import com.tikrai.mailreceiver.spool.SpoolDrainer;
+import com.tikrai.mailreceiver.trace.MessageTrace;
+import com.tikrai.mailreceiver.trace.TraceRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Component;
 import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.time.Instant;
 import java.util.*;
-import java.util.Base64;
 
-@Component
+/**
+ * Handles a single SMTP mail transaction. Instances are created per transaction by
+ * {@link DomainFilterMessageHandlerFactory} and are never shared between sessions.
+ * Each DATA logs one INFO line; the details go to {@link TraceRecorder} under the same id.
+ */
 public class DomainFilterMessageHandler implements MessageHandler {
 
   private static final Logger log = LoggerFactory.getLogger(DomainFilterMessageHandler.class);
 
-  private final String acceptedDomain;
-  private final ForwardClient forwardClient;
+  private static final ParsedMessage EMPTY = new ParsedMessage("", Map.of(), "", "");
+
+  // Header sections beyond this are filtered on their first part
+  private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+  private final RecipientValidator recipientValidator;
+  private final ForwardDispatcher forwardDispatcher;
+  private final MessageBufferPool bufferPool;
+  private final MimeExtractor mimeExtractor;
+  private final SpoolDrainer spoolDrainer;
+  private final AdmissionControl admission;
+  private final FilterChain filters;
+  private final SmtpMetrics metrics;
+  private final TraceRecorder traces;
+  private final InetAddress remoteIp;
+  private final String remoteAddress;
 
   private String mailFrom;
   private final List<String> rcptTo = new ArrayList<>();
+  private MessageBuffer buffer;
+  private boolean inTransaction;
+  // Set at MAIL FROM when a filter drops the message: DATA is read and discarded
+  private FilterVerdict dropped;
+
+  // Filled in by receive() for the trace of the current DATA
+  private ParsedMessage parsed;
+  private long parseNanos;
+  private long dataSize;
+  private boolean spilled;
+  private String outcome;
+  private DeliveryReport report;
 
-  public DomainFilterMessageHandler(
-      org.springframework.core.env.Environment env,
-      ForwardClient forwardClient
+  DomainFilterMessageHandler(
+      RecipientValidator recipientValidator,
+      ForwardDispatcher forwardDispatcher,
+      MessageBufferPool bufferPool,
+      MimeExtractor mimeExtractor,
+      SpoolDrainer spoolDrainer,
+      AdmissionControl admission,
+      FilterChain filters,
+      SmtpMetrics metrics,
+      TraceRecorder traces,
+      InetAddress remoteIp,
+      String remoteAddress
   ) {
-    this.acceptedDomain = Objects.requireNonNull(env.getProperty("app.smtp.acceptedDomain", "tikrai.com"));
-    this.forwardClient = forwardClient;
+    this.recipientValidator = recipientValidator;
+    this.forwardDispatcher = forwardDispatcher;
+    this.bufferPool = bufferPool;
+    this.mimeExtractor = mimeExtractor;
+    this.spoolDrainer = spoolDrainer;
+    this.admission = admission;
+    this.filters = filters;
+    this.metrics = metrics;
+    this.traces = traces;
+    this.remoteIp = remoteIp;
+    this.remoteAddress = remoteAddress;
   }
 
   @Override
   public void from(String from) throws RejectException {
-    this.mailFrom = from;
-    log.info("SMTP MAIL FROM: {}", from);
+    long start = System.nanoTime();
+    try {
+      log.debug("SMTP MAIL FROM: {} (remote: {})", from, remoteAddress);
+      if (admission.isDraining()) {
+        metrics.reject("draining");
+        throw new RejectException(421, "4.3.2 Service shutting down, try again later");
+      }
+      String refused = admission.checkMessage(remoteIp, from);
+      if (refused != null) {
+        log.warn("SMTP MAIL FROM rejected - {} - FROM: {} (remote: {})", refused, from, remoteAddress);
+        metrics.reject(refused);
+        throw new RejectException(450, "4.7.1 Rate limit exceeded, try again later");
+      }
+      FilterVerdict verdict = filters.envelope(remoteIp, from);
+      if (verdict.action() == FilterVerdict.Action.REJECT) {
+        log.warn("SMTP MAIL FROM rejected - filter rule {} - FROM: {} (remote: {})", verdict.rule(), from, remoteAddress);
+        metrics.reject("filter");
+        throw new RejectException(550, "5.7.1 Sender rejected by policy");
+      }
+      dropped = verdict.action() == FilterVerdict.Action.DROP ? verdict : null;
+      this.mailFrom = from;
+      if (!inTransaction) {
+        inTransaction = true;
+        admission.transactionStarted();
+      }
+    } finally {
+      metrics.recordFrom(start);
+    }
   }
 
   @Override
   public void recipient(String recipient) throws RejectException {
-    String r = recipient.trim().toLowerCase(Locale.ROOT);
-    log.info("SMTP RCPT TO: {}", r);
-    if (!r.endsWith("@" + acceptedDomain)) {
-      log.warn("SMTP RCPT TO rejected - not ending with @{}: {}", acceptedDomain, r);
-      throw new RejectException(550, "Relaying denied");
+    long start = System.nanoTime();
+    try {
+      String r = recipient.trim().toLowerCase(Locale.ROOT);
+      log.debug("SMTP RCPT TO: {}", r);
+      switch (recipientValidator.check(r)) {
+        case RELAY_DENIED -> {
+          log.warn("SMTP RCPT TO rejected - not an accepted domain: {}", r);
+          metrics.reject("relay_denied");
+          throw new RejectException(550, "Relaying denied");
+        }
+        case UNKNOWN_MAILBOX -> {
+          log.warn("SMTP RCPT TO rejected - unknown mailbox: {}", r);
+          metrics.reject("unknown_mailbox");
+          throw new RejectException(550, "5.1.1 Mailbox unavailable");
+        }
+        case ACCEPT -> { }
+      }
+      rcptTo.add(r);
+      log.debug("SMTP RCPT TO accepted: {}", r);
+    } finally {
+      metrics.recordRecipient(start);
     }
-    rcptTo.add(r);
-    log.debug("SMTP RCPT TO accepted: {}", r);
   }
 
   @Override
   public void data(InputStream data) throws RejectException {
-    String subject = "";
-    Map<String, List<String>> headers = new LinkedHashMap<>();
-    BodyParts bodies = new BodyParts("", "");
-    String rawB64 = "";
-    
+    long start = System.nanoTime();
+    Instant receivedAt = Instant.now();
+    String id = traces.newId();
+    int replyCode = 250;
+    parsed = EMPTY;
+    parseNanos = 0;
+    dataSize = 0;
+    spilled = false;
+    outcome = null;
+    report = null;
     try {
-      log.info("SMTP DATA received - FROM: {}, TO: {}", mailFrom, rcptTo);
-      byte[] rawBytes = data.readAllBytes();
-      log.debug("SMTP DATA size: {} bytes", rawBytes.length);
-      rawB64 = Base64.getEncoder().encodeToString(rawBytes);
-
-      Session session = Session.getInstance(new Properties());
-      MimeMessage msg = new MimeMessage(session, new java.io.ByteArrayInputStream(rawBytes));
-
-      try {
-        subject = Optional.ofNullable(msg.getSubject()).orElse("");
-        log.info("SMTP EMAIL SUBJECT: {}", subject);
-      } catch (Exception e) {
-        log.warn("Failed to extract subject, using empty string: {}", e.getMessage());
-      }
+      receive(data);
+    } catch (RejectException e) {
+      replyCode = e.getCode();
+      throw e;
+    } catch (RuntimeException e) {
+      replyCode = 451;
+      outcome = "error";
+      throw e;
+    } finally {
+      metrics.recordData(start);
+      trace(id, receivedAt, start, replyCode);
+    }
+  }
 
+  private void receive(InputStream data) throws RejectException {
+    buffer = bufferPool.acquire();
+    InputStream captured = buffer.capture(data);
+    InputStream message = captured;
+    FilterVerdict verdict = dropped != null ? dropped : FilterVerdict.PASS;
+    if (verdict.passed()) {
+      // Header rules run on the header section alone, before the body is read or parsed
       try {
-        @SuppressWarnings("unchecked")
-        Enumeration<Header> allHeaders = msg.getAllHeaders();
-        while (allHeaders.hasMoreElements()) {
-          Header h = allHeaders.nextElement();
-          headers.computeIfAbsent(h.getName(), k -> new ArrayList<>()).add(h.getValue());
-        }
-        log.debug("SMTP EMAIL HEADERS: {}", headers.keySet());
-      } catch (Exception e) {
-        log.warn("Failed to extract headers, using empty map: {}", e.getMessage());
-      }
-
-      try {
-        log.info("SMTP EMAIL Content-Type: {}", msg.getContentType());
-        bodies = extractBodies(msg, rawBytes);
-        log.info("SMTP EMAIL BODY EXTRACTED - text length: {}, html length: {}", 
-            bodies.text != null ? bodies.text.length() : 0,
-            bodies.html != null ? bodies.html.length() : 0);
-        if (bodies.text != null && !bodies.text.isEmpty()) {
-          log.info("SMTP EMAIL TEXT preview (first 200 chars): {}", 
-              bodies.text.substring(0, Math.min(200, bodies.text.length())));
-        } else {
-          log.warn("SMTP EMAIL TEXT is EMPTY or NULL");
-        }
-        if (bodies.html != null && !bodies.html.isEmpty()) {
-          log.info("SMTP EMAIL HTML preview (first 200 chars): {}", 
-              bodies.html.substring(0, Math.min(200, bodies.html.length())));
-        } else {
-          log.warn("SMTP EMAIL HTML is EMPTY or NULL");
-        }
-      } catch (Exception e) {
-        log.warn("Failed to extract body parts, using empty strings: {}", e.getMessage());
-        bodies = new BodyParts("", "");
+        HeaderBlock headers = HeaderBlock.read(captured, MAX_HEADER_BYTES);
+        parsed = new ParsedMessage(headers.subject(), Map.of(), "", "");
+        verdict = filters.headers(headers);
+        message = headers.replay(captured);
+      } catch (TooMuchDataException e) {
+        throw rejectOversized(data);
+      } catch (IOException e) {
+        log.error("Failed to read email headers - FROM: {}, TO: {}, ERROR: {}", mailFrom, rcptTo, e.getMessage());
+        reject("read_error");
+        throw new RejectException(451, "4.3.0 Failed to read message data");
       }
+    }
+    if (verdict.action() == FilterVerdict.Action.REJECT) {
+      discardRest(data);
+      log.warn("SMTP DATA rejected - filter rule {} - FROM: {}, TO: {}", verdict.rule(), mailFrom, rcptTo);
+      reject("filter");
+      throw new RejectException(554, "5.7.1 Message rejected by policy");
+    }
+    if (verdict.action() == FilterVerdict.Action.DROP) {
+      // Accepted so the sender does not retry, but never forwarded
+      discardRest(data);
+      log.info("SMTP message dropped - filter rule {} - FROM: {}, TO: {}", verdict.rule(), mailFrom, rcptTo);
+      outcome = "dropped";
+      return;
+    }
 
+    try {
+      long parseStart = System.nanoTime();
+      parsed = mimeExtractor.extract(message);
+      parseNanos = System.nanoTime() - parseStart;
+      metrics.recordMimeParse(parseStart);
+    } catch (TooMuchDataException e) {
+      throw rejectOversized(data);
     } catch (Exception e) {
       log.error("Failed to read or parse email data - FROM: {}, TO: {}, ERROR: {}", 
           mailFrom, rcptTo, e.getMessage(), e);
       // Continue with empty data - we'll still try to forward
     }
 
+    try {
+      // The extractor may stop before the end of DATA; keep the raw copy complete
+      captured.transferTo(OutputStream.nullOutputStream());
+      dataSize = buffer.size();
+      spilled = buffer.isSpilled();
+      metrics.recordDataSize(dataSize);
+    } catch (TooMuchDataException e) {
+      throw rejectOversized(data);
+    } catch (Exception e) {
+      log.error("Failed to read email data - FROM: {}, TO: {}, ERROR: {}", 
+          mailFrom, rcptTo, e.getMessage(), e);
+      // The message did not arrive whole (connection lost, BDAT transaction aborted); never forward a part
+      reject("read_error");
+      throw new RejectException(451, "4.3.0 Failed to read message data");
+    }
+
     // Create payload with whatever we managed to extract
     IncomingEmailPayload payload = new IncomingEmailPayload(
         Optional.ofNullable(mailFrom).orElse(""),
         List.copyOf(rcptTo),
-        subject,
-        bodies.text != null ? bodies.text : "",
-        bodies.html != null ? bodies.html : "",
-        headers,
-        rawB64
+        parsed.subject(),
+        parsed.textBody(),
+        parsed.htmlBody(),
+        parsed.headers(),
+        parsed.attachments(),
+        buffer,
+        null
     );
 
+    // With the spool enabled, 250 is returned once the message is on disk; the drainer forwards it
+    if (spoolDrainer.isEnabled()) {
+      try {
+        spoolDrainer.accept(payload);
+        outcome = "spooled";
+        return;
+      } catch (Exception e) {
+        log.error("Failed to spool email - FROM: {}, TO: {}, ERROR: {}",
+            mailFrom, rcptTo, e.getMessage(), e);
+        reject("spool_error");
+        throw new RejectException(451, "Processing error");
+      }
+    }
+
     // Forward is the critical operation - only throw 451 if this fails
     try {
-      log.info("Forwarding email - FROM: {}, TO: {}, SUBJECT: {}", mailFrom, rcptTo, subject);
-      forwardClient.forward(payload);
-      log.info("Email forwarded successfully - FROM: {}, TO: {}", mailFrom, rcptTo);
+      report = forwardDispatcher.forward(payload);
     } catch (Exception e) {
       log.error("Failed to forward email - FROM: {}, TO: {}, ERROR: {}", 
           mailFrom, rcptTo, e.getMessage(), e);
+      reject("forward_error");
       throw new RejectException(451, "Processing error");
     }
+    if (report.isComplete()) {
+      outcome = "forwarded";
+      return;
+    }
+    if (report.isBusy()) {
+      log.warn("Forward pipeline saturated, deferring email - FROM: {}, TO: {}", mailFrom, rcptTo);
+      reject("server_busy");
+      throw new RejectException(451, "Server busy, try again later");
+    }
+    // SMTP has a single reply for DATA; without the spool the sender has to retry every recipient
+    report.failed().forEach((rcpt, e) -> log.error("Failed to forward email - FROM: {}, TO: {}, ERROR: {}",
+        mailFrom, rcpt, e.getMessage()));
+    log.warn("Email forwarded to {} of {} recipients - FROM: {}, delivered: {}",
+        report.delivered().size(), rcptTo.size(), mailFrom, report.delivered());
+    reject("forward_error");
+    throw new RejectException(451, "Processing error");
   }
 
-  @Override
-  public void done() {
-    log.debug("SMTP transaction done - clearing FROM: {}, TO: {}", mailFrom, rcptTo);
-    mailFrom = null;
-    rcptTo.clear();
+  // The server only drains DATA after a normal return, so read the rest before rejecting
+  private RejectException rejectOversized(InputStream data) {
+    discardRest(data);
+    log.warn("SMTP DATA rejected - message too large - FROM: {}, TO: {}", mailFrom, rcptTo);
+    reject("message_too_large");
+    return new RejectException(552, "5.3.4 Message size exceeds fixed limit");
   }
 
-  private static class BodyParts {
-    final String text;
-    final String html;
-    BodyParts(String text, String html) { this.text = text; this.html = html; }
+  /** Reads DATA to its end without keeping it, and drops the partial copy (and its spill file) now. */
+  private void discardRest(InputStream data) {
+    long rest = 0;
+    try {
+      rest = data.transferTo(OutputStream.nullOutputStream());
+    } catch (IOException e) {
+      log.debug("Failed to drain DATA: {}", e.getMessage());
+    }
+    // The client may keep the session open
+    dataSize = buffer.size() + rest;
+    bufferPool.release(buffer);
+    buffer = null;
   }
 
-  private static BodyParts extractBodies(Part part) throws Exception {
-    return extractBodies(part, null);
+  private void reject(String reason) {
+    outcome = reason;
+    metrics.reject(reason);
   }
-  
-  private static BodyParts extractBodies(Part part, byte[] rawBytes) throws Exception {
-    String text = null;
-    String html = null;
 
-    try {
-      String contentType = part.getContentType();
-      log.info("Extracting body from part with Content-Type: {}", contentType);
-      
-      if (part.isMimeType("text/plain")) {
-        Object content = part.getContent();
-        log.info("Found text/plain part, content type: {}", content != null ? content.getClass() : "null");
-        if (content instanceof String) {
-          text = (String) content;
-        } else if (content instanceof InputStream) {
-          text = new String(((InputStream) content).readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
-        } else {
-          text = Objects.toString(content, "");
-        }
-        log.info("Extracted text/plain: {} chars", text != null ? text.length() : 0);
-        if (text != null && !text.isEmpty() && text.length() < 500) {
-          log.info("Text content preview: {}", text.substring(0, Math.min(200, text.length())));
-        }
-      } else if (part.isMimeType("text/html")) {
-        Object content = part.getContent();
-        log.info("Found text/html part, content type: {}", content != null ? content.getClass() : "null");
-        if (content instanceof String) {
-          html = (String) content;
-        } else if (content instanceof InputStream) {
-          html = new String(((InputStream) content).readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
-        } else {
-          html = Objects.toString(content, "");
-        }
-        log.info("Extracted text/html: {} chars", html != null ? html.length() : 0);
-        if (html != null && !html.isEmpty() && html.length() < 500) {
-          log.info("HTML content preview: {}", html.substring(0, Math.min(200, html.length())));
-        }
-      } else if (part.isMimeType("multipart/*")) {
-        log.info("Found multipart/*, extracting sub-parts, Content-Type: {}", contentType);
-        Multipart mp = null;
-        try {
-          // First, try to get content directly using getContent() - but catch ClassCastException
-          try {
-            Object content = part.getContent();
-            log.info("getContent() returned: {}", content != null ? content.getClass().getName() : "null");
-            if (content instanceof MimeMultipart) {
-              mp = (MimeMultipart) content;
-              log.info("Successfully got MimeMultipart from getContent()");
-            } else if (content instanceof Multipart) {
-              mp = (Multipart) content;
-              log.info("Successfully got Multipart from getContent()");
-            } else {
-              log.warn("getContent() returned unexpected type: {}", content != null ? content.getClass().getName() : "null");
-            }
-          } catch (ClassCastException e) {
-            log.warn("ClassCastException getting multipart content (Jakarta Activation conflict), trying alternative method: {}", e.getMessage());
-            // Alternative: use InputStream directly to create MimeMultipart
-            try {
-              if (part instanceof MimeMessage) {
-                // For MimeMessage, try to get the multipart from the message's input stream
-                log.info("Attempting to create MimeMultipart from MimeMessage InputStream");
-                MimeMessage mimeMsg = (MimeMessage) part;
-                try (java.io.InputStream is = mimeMsg.getInputStream()) {
-                  // Create a new MimeMultipart from the content type and input stream
-                  String ct = mimeMsg.getContentType();
-                  if (ct != null && ct.toLowerCase().startsWith("multipart/")) {
-                    mp = new MimeMultipart(new jakarta.mail.util.ByteArrayDataSource(
-                        is.readAllBytes(), ct));
-                    log.info("Successfully created MimeMultipart from InputStream");
-                  }
-                }
-              } else if (part instanceof jakarta.mail.internet.MimeBodyPart) {
-                // For MimeBodyPart, try to get the multipart from the body part's input stream
-                log.info("Attempting to create MimeMultipart from MimeBodyPart InputStream");
-                jakarta.mail.internet.MimeBodyPart mimePart = (jakarta.mail.internet.MimeBodyPart) part;
-                try (java.io.InputStream is = mimePart.getInputStream()) {
-                  String ct = mimePart.getContentType();
-                  if (ct != null && ct.toLowerCase().startsWith("multipart/")) {
-                    mp = new MimeMultipart(new jakarta.mail.util.ByteArrayDataSource(
-                        is.readAllBytes(), ct));
-                    log.info("Successfully created MimeMultipart from MimeBodyPart InputStream");
-                  }
-                }
-              }
-            } catch (Exception e2) {
-              log.error("Failed to create MimeMultipart from InputStream: {}", e2.getMessage(), e2);
-              // Last resort: if we have raw bytes and part is MimeMessage, try parsing from scratch
-              if (rawBytes != null && part instanceof MimeMessage) {
-                try {
-                  log.info("Last resort: attempting to parse MimeMessage from raw bytes with new Session");
-                  Session session = Session.getInstance(new Properties());
-                  MimeMessage rawMsg = new MimeMessage(session, new java.io.ByteArrayInputStream(rawBytes));
-                  // Try to get multipart without using getContent() - use getInputStream() instead
-                  try (java.io.InputStream rawIs = rawMsg.getInputStream()) {
-                    String rawCt = rawMsg.getContentType();
-                    if (rawCt != null && rawCt.toLowerCase().startsWith("multipart/")) {
-                      mp = new MimeMultipart(new jakarta.mail.util.ByteArrayDataSource(
-                          rawIs.readAllBytes(), rawCt));
-                      log.info("Successfully created MimeMultipart from raw bytes InputStream");
-                    }
-                  }
-                } catch (Exception e3) {
-                  log.error("Failed to parse multipart from raw bytes InputStream: {}", e3.getMessage(), e3);
-                }
-              }
-            }
-          } catch (Exception e) {
-            log.warn("Exception getting multipart content: {}", e.getMessage(), e);
-          }
-        } catch (Exception e) {
-          log.error("Unexpected exception getting multipart content: {}", e.getMessage(), e);
-        }
-        
-        if (mp != null) {
-          log.info("Multipart has {} parts", mp.getCount());
-          for (int i = 0; i < mp.getCount(); i++) {
-            try {
-              Part bodyPart = mp.getBodyPart(i);
-              String partContentType = bodyPart.getContentType();
-              log.info("Processing multipart part {} of {} - Content-Type: {}", i + 1, mp.getCount(), partContentType);
-              
-              // Pass rawBytes recursively so nested multiparts can be parsed
-              BodyParts bp = extractBodies(bodyPart, rawBytes);
-              
-              if (text == null && bp.text != null && !bp.text.isEmpty()) {
-                text = bp.text;
-                log.info("Found text from multipart part {}: {} chars", i + 1, text.length());
-              }
-              if (html == null && bp.html != null && !bp.html.isEmpty()) {
-                html = bp.html;
-                log.info("Found html from multipart part {}: {} chars", i + 1, html.length());
-              }
-            } catch (Exception e) {
-              log.error("Error extracting body from multipart part {}: {}", i + 1, e.getMessage(), e);
-            }
-          }
-        } else {
-          log.error("Could not extract multipart content from part with Content-Type: {}", contentType);
-        }
-      } else {
-        log.info("Skipping part with MIME type: {} (not text/plain, text/html, or multipart/*)", contentType);
-      }
-    } catch (ClassCastException e) {
-      log.error("ClassCastException while extracting body from part with MIME type: {}, error: {}", 
-          part.getContentType(), e.getMessage(), e);
-      // Return empty bodies if we can't parse
-    } catch (Exception e) {
-      log.error("Exception while extracting body from part with MIME type: {}, error: {}", 
-          part.getContentType(), e.getMessage(), e);
+  private void trace(String id, Instant receivedAt, long startNanos, int replyCode) {
+    double totalMillis = (System.nanoTime() - startNanos) / 1e6;
+    Map<String, String> failed = new LinkedHashMap<>();
+    if (report != null) {
+      report.failed().forEach((rcpt, e) -> failed.put(rcpt, String.valueOf(e.getMessage())));
     }
-    
-    return new BodyParts(
-        text != null ? text : "",
-        html != null ? html : ""
-    );
+    traces.record(new MessageTrace(id, receivedAt, remoteAddress, mailFrom, List.copyOf(rcptTo),
+        parsed.subject(), dataSize, spilled, parsed.headers().size(),
+        parsed.textBody().length(), parsed.htmlBody().length(), parseNanos / 1e6, totalMillis,
+        outcome, replyCode, report != null ? report.delivered() : List.of(), failed));
+    log.info("SMTP message {} - {} {} - FROM: {}, TO: {}, size: {} bytes, {} ms",
+        id, replyCode, outcome, mailFrom, rcptTo, dataSize, Math.round(totalMillis));
   }
-  
-  private static String extractBoundary(String contentType) {
-    if (contentType == null) return null;
-    int idx = contentType.indexOf("boundary=");
-    if (idx == -1) return null;
-    String boundary = contentType.substring(idx + "boundary=".length());
-    // Remove quotes if present
-    if (boundary.startsWith("\"")) {
-      boundary = boundary.substring(1);
-    }
-    if (boundary.endsWith("\"")) {
-      boundary = boundary.substring(0, boundary.length() - 1);
+
+  @Override
+  public void done() {
+    long start = System.nanoTime();
+    log.debug("SMTP transaction done - clearing FROM: {}, TO: {}", mailFrom, rcptTo);
+    mailFrom = null;
+    rcptTo.clear();
+    dropped = null;
+    bufferPool.release(buffer);
+    buffer = null;
+    if (inTransaction) {
+      inTransaction = false;
+      admission.transactionFinished();
     }
-    return boundary.trim();
+    metrics.recordDone(start);
   }
 }
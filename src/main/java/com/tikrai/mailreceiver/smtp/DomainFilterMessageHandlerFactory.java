@@ -0,0 +1,82 @@
+package com.tikrai.mailreceiver.smtp;
+
+import com.tikrai.mailreceiver.blob.BlobStore;
+import com.tikrai.mailreceiver.filter.FilterChain;
+import com.tikrai.mailreceiver.forward.ForwardDispatcher;
+import com.tikrai.mailreceiver.mime.LegacyMimeExtractor;
+import com.tikrai.mailreceiver.mime.MimeExtractor;
+import com.tikrai.mailreceiver.mime.StreamingMimeExtractor;
+import com.tikrai.mailreceiver.spool.SpoolDrainer;
+import com.tikrai.mailreceiver.trace.TraceRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Creates a fresh {@link DomainFilterMessageHandler} for every mail transaction so that
+ * concurrent sessions never share envelope state.
+ */
+@Component
+public class DomainFilterMessageHandlerFactory implements MessageHandlerFactory {
+
+  private static final Logger log = LoggerFactory.getLogger(DomainFilterMessageHandlerFactory.class);
+
+  private final RecipientValidator recipientValidator;
+  private final ForwardDispatcher forwardDispatcher;
+  private final MessageBufferPool bufferPool;
+  private final MimeExtractor mimeExtractor;
+  private final SpoolDrainer spoolDrainer;
+  private final AdmissionControl admission;
+  private final FilterChain filters;
+  private final SmtpMetrics metrics;
+  private final TraceRecorder traces;
+
+  public DomainFilterMessageHandlerFactory(
+      org.springframework.core.env.Environment env,
+      RecipientValidator recipientValidator,
+      ForwardDispatcher forwardDispatcher,
+      MessageBufferPool bufferPool,
+      SpoolDrainer spoolDrainer,
+      AdmissionControl admission,
+      FilterChain filters,
+      SmtpMetrics metrics,
+      TraceRecorder traces,
+      BlobStore blobStore
+  ) {
+    this.recipientValidator = recipientValidator;
+    this.forwardDispatcher = forwardDispatcher;
+    this.bufferPool = bufferPool;
+    this.spoolDrainer = spoolDrainer;
+    this.admission = admission;
+    this.filters = filters;
+    this.metrics = metrics;
+    this.traces = traces;
+
+    String parser = env.getProperty("app.mime.parser", "streaming");
+    this.mimeExtractor = "legacy".equalsIgnoreCase(parser)
+        ? new LegacyMimeExtractor()
+        : new StreamingMimeExtractor(blobStore.isEnabled() ? blobStore : null);
+    log.info("MIME parser: {}, attachments: {}", mimeExtractor.getClass().getSimpleName(),
+        blobStore.isEnabled() && mimeExtractor instanceof StreamingMimeExtractor ? "blob store" : "skipped");
+  }
+
+  @Override
+  public MessageHandler create(MessageContext ctx) {
+    Object remote = ctx != null ? ctx.getRemoteAddress() : null;
+    return create(remote instanceof InetSocketAddress isa ? isa : null);
+  }
+
+  /** Handler for a transaction from {@code remote}, for front ends that have no {@link MessageContext}. */
+  public MessageHandler create(InetSocketAddress remote) {
+    log.debug("SMTP NEW TRANSACTION - RemoteAddress: {}", remote != null ? remote : "unknown");
+    InetAddress ip = remote != null ? remote.getAddress() : null;
+    return new DomainFilterMessageHandler(recipientValidator, forwardDispatcher, bufferPool, mimeExtractor,
+        spoolDrainer, admission, filters, metrics, traces, ip, remote != null ? String.valueOf(remote) : "unknown");
+  }
+}
@@ -0,0 +1,126 @@
+package com.tikrai.mailreceiver.smtp;
+
+import com.tikrai.mailreceiver.forward.BatchForwarder;
+import com.tikrai.mailreceiver.forward.ForwardDispatcher;
+import com.tikrai.mailreceiver.spool.SpoolDrainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets in-progress mail finish before the SMTP server stops. On shutdown, before any other
+ * lifecycle bean stops, it marks the instance not ready ({@code /actuator/health/readiness}), waits
+ * {@code app.shutdown.readinessGraceMs} for load balancers to notice, then answers new connections
+ * and transactions with 421 and waits up to {@code app.shutdown.drainTimeoutMs} for open
+ * transactions and forwards to complete, logging what is left every second.
+ */
+@Component
+public class GracefulDrain implements SmartLifecycle {
+
+  private static final Logger log = LoggerFactory.getLogger(GracefulDrain.class);
+
+  private final AdmissionControl admission;
+  private final ForwardDispatcher forwardDispatcher;
+  private final BatchForwarder batchForwarder;
+  private final SpoolDrainer spoolDrainer;
+  private final ApplicationEventPublisher events;
+  private final long readinessGraceMs;
+  private final long drainTimeoutMs;
+  private volatile boolean running;
+
+  public GracefulDrain(
+      AdmissionControl admission,
+      ForwardDispatcher forwardDispatcher,
+      BatchForwarder batchForwarder,
+      SpoolDrainer spoolDrainer,
+      ApplicationEventPublisher events,
+      @Value("${app.shutdown.readinessGraceMs:10000}") long readinessGraceMs,
+      @Value("${app.shutdown.drainTimeoutMs:30000}") long drainTimeoutMs
+  ) {
+    this.admission = admission;
+    this.forwardDispatcher = forwardDispatcher;
+    this.batchForwarder = batchForwarder;
+    this.spoolDrainer = spoolDrainer;
+    this.events = events;
+    this.readinessGraceMs = readinessGraceMs;
+    this.drainTimeoutMs = drainTimeoutMs;
+  }
+
+  @Override
+  public void start() {
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    long start = System.nanoTime();
+    log.info("Draining - readiness down, transactions: {}, forwards in flight: {}, queued: {}",
+        admission.activeTransactions(), forwardDispatcher.inFlight(), queued());
+    AvailabilityChangeEvent.publish(events, this, ReadinessState.REFUSING_TRAFFIC);
+    if (!sleep(readinessGraceMs)) {
+      return;
+    }
+
+    admission.startDrain();
+    // Spooled entries not handed out yet stay on disk and are replayed after the restart
+    spoolDrainer.close();
+
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(readinessGraceMs + drainTimeoutMs);
+    long nextReport = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    while (true) {
+      int transactions = admission.activeTransactions();
+      int inFlight = forwardDispatcher.inFlight();
+      int queued = queued();
+      long now = System.nanoTime();
+      if (transactions == 0 && inFlight == 0 && queued == 0) {
+        log.info("Drain complete in {} ms", TimeUnit.NANOSECONDS.toMillis(now - start));
+        return;
+      }
+      if (now - deadline >= 0) {
+        log.warn("Drain timed out after {} ms - cutting off transactions: {}, forwards in flight: {}, queued: {}",
+            TimeUnit.NANOSECONDS.toMillis(now - start), transactions, inFlight, queued);
+        return;
+      }
+      if (now - nextReport >= 0) {
+        log.info("Draining - transactions: {}, forwards in flight: {}, queued: {}", transactions, inFlight, queued);
+        nextReport = now + TimeUnit.SECONDS.toNanos(1);
+      }
+      if (!sleep(50)) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** Stop first, while the SMTP server, forward client and actuator are all still up. */
+  @Override
+  public int getPhase() {
+    return SmartLifecycle.DEFAULT_PHASE;
+  }
+
+  private int queued() {
+    return forwardDispatcher.queued() + batchForwarder.pending();
+  }
+
+  private static boolean sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package com.tikrai.mailreceiver.smtp;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bytes received on one connection, handed from the event loop to the blocking session thread.
+ *
+ * <p>The event loop {@link #offer}s each buffer it reads and asks for the next one only while less
+ * than {@code highWater} bytes wait here, so a slow handler throttles the socket instead of
+ * growing the heap. Reads hand out retained slices of the received buffers rather than copies.
+ * A {@link ReentrantLock} rather than {@code synchronized}, so waiting does not pin a virtual thread.
+ */
+final class InboundQueue {
+
+  /** A command line longer than the limit; the line has been consumed. */
+  static final class LineTooLongException extends IOException {
+    LineTooLongException(int max) {
+      super("Line longer than " + max + " bytes");
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition arrived = lock.newCondition();
+  private final ArrayDeque<ByteBuf> buffers = new ArrayDeque<>();
+  private final int highWater;
+  private final long timeoutNanos;
+  private final Runnable beforeWait;
+  private Runnable requestMore = () -> {};
+  private long readable;
+  private boolean ended;
+  private boolean disposed;
+  private boolean paused;
+
+  /**
+   * @param beforeWait called before the session blocks for input, e.g. to flush pipelined replies
+   */
+  InboundQueue(int highWater, long timeoutMs, Runnable beforeWait) {
+    this.highWater = highWater;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    this.beforeWait = beforeWait;
+  }
+
+  void onDemand(Runnable requestMore) {
+    this.requestMore = requestMore;
+  }
+
+  /** Event loop: takes ownership of {@code buf}, and asks for more unless the session is behind. */
+  void offer(ByteBuf buf) {
+    boolean more;
+    lock.lock();
+    try {
+      if (disposed) {
+        buf.release();
+        return;
+      }
+      if (buf.isReadable()) {
+        buffers.add(buf);
+        readable += buf.readableBytes();
+        arrived.signalAll();
+      } else {
+        buf.release();
+      }
+      more = readable < highWater;
+      paused = !more;
+    } finally {
+      lock.unlock();
+    }
+    if (more) {
+      requestMore.run();
+    }
+  }
+
+  /** Event loop: no more input; what is queued can still be read. */
+  void end() {
+    lock.lock();
+    try {
+      ended = true;
+      arrived.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isEmpty() {
+    lock.lock();
+    try {
+      return readable == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The line without its CRLF (or bare LF), null at end of input. */
+  String readLine(int max) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    boolean tooLong = false;
+    lock.lock();
+    try {
+      while (true) {
+        if (!await(0)) {
+          return null;
+        }
+        ByteBuf head = buffers.peek();
+        int lf = head.bytesBefore((byte) '\n');
+        int take = lf >= 0 ? lf + 1 : head.readableBytes();
+        if (!tooLong && line.size() + take <= max + 2) {
+          head.readBytes(line, take);
+        } else {
+          tooLong = true;
+          head.skipBytes(take);
+        }
+        consumed(head, take);
+        if (lf >= 0) {
+          break;
+        }
+      }
+    } finally {
+      unlockAndResume();
+    }
+    if (tooLong) {
+      throw new LineTooLongException(max);
+    }
+    byte[] bytes = line.toByteArray();
+    int end = bytes.length - 1;
+    if (end > 0 && bytes[end - 1] == '\r') {
+      end--;
+    }
+    return new String(bytes, 0, end, StandardCharsets.UTF_8);
+  }
+
+  /** The byte at {@code index} from the read position without consuming it, -1 at end of input. */
+  int peek(int index) throws IOException {
+    lock.lock();
+    try {
+      if (!await(index)) {
+        return -1;
+      }
+      for (ByteBuf buf : buffers) {
+        if (index < buf.readableBytes()) {
+          return buf.getUnsignedByte(buf.readerIndex() + index);
+        }
+        index -= buf.readableBytes();
+      }
+      return -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Consumes bytes already seen with {@link #peek}. */
+  void skip(int n) throws IOException {
+    lock.lock();
+    try {
+      while (n > 0) {
+        if (!await(0)) {
+          return;
+        }
+        ByteBuf head = buffers.peek();
+        int take = Math.min(n, head.readableBytes());
+        head.skipBytes(take);
+        consumed(head, take);
+        n -= take;
+      }
+    } finally {
+      unlockAndResume();
+    }
+  }
+
+  /**
+   * A retained slice of at most {@code max} bytes from the first queued buffer, null at end of input.
+   * With {@code stopBeforeDot}, the slice ends after the first LF that is followed by a '.', so that a
+   * DATA line starting with a dot always begins a new slice.
+   */
+  ByteBuf readSlice(long max, boolean stopBeforeDot) throws IOException {
+    lock.lock();
+    try {
+      if (!await(0)) {
+        return null;
+      }
+      ByteBuf head = buffers.peek();
+      int start = head.readerIndex();
+      int end = start + (int) Math.min(max, head.readableBytes());
+      int cut = end;
+      if (stopBeforeDot) {
+        for (int lf = head.indexOf(start, end, (byte) '\n'); lf >= 0 && lf < end - 1;
+             lf = head.indexOf(lf + 1, end, (byte) '\n')) {
+          if (head.getByte(lf + 1) == '.') {
+            cut = lf + 1;
+            break;
+          }
+        }
+      }
+      ByteBuf slice = head.readRetainedSlice(cut - start);
+      consumed(head, cut - start);
+      return slice;
+    } finally {
+      unlockAndResume();
+    }
+  }
+
+  /** Drops what is queued and returns its size; the connection stays open. */
+  long clear() {
+    lock.lock();
+    try {
+      long dropped = readable;
+      buffers.forEach(ByteBuf::release);
+      buffers.clear();
+      readable = 0;
+      return dropped;
+    } finally {
+      unlockAndResume();
+    }
+  }
+
+  /** Session end: releases everything queued and everything that still arrives. */
+  void dispose() {
+    lock.lock();
+    try {
+      disposed = true;
+      ended = true;
+      buffers.forEach(ByteBuf::release);
+      buffers.clear();
+      readable = 0;
+      arrived.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Waits until more than {@code index} bytes are queued; false once input ended short of that. */
+  private boolean await(int index) throws IOException {
+    if (readable > index) {
+      return true;
+    }
+    if (!ended) {
+      beforeWait.run();
+    }
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (readable <= index) {
+      if (ended) {
+        return false;
+      }
+      long left = deadline - System.nanoTime();
+      if (left <= 0) {
+        throw new SocketTimeoutException("No data from client for " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+      }
+      try {
+        arrived.awaitNanos(left);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for client data");
+      }
+    }
+    return true;
+  }
+
+  private void consumed(ByteBuf head, int n) {
+    readable -= n;
+    if (!head.isReadable()) {
+      buffers.poll().release();
+    }
+  }
+
+  // Asks the event loop for more once the session caught up; outside the lock, the loop may call offer()
+  private void unlockAndResume() {
+    boolean resume = paused && readable < highWater / 2 && !disposed;
+    if (resume) {
+      paused = false;
+    }
+    lock.unlock();
+    if (resume) {
+      requestMore.run();
+    }
+  }
+}
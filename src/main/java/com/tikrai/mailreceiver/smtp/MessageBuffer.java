@@ -0,0 +1,164 @@
+package com.tikrai.mailreceiver.smtp;
+
+import com.tikrai.mailreceiver.model.RawMessage;
+import org.subethamail.smtp.TooMuchDataException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Holds the DATA of one SMTP transaction.
+ *
+ * <p>Messages up to {@code spillThreshold} bytes stay in a pooled heap array; larger ones are moved
+ * to a temp file as they arrive, so heap use per session is bounded regardless of message size.
+ * Ingestion fails with {@link TooMuchDataException} once {@code maxBytes} is exceeded.
+ * Instances are handed out by {@link MessageBufferPool} and reused across transactions,
+ * so they must never be referenced after being released.
+ */
+public final class MessageBuffer implements RawMessage {
+
+  private static final int MIN_CAPACITY = 8 * 1024;
+  private static final int SPILL_WRITE_BUFFER = 64 * 1024;
+
+  private final int spillThreshold;
+  private final long maxBytes;
+  private final Path spillDir;
+
+  private byte[] bytes;
+  private long length;
+  private Path spillFile;
+  private OutputStream spillOut;
+
+  MessageBuffer(int initialCapacity, int spillThreshold, long maxBytes, Path spillDir) {
+    this.bytes = new byte[Math.max(MIN_CAPACITY, Math.min(initialCapacity, spillThreshold))];
+    this.spillThreshold = spillThreshold;
+    this.maxBytes = maxBytes;
+    this.spillDir = spillDir;
+  }
+
+  /**
+   * Replaces the content with whatever is read through the returned stream, so a parser can consume
+   * DATA once while the raw message is kept for later use.
+   */
+  public InputStream capture(InputStream in) {
+    clear();
+    return new FilterInputStream(in) {
+      private final byte[] single = new byte[1];
+
+      @Override
+      public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+          single[0] = (byte) b;
+          append(single, 0, 1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+          append(b, off, n);
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        // Skipped bytes must still be captured
+        return Math.max(0, read(new byte[(int) Math.min(n, MIN_CAPACITY)]));
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  @Override
+  public long size() {
+    return length;
+  }
+
+  public boolean isSpilled() {
+    return spillOut != null;
+  }
+
+  @Override
+  public InputStream openStream() throws IOException {
+    if (spillOut != null) {
+      spillOut.flush();
+      return Files.newInputStream(spillFile);
+    }
+    return new ByteArrayInputStream(bytes, 0, (int) length);
+  }
+
+  @Override
+  public FileRange fileRange() throws IOException {
+    if (spillOut == null) {
+      return null;
+    }
+    spillOut.flush();
+    return new FileRange(spillFile, 0, length);
+  }
+
+  /** Clears the content and removes any spill file; shrinks the array if it grew past {@code maxRetained}. */
+  void reset(int maxRetained) {
+    clear();
+    if (bytes.length > maxRetained) {
+      bytes = new byte[Math.max(MIN_CAPACITY, maxRetained)];
+    }
+  }
+
+  private void append(byte[] src, int off, int len) throws IOException {
+    if (length + len > maxBytes) {
+      throw new TooMuchDataException("Message exceeds the maximum size of " + maxBytes + " bytes");
+    }
+    if (spillOut == null && length + len > spillThreshold) {
+      spill();
+    }
+    if (spillOut != null) {
+      spillOut.write(src, off, len);
+    } else {
+      ensureCapacity((int) length + len);
+      System.arraycopy(src, off, bytes, (int) length, len);
+    }
+    length += len;
+  }
+
+  private void spill() throws IOException {
+    spillFile = Files.createTempFile(spillDir, "data-", ".eml");
+    spillOut = new BufferedOutputStream(Files.newOutputStream(spillFile), SPILL_WRITE_BUFFER);
+    spillOut.write(bytes, 0, (int) length);
+  }
+
+  private void clear() {
+    length = 0;
+    if (spillOut != null) {
+      try {
+        spillOut.close();
+        Files.deleteIfExists(spillFile);
+      } catch (IOException ignored) {
+        // Temp file is left for the OS to clean up
+      }
+      spillOut = null;
+      spillFile = null;
+    }
+  }
+
+  private void ensureCapacity(int required) {
+    if (required > bytes.length) {
+      int grown = Math.min(spillThreshold, Math.max(required, bytes.length + (bytes.length >> 1)));
+      bytes = Arrays.copyOf(bytes, grown);
+    }
+  }
+}
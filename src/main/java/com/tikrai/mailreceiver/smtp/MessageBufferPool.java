@@ -0,0 +1,65 @@
+package com.tikrai.mailreceiver.smtp;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free pool of {@link MessageBuffer}s shared by all SMTP sessions.
+ * Each transaction borrows one buffer for its DATA and gives it back in {@code done()}.
+ */
+@Component
+public class MessageBufferPool {
+
+  private final Queue<MessageBuffer> free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private final int initialCapacity;
+  private final int maxRetainedBytes;
+  private final int maxPooled;
+  private final int spillThreshold;
+  private final long maxMessageBytes;
+  private final Path spillDir;
+
+  public MessageBufferPool(
+      @Value("${app.smtp.buffer.initialBytes:65536}") int initialCapacity,
+      @Value("${app.smtp.buffer.maxRetainedBytes:1048576}") int maxRetainedBytes,
+      @Value("${app.smtp.buffer.maxPooled:256}") int maxPooled,
+      @Value("${app.smtp.buffer.spillThresholdBytes:1048576}") int spillThreshold,
+      @Value("${app.smtp.buffer.spillDir:${java.io.tmpdir}}") String spillDir,
+      @Value("${app.smtp.maxMessageBytes:26214400}") long maxMessageBytes
+  ) throws IOException {
+    this.initialCapacity = initialCapacity;
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.maxPooled = maxPooled;
+    this.spillThreshold = spillThreshold;
+    this.maxMessageBytes = maxMessageBytes;
+    this.spillDir = Files.createDirectories(Path.of(spillDir));
+  }
+
+  public MessageBuffer acquire() {
+    MessageBuffer buffer = free.poll();
+    if (buffer == null) {
+      return new MessageBuffer(initialCapacity, spillThreshold, maxMessageBytes, spillDir);
+    }
+    pooled.decrementAndGet();
+    return buffer;
+  }
+
+  public void release(MessageBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    buffer.reset(maxRetainedBytes);
+    if (pooled.incrementAndGet() > maxPooled) {
+      pooled.decrementAndGet();
+      return;
+    }
+    free.offer(buffer);
+  }
+}
@@ -0,0 +1,120 @@
+package com.tikrai.mailreceiver.smtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.netty.DisposableServer;
+import reactor.netty.NettyInbound;
+import reactor.netty.NettyOutbound;
+import reactor.netty.resources.LoopResources;
+import reactor.netty.tcp.TcpServer;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SMTP listener on reactor-netty event loops ({@code app.smtp.frontend: netty}), advertising
+ * PIPELINING and CHUNKING (BDAT) on top of the same {@link DomainFilterMessageHandlerFactory} and
+ * {@link AdmissionControl} as the subethasmtp server, and STARTTLS from the same
+ * {@link SmtpTlsContext}. Sockets are read by the event loops; each session runs its protocol on a
+ * virtual thread ({@link NettySmtpSession}).
+ */
+public final class NettySmtpServer implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(NettySmtpServer.class);
+
+  private static final int INBOUND_HIGH_WATER = 256 * 1024;
+
+  private final DomainFilterMessageHandlerFactory factory;
+  private final AdmissionControl admission;
+  private final SmtpTlsContext tls;
+  private final String hostName;
+  private final long maxMessageBytes;
+  private final long idleTimeoutMs;
+  private final LoopResources loops = LoopResources.create("smtp-nio", LoopResources.DEFAULT_IO_WORKER_COUNT, true);
+  private final ExecutorService threads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("smtp-session-", 0).factory());
+  private final DisposableServer server;
+
+  NettySmtpServer(DomainFilterMessageHandlerFactory factory, AdmissionControl admission, SmtpTlsContext tls,
+                  String host, int port, long maxMessageBytes, long idleTimeoutMs) {
+    this.factory = factory;
+    this.admission = admission;
+    this.tls = tls;
+    this.hostName = host;
+    this.maxMessageBytes = maxMessageBytes;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.server = TcpServer.create()
+        .host(host)
+        .port(port)
+        .runOn(loops)
+        .childOption(ChannelOption.TCP_NODELAY, true)
+        .handle(this::session)
+        .bindNow(Duration.ofSeconds(10));
+  }
+
+  private Mono<Void> session(NettyInbound inbound, NettyOutbound outbound) {
+    return Mono.create(sink -> inbound.withConnection(connection -> {
+      Channel channel = connection.channel();
+      InetSocketAddress remote = (InetSocketAddress) channel.remoteAddress();
+      String refused = admission.admitSession(remote.getAddress());
+      if (refused != null) {
+        channel.writeAndFlush(ByteBufUtil.writeAscii(channel.alloc(), refused + "\r\n"))
+            .addListener(f -> sink.success());
+        return;
+      }
+
+      InboundQueue in = new InboundQueue(INBOUND_HIGH_WATER, idleTimeoutMs, channel::flush);
+      inbound.receive().retain().subscribe(new BaseSubscriber<ByteBuf>() {
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+          in.onDemand(() -> request(1));
+          request(1);
+        }
+
+        @Override
+        protected void hookOnNext(ByteBuf buf) {
+          in.offer(buf);
+        }
+
+        @Override
+        protected void hookOnError(Throwable e) {
+          log.debug("SMTP connection error - {}: {}", remote, e.getMessage());
+        }
+
+        @Override
+        protected void hookFinally(SignalType type) {
+          in.end();
+        }
+      });
+
+      NettySmtpSession session = new NettySmtpSession(channel, remote, in, factory, tls, threads, hostName, maxMessageBytes);
+      threads.execute(() -> {
+        try {
+          session.run();
+        } finally {
+          admission.releaseSession(remote.getAddress());
+          sink.success();
+        }
+      });
+    }));
+  }
+
+  @Override
+  public void close() {
+    log.info("Stopping SMTP server");
+    server.disposeNow(Duration.ofSeconds(5));
+    // Closes the connections still open; their sessions end on the closed input
+    loops.disposeLater().block(Duration.ofSeconds(5));
+    threads.shutdownNow();
+    log.info("SMTP server stopped");
+  }
+}
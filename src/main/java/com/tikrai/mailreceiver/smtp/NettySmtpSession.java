@@ -0,0 +1,484 @@
+package com.tikrai.mailreceiver.smtp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+
+import javax.net.ssl.SSLEngine;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One SMTP session of {@link NettySmtpServer}, run on its own virtual thread because the
+ * {@link MessageHandler} contract is blocking. Commands are read from the {@link InboundQueue} the
+ * event loop fills, and replies are flushed only when no further command is already queued, so a
+ * pipelined group (RFC 2920) is answered with one write.
+ *
+ * <p>The body of DATA or of a BDAT sequence (RFC 3030) is passed to {@code data()}, running on a
+ * second virtual thread, as slices of the received buffers through a {@link BodyPipe}: the
+ * handler reads the message while it is still arriving, and bytes are only copied into the
+ * handler's own read buffer.
+ */
+final class NettySmtpSession implements Runnable {
+
+  private static final Logger log = LoggerFactory.getLogger(NettySmtpSession.class);
+
+  private static final int MAX_COMMAND_LINE = 2048;
+  private static final int MAX_SLICE = 64 * 1024;
+  private static final int PIPE_LIMIT = 256 * 1024;
+
+  private final Channel channel;
+  private final InetSocketAddress remote;
+  private final InboundQueue in;
+  private final DomainFilterMessageHandlerFactory factory;
+  private final SmtpTlsContext tls;
+  private final Executor dataThreads;
+  private final String hostName;
+  private final long maxMessageBytes;
+
+  private String helo;
+  private boolean tlsActive;
+  private MessageHandler handler;
+  private int recipients;
+  private String firstRecipient;
+  private Transfer chunked;
+
+  NettySmtpSession(Channel channel, InetSocketAddress remote, InboundQueue in, DomainFilterMessageHandlerFactory factory,
+                   SmtpTlsContext tls, Executor dataThreads, String hostName, long maxMessageBytes) {
+    this.channel = channel;
+    this.remote = remote;
+    this.in = in;
+    this.factory = factory;
+    this.tls = tls;
+    this.dataThreads = dataThreads;
+    this.hostName = hostName;
+    this.maxMessageBytes = maxMessageBytes;
+  }
+
+  @Override
+  public void run() {
+    log.debug("SMTP session opened - {}", remote);
+    try {
+      reply("220 " + hostName + " ESMTP TikraiMailReceiver");
+      while (true) {
+        String line;
+        try {
+          line = in.readLine(MAX_COMMAND_LINE);
+        } catch (InboundQueue.LineTooLongException e) {
+          reply("500 5.5.2 Line too long");
+          continue;
+        }
+        if (line == null || !command(line)) {
+          break;
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      log.debug("SMTP session timed out - {}", remote);
+      reply("421 4.4.2 Timeout waiting for data from client");
+    } catch (IOException e) {
+      log.debug("SMTP session ended - {}: {}", remote, e.getMessage());
+    } catch (RuntimeException e) {
+      log.warn("SMTP session failed - {}: {}", remote, e.getMessage(), e);
+      reply("421 4.3.0 Internal error, closing connection");
+    } finally {
+      endTransaction();
+      in.dispose();
+      channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+      log.debug("SMTP session closed - {}", remote);
+    }
+  }
+
+  /** Handles one command line; false ends the session. */
+  private boolean command(String line) throws IOException {
+    int space = line.indexOf(' ');
+    String verb = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+    String arg = space < 0 ? "" : line.substring(space + 1).trim();
+    switch (verb) {
+      case "EHLO" -> ehlo(arg);
+      case "HELO" -> {
+        endTransaction();
+        helo = arg;
+        reply("250 " + hostName);
+      }
+      case "MAIL" -> mail(arg);
+      case "RCPT" -> rcpt(arg);
+      case "DATA" -> data();
+      case "BDAT" -> {
+        return bdat(arg);
+      }
+      case "RSET" -> {
+        endTransaction();
+        reply("250 Ok");
+      }
+      case "NOOP" -> reply("250 Ok");
+      case "VRFY" -> reply("252 2.5.0 Cannot verify user, but will accept message");
+      case "HELP" -> reply("214 2.0.0 See RFC 5321");
+      case "QUIT" -> {
+        reply("221 Bye");
+        return false;
+      }
+      case "STARTTLS" -> startTls(arg);
+      case "AUTH", "EXPN", "TURN", "ETRN" -> reply("502 5.5.1 Command not implemented");
+      default -> reply("500 5.5.2 Error: command not recognized");
+    }
+    return true;
+  }
+
+  private void ehlo(String arg) {
+    if (arg.isEmpty()) {
+      reply("501 5.5.4 Syntax: EHLO hostname");
+      return;
+    }
+    endTransaction();
+    helo = arg;
+    reply("250-" + hostName + "\r\n"
+        + "250-8BITMIME\r\n"
+        + "250-SIZE " + maxMessageBytes + "\r\n"
+        + "250-PIPELINING\r\n"
+        + "250-CHUNKING\r\n"
+        + (tls.isEnabled() && !tlsActive ? "250-STARTTLS\r\n" : "")
+        + "250 Ok");
+  }
+
+  /**
+   * Answers 220 in clear and puts an {@link SslHandler} in front of the pipeline in the same event
+   * loop task, so everything read afterwards is decrypted. A client that pipelined plaintext after
+   * STARTTLS is disconnected rather than letting those bytes into the TLS session (RFC 3207).
+   */
+  private void startTls(String arg) throws IOException {
+    if (!tls.isEnabled()) {
+      reply("454 4.7.0 TLS not supported");
+      return;
+    }
+    if (!arg.isEmpty()) {
+      reply("501 5.5.4 Syntax error (no parameters allowed)");
+      return;
+    }
+    if (tlsActive) {
+      reply("454 4.7.0 TLS already active");
+      return;
+    }
+    SSLEngine engine = tls.newEngine();
+    SslHandler ssl = new SslHandler(engine);
+    long start = System.nanoTime();
+    long startMillis = System.currentTimeMillis();
+    CompletableFuture<Void> handshake = new CompletableFuture<>();
+    ssl.handshakeFuture().addListener(f -> {
+      if (f.isSuccess()) {
+        handshake.complete(null);
+      } else {
+        handshake.completeExceptionally(f.cause());
+      }
+    });
+    AtomicLong dropped = new AtomicLong();
+    channel.eventLoop().execute(() -> {
+      reply("220 2.0.0 Ready to start TLS");
+      channel.flush();
+      channel.pipeline().addFirst("smtp-tls", ssl);
+      dropped.set(in.clear());
+      if (dropped.get() > 0) {
+        // Commands injected in clear ahead of the handshake; more may still be buffered by the transport
+        channel.close();
+      }
+    });
+    try {
+      handshake.join();
+    } catch (CompletionException e) {
+      if (dropped.get() > 0) {
+        throw new IOException("Plaintext sent after STARTTLS (" + dropped.get() + " bytes), connection closed");
+      }
+      tls.recordHandshakeFailure(start);
+      throw new IOException("TLS handshake failed: " + e.getCause().getMessage(), e.getCause());
+    }
+    tls.recordHandshake(engine.getSession(), start, startMillis);
+    log.debug("SMTP TLS started - {} {} {}", remote, engine.getSession().getProtocol(), engine.getSession().getCipherSuite());
+    // The session starts over: the client has to say EHLO again
+    tlsActive = true;
+    endTransaction();
+    helo = null;
+  }
+
+  private void mail(String arg) {
+    if (helo == null) {
+      reply("503 5.5.1 Error: send HELO/EHLO first");
+      return;
+    }
+    if (handler != null) {
+      reply("503 5.5.1 Sender already specified.");
+      return;
+    }
+    String[] path = path(arg, "FROM:");
+    if (path == null) {
+      reply("501 5.5.4 Syntax: MAIL FROM: <address>");
+      return;
+    }
+    for (String param : path[1].split("\\s+")) {
+      if (param.regionMatches(true, 0, "SIZE=", 0, 5)) {
+        try {
+          if (Long.parseLong(param.substring(5)) > maxMessageBytes) {
+            reply("552 5.3.4 Message size exceeds fixed limit");
+            return;
+          }
+        } catch (NumberFormatException e) {
+          reply("501 5.5.4 Invalid SIZE parameter");
+          return;
+        }
+      }
+    }
+    MessageHandler h = factory.create(remote);
+    try {
+      h.from(path[0]);
+    } catch (RejectException e) {
+      h.done();
+      reply(e.getErrorResponse());
+      return;
+    }
+    handler = h;
+    reply("250 Ok");
+  }
+
+  private void rcpt(String arg) {
+    if (handler == null) {
+      reply("503 5.5.1 Error: need MAIL command");
+      return;
+    }
+    String[] path = path(arg, "TO:");
+    if (path == null || path[0].isEmpty()) {
+      reply("501 5.5.4 Syntax: RCPT TO: <address>");
+      return;
+    }
+    try {
+      handler.recipient(path[0]);
+    } catch (RejectException e) {
+      reply(e.getErrorResponse());
+      return;
+    }
+    if (recipients++ == 0) {
+      firstRecipient = path[0];
+    }
+    reply("250 Ok");
+  }
+
+  private void data() throws IOException {
+    String refused = checkTransaction();
+    if (refused == null && chunked != null) {
+      refused = "503 5.5.1 Error: DATA not allowed after BDAT";
+    }
+    if (refused != null) {
+      reply(refused);
+      return;
+    }
+    reply("354 End data with <CR><LF>.<CR><LF>");
+    Transfer transfer = new Transfer();
+    try {
+      readDotted(transfer.body);
+    } catch (IOException e) {
+      transfer.abort(e);
+      throw e;
+    }
+    transfer.body.finish();
+    reply(transfer.result.join());
+    endTransaction();
+  }
+
+  /** One BDAT chunk; false when the command cannot be parsed, since the chunk's end is then unknown. */
+  private boolean bdat(String arg) throws IOException {
+    String[] parts = arg.split("\\s+");
+    long size;
+    try {
+      size = Long.parseLong(parts[0]);
+    } catch (NumberFormatException e) {
+      size = -1;
+    }
+    boolean last = parts.length == 2 && "LAST".equalsIgnoreCase(parts[1]);
+    if (size < 0 || parts.length > 2 || parts.length == 2 && !last) {
+      reply("501 5.5.4 Syntax: BDAT size [LAST]");
+      return false;
+    }
+    String refused = checkTransaction();
+    if (refused != null) {
+      // The chunk follows the command regardless of the reply
+      discard(size);
+      reply(refused);
+      return true;
+    }
+    if (chunked == null) {
+      chunked = new Transfer();
+    }
+    Transfer transfer = chunked;
+    try {
+      copy(size, transfer.body);
+    } catch (IOException e) {
+      chunked = null;
+      transfer.abort(e);
+      throw e;
+    }
+    if (!last) {
+      if (transfer.result.isDone()) {
+        // The handler gave up before the last chunk; the client must not send more
+        chunked = null;
+        reply(transfer.result.join());
+        endTransaction();
+      } else {
+        reply("250 2.0.0 " + size + " octets received");
+      }
+      return true;
+    }
+    chunked = null;
+    transfer.body.finish();
+    reply(transfer.result.join());
+    endTransaction();
+    return true;
+  }
+
+  private String checkTransaction() {
+    if (handler == null) {
+      return "503 5.5.1 Error: need MAIL command";
+    }
+    if (recipients == 0) {
+      return "503 5.5.1 Error: need RCPT command";
+    }
+    return null;
+  }
+
+  /** DATA up to the lone dot, with dot-stuffing undone by skipping the leading dot of a line. */
+  private void readDotted(BodyPipe body) throws IOException {
+    boolean lineStart = true;
+    while (true) {
+      if (lineStart && in.peek(0) == '.') {
+        int next = in.peek(1);
+        if (next == '\n' || next == '\r' && in.peek(2) == '\n') {
+          in.skip(next == '\n' ? 2 : 3);
+          return;
+        }
+        in.skip(1);
+      }
+      ByteBuf slice = in.readSlice(MAX_SLICE, true);
+      if (slice == null) {
+        throw new EOFException("Connection closed during DATA");
+      }
+      lineStart = slice.getByte(slice.writerIndex() - 1) == '\n';
+      body.offer(slice);
+    }
+  }
+
+  private void copy(long size, BodyPipe body) throws IOException {
+    while (size > 0) {
+      ByteBuf slice = in.readSlice(Math.min(size, MAX_SLICE), false);
+      if (slice == null) {
+        throw new EOFException("Connection closed during BDAT");
+      }
+      size -= slice.readableBytes();
+      body.offer(slice);
+    }
+  }
+
+  private void discard(long size) throws IOException {
+    while (size > 0) {
+      ByteBuf slice = in.readSlice(Math.min(size, MAX_SLICE), false);
+      if (slice == null) {
+        throw new EOFException("Connection closed during BDAT");
+      }
+      size -= slice.readableBytes();
+      slice.release();
+    }
+  }
+
+  /** Ends the current transaction, if any; an unfinished BDAT body fails so nothing partial is forwarded. */
+  private void endTransaction() {
+    if (chunked != null) {
+      chunked.abort(new IOException("Transaction aborted before BDAT LAST"));
+      chunked = null;
+    }
+    if (handler != null) {
+      handler.done();
+      handler = null;
+    }
+    recipients = 0;
+    firstRecipient = null;
+  }
+
+  // Written now, flushed by the queue before the session waits for more input
+  private void reply(String reply) {
+    channel.write(ByteBufUtil.writeAscii(channel.alloc(), reply + "\r\n"));
+  }
+
+  /** Same trace header subethasmtp adds in front of the message. */
+  private ByteBuf receivedHeader() {
+    String id = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36).toUpperCase(Locale.ROOT);
+    StringBuilder header = new StringBuilder("Received: from ").append(helo)
+        .append(" ([").append(remote.getAddress().getHostAddress()).append("])\r\n")
+        .append("        by ").append(hostName).append("\r\n")
+        .append("        with ESMTP (TikraiMailReceiver) id ").append(id);
+    if (recipients == 1) {
+      header.append("\r\n        for ").append(firstRecipient);
+    }
+    header.append(";\r\n        ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now())).append("\r\n");
+    return Unpooled.wrappedBuffer(header.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Splits {@code FROM:<a@b> PARAMS} into the address without brackets and the parameters. */
+  private static String[] path(String arg, String prefix) {
+    if (!arg.regionMatches(true, 0, prefix, 0, prefix.length())) {
+      return null;
+    }
+    String rest = arg.substring(prefix.length()).trim();
+    if (rest.startsWith("<")) {
+      int close = rest.indexOf('>');
+      return close < 0 ? null : new String[] {rest.substring(1, close).trim(), rest.substring(close + 1).trim()};
+    }
+    int space = rest.indexOf(' ');
+    return space < 0 ? new String[] {rest, ""} : new String[] {rest.substring(0, space), rest.substring(space + 1).trim()};
+  }
+
+  /** The handler's {@code data()} call for one message, reading the body as it arrives. */
+  private final class Transfer {
+    final BodyPipe body = new BodyPipe(PIPE_LIMIT);
+    final CompletableFuture<String> result = new CompletableFuture<>();
+
+    Transfer() throws IOException {
+      MessageHandler h = handler;
+      body.offer(receivedHeader());
+      dataThreads.execute(() -> result.complete(deliver(h, body)));
+    }
+
+    /** Fails the body and waits for the handler to give up on it. */
+    void abort(IOException cause) {
+      body.fail(cause);
+      result.join();
+    }
+  }
+
+  private String deliver(MessageHandler h, BodyPipe body) {
+    try (body) {
+      h.data(body);
+      return "250 Ok";
+    } catch (RejectException e) {
+      return e.getErrorResponse();
+    } catch (TooMuchDataException e) {
+      return "552 5.3.4 Message size exceeds fixed limit";
+    } catch (Exception e) {
+      log.warn("SMTP DATA failed - {}: {}", remote, e.getMessage(), e);
+      return "451 4.3.0 Error processing message";
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package com.tikrai.mailreceiver.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Decides at RCPT time whether a recipient exists, so no DATA is taken for mail the backend would drop.
+ *
+ * <p>Checks run in order: the domain must be one of {@code app.smtp.acceptedDomains}; if
+ * {@code app.smtp.recipients.file} is set, the address must be listed there (one per line, reloaded
+ * when the file changes); if {@code app.smtp.recipients.lookupUrl} is set, the downstream is asked
+ * and its answer cached, with a shorter TTL for unknown mailboxes. A failed lookup accepts the
+ * recipient and is not cached.
+ */
+@Component
+public class RecipientValidator implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(RecipientValidator.class);
+
+  public enum Verdict { ACCEPT, RELAY_DENIED, UNKNOWN_MAILBOX }
+
+  private record Cached(boolean exists, long expiresAtNanos) {}
+
+  private final Set<String> domains;
+  private final Path allowlistFile;
+  private final WebClient lookupClient;
+  private final String lookupUrl;
+  private final Duration lookupTimeout;
+  private final long positiveTtlNanos;
+  private final long negativeTtlNanos;
+  private final int cacheSize;
+  private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService reloader;
+
+  // Sorted, lower-cased; swapped as a whole on reload. Null when no allowlist is configured.
+  private volatile String[] allowlist;
+  private volatile FileTime allowlistModified;
+
+  public RecipientValidator(
+      WebClient.Builder builder,
+      @Value("${app.smtp.acceptedDomains:${app.smtp.acceptedDomain:tikrai.com}}") String acceptedDomains,
+      @Value("${app.smtp.recipients.file:}") String allowlistFile,
+      @Value("${app.smtp.recipients.reloadMs:10000}") long reloadMs,
+      @Value("${app.smtp.recipients.lookupUrl:}") String lookupUrl,
+      @Value("${app.smtp.recipients.lookupTimeoutMs:2000}") long lookupTimeoutMs,
+      @Value("${app.smtp.recipients.cacheSize:10000}") int cacheSize,
+      @Value("${app.smtp.recipients.positiveTtlMs:300000}") long positiveTtlMs,
+      @Value("${app.smtp.recipients.negativeTtlMs:60000}") long negativeTtlMs
+  ) throws IOException {
+    this.domains = Arrays.stream(acceptedDomains.split(","))
+        .map(d -> d.trim().toLowerCase(Locale.ROOT))
+        .filter(d -> !d.isEmpty())
+        .collect(Collectors.toUnmodifiableSet());
+    this.allowlistFile = allowlistFile.isBlank() ? null : Path.of(allowlistFile);
+    this.lookupUrl = lookupUrl.isBlank() ? null : lookupUrl;
+    this.lookupClient = this.lookupUrl != null ? builder.build() : null;
+    this.lookupTimeout = Duration.ofMillis(lookupTimeoutMs);
+    this.cacheSize = cacheSize;
+    this.positiveTtlNanos = TimeUnit.MILLISECONDS.toNanos(positiveTtlMs);
+    this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMs);
+
+    if (this.allowlistFile != null) {
+      reload();
+      this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "recipient-reload");
+        t.setDaemon(true);
+        return t;
+      });
+      reloader.scheduleWithFixedDelay(this::reloadIfChanged, reloadMs, reloadMs, TimeUnit.MILLISECONDS);
+    } else {
+      this.reloader = null;
+    }
+    log.info("Recipient validation - domains: {}, allowlist: {}, lookup: {}",
+        domains, this.allowlistFile != null ? this.allowlistFile + " (" + allowlist.length + " mailboxes)" : "none",
+        this.lookupUrl != null ? this.lookupUrl : "none");
+  }
+
+  /** {@code address} is expected trimmed and lower-cased. */
+  public Verdict check(String address) {
+    int at = address.lastIndexOf('@');
+    if (at <= 0 || !domains.contains(address.substring(at + 1))) {
+      return Verdict.RELAY_DENIED;
+    }
+    String[] listed = allowlist;
+    if (listed != null && Arrays.binarySearch(listed, address) < 0) {
+      return Verdict.UNKNOWN_MAILBOX;
+    }
+    if (lookupUrl != null && !exists(address)) {
+      return Verdict.UNKNOWN_MAILBOX;
+    }
+    return Verdict.ACCEPT;
+  }
+
+  private boolean exists(String address) {
+    long now = System.nanoTime();
+    Cached cached = cache.get(address);
+    if (cached != null && cached.expiresAtNanos() - now > 0) {
+      return cached.exists();
+    }
+    Boolean found;
+    try {
+      found = lookupClient.get()
+          .uri(lookupUrl, b -> b.queryParam("address", address).build())
+          .retrieve()
+          .toBodilessEntity()
+          .map(r -> true)
+          .onErrorResume(WebClientResponseException.class,
+              e -> e.getStatusCode() == HttpStatus.NOT_FOUND ? Mono.just(false)
+                  : Mono.error(e))
+          .block(lookupTimeout);
+    } catch (RuntimeException e) {
+      log.warn("Recipient lookup failed, accepting {}: {}", address, e.getMessage());
+      return true;
+    }
+    boolean result = Boolean.TRUE.equals(found);
+    put(address, new Cached(result, now + (result ? positiveTtlNanos : negativeTtlNanos)));
+    return result;
+  }
+
+  private void put(String address, Cached entry) {
+    if (cache.size() >= cacheSize) {
+      long now = System.nanoTime();
+      cache.values().removeIf(c -> c.expiresAtNanos() - now <= 0);
+      // Still full of live entries: drop an arbitrary tenth rather than grow
+      Iterator<String> it = cache.keySet().iterator();
+      for (int i = cache.size() - cacheSize * 9 / 10; i > 0 && it.hasNext(); i--) {
+        it.next();
+        it.remove();
+      }
+    }
+    cache.put(address, entry);
+  }
+
+  private void reloadIfChanged() {
+    try {
+      if (!Files.getLastModifiedTime(allowlistFile).equals(allowlistModified)) {
+        reload();
+        log.info("Recipient allowlist reloaded - {} mailboxes", allowlist.length);
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to reload recipient allowlist {}, keeping the previous one: {}", allowlistFile, e.getMessage());
+    }
+  }
+
+  private void reload() throws IOException {
+    FileTime modified = Files.getLastModifiedTime(allowlistFile);
+    String[] entries = Files.readAllLines(allowlistFile, StandardCharsets.UTF_8).stream()
+        .map(line -> line.trim().toLowerCase(Locale.ROOT))
+        .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+        .distinct()
+        .sorted()
+        .toArray(String[]::new);
+    allowlist = entries;
+    allowlistModified = modified;
+  }
+
+  @Override
+  public void close() {
+    if (reloader != null) {
+      reloader.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.tikrai.mailreceiver.smtp;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters for the SMTP side of the pipeline. Phase timers and the DATA size carry percentile
+ * histograms so p99 can be computed from the Prometheus buckets.
+ */
+@Component
+public class SmtpMetrics {
+
+  private final MeterRegistry registry;
+  private final Timer from;
+  private final Timer recipient;
+  private final Timer data;
+  private final Timer done;
+  private final Timer mimeParse;
+  private final DistributionSummary dataSize;
+  private final Map<String, Counter> rejects = new ConcurrentHashMap<>();
+  private final Map<String, Timer> tlsHandshakes = new ConcurrentHashMap<>();
+
+  public SmtpMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.from = phase(registry, "from");
+    this.recipient = phase(registry, "recipient");
+    this.data = phase(registry, "data");
+    this.done = phase(registry, "done");
+    this.mimeParse = Timer.builder("smtp.mime.parse")
+        .description("MIME body extraction time")
+        .publishPercentileHistogram()
+        .register(registry);
+    this.dataSize = DistributionSummary.builder("smtp.data.size")
+        .description("Size of the DATA section")
+        .baseUnit("bytes")
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  private static Timer phase(MeterRegistry registry, String phase) {
+    return Timer.builder("smtp.phase")
+        .description("Time spent handling an SMTP command")
+        .tag("phase", phase)
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  void recordFrom(long startNanos) {
+    from.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordRecipient(long startNanos) {
+    recipient.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordData(long startNanos) {
+    data.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordDone(long startNanos) {
+    done.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordMimeParse(long startNanos) {
+    mimeParse.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordDataSize(long bytes) {
+    dataSize.record(bytes);
+  }
+
+  /** {@code result} is {@code full}, {@code resumed} or {@code failed}. */
+  void recordTlsHandshake(String result, long startNanos) {
+    tlsHandshakes.computeIfAbsent(result, r -> Timer.builder("smtp.tls.handshake")
+        .description("STARTTLS handshake time, by full or resumed session")
+        .tag("result", r)
+        .publishPercentileHistogram()
+        .register(registry)).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Counts an SMTP rejection; {@code reason} is a short snake_case label. */
+  public void reject(String reason) {
+    rejects.computeIfAbsent(reason, r -> Counter.builder("smtp.rejects")
+        .description("SMTP commands or connections refused")
+        .tag("reason", r)
+        .register(registry)).increment();
+  }
+}
@@ -2,11 +2,19 @@ package com.tikrai.mailreceiver.smtp;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.server.SMTPServer;
 
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 @Configuration
 public class SmtpServerConfig implements AutoCloseable {
 
@@ -15,24 +23,54 @@ public class SmtpServerConfig implements AutoCloseable {
   private SMTPServer server;
 
   @Bean
-  public SMTPServer smtpServer(DomainFilterMessageHandler handler,
+  @ConditionalOnProperty(name = "app.smtp.frontend", havingValue = "subethasmtp", matchIfMissing = true)
+  public SMTPServer smtpServer(DomainFilterMessageHandlerFactory factory,
+                              AdmissionControl admission,
+                              SmtpTlsContext tls,
                               org.springframework.core.env.Environment env) {
 
     String host = env.getProperty("app.smtp.host", "0.0.0.0");
     int port = Integer.parseInt(env.getProperty("app.smtp.port", "2525"));
+    int maxMessageBytes = Integer.parseInt(env.getProperty("app.smtp.maxMessageBytes", "26214400"));
+    String threads = env.getProperty("app.smtp.threads", "virtual");
+
+    log.info("Starting SMTP server - host: {}, port: {}, session threads: {}", host, port, threads);
+
+    // Each session blocks on socket reads and on the forward call; virtual threads make that cheap.
+    // The server shuts the executor down on stop.
+    ExecutorService sessions = "platform".equalsIgnoreCase(threads)
+        ? Executors.newCachedThreadPool()
+        : Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("smtp-session-", 0).factory());
 
-    log.info("Starting SMTP server - host: {}, port: {}", host, port);
+    SMTPServer s = new SMTPServer(factory, null, sessions) {
+      @Override
+      protected ServerSocket createServerSocket() throws IOException {
+        // Same as the default, but accepted sockets go through the per-IP session cap
+        InetSocketAddress address = getBindAddress() == null
+            ? new InetSocketAddress(getPort())
+            : new InetSocketAddress(getBindAddress(), getPort());
+        ServerSocket socket = admission.newServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(address, getBacklog());
+        return socket;
+      }
 
-    MessageHandlerFactory factory = ctx -> {
-      log.info("SMTP NEW CONNECTION - RemoteAddress: {}", ctx != null ? ctx.getRemoteAddress() : "unknown");
-      return handler;
+      @Override
+      public SSLSocket createSSLSocket(Socket socket) throws IOException {
+        // Shared context: one certificate load and one session cache for every connection
+        return tls.wrap(socket);
+      }
     };
-    SMTPServer s = new SMTPServer(factory);
     s.setHostName(host);
     s.setPort(port);
+    // Advertised in EHLO as SIZE; DATA beyond it is rejected by MessageBuffer
+    s.setMaxMessageSize(maxMessageBytes);
+    // Sessions beyond this get 421 from the server before any command is read
+    s.setMaxConnections(admission.maxSessions());
 
-    // MVP: no STARTTLS (add later if needed)
-    s.setHideTLS(true);
+    // STARTTLS only with a certificate configured (app.smtp.tls.*)
+    s.setEnableTLS(tls.isEnabled());
+    s.setHideTLS(!tls.isEnabled());
     
     // Enable verbose logging for connections
     s.setSoftwareName("TikraiMailReceiver");
@@ -43,6 +81,25 @@ public class SmtpServerConfig implements AutoCloseable {
     return s;
   }
 
+  /** Event-loop listener with PIPELINING and CHUNKING; same handler, admission and limits. */
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(name = "app.smtp.frontend", havingValue = "netty")
+  public NettySmtpServer nettySmtpServer(DomainFilterMessageHandlerFactory factory,
+                                         AdmissionControl admission,
+                                         SmtpTlsContext tls,
+                                         org.springframework.core.env.Environment env) {
+    String host = env.getProperty("app.smtp.host", "0.0.0.0");
+    int port = Integer.parseInt(env.getProperty("app.smtp.port", "2525"));
+    int maxMessageBytes = Integer.parseInt(env.getProperty("app.smtp.maxMessageBytes", "26214400"));
+    long idleTimeoutMs = Long.parseLong(env.getProperty("app.smtp.idleTimeoutMs", "60000"));
+
+    log.info("Starting SMTP server - host: {}, port: {}, front end: netty, idleTimeoutMs: {}", host, port, idleTimeoutMs);
+    NettySmtpServer s = new NettySmtpServer(factory, admission, tls, host, port, maxMessageBytes, idleTimeoutMs);
+    log.info("SMTP server started successfully - host: {}, port: {}, extensions: PIPELINING, CHUNKING{}", host, port,
+        tls.isEnabled() ? ", STARTTLS" : "");
+    return s;
+  }
+
   @Override
   public void close() {
     if (server != null) {
@@ -0,0 +1,337 @@
+package com.tikrai.mailreceiver.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Append-only on-disk spool of accepted messages, backed by memory-mapped segment files.
+ *
+ * <p>An append reserves its place in the active segment under a short lock, copies the record
+ * without holding it, and then waits for the committer thread, which flushes the records of all
+ * waiting appends with one {@code force()} call per segment (group commit). {@link #append}
+ * returns only once the record is durable; a record that fails to commit is acknowledged at once,
+ * so it is neither replayed nor keeps its segment alive.
+ * Each record holds the payload metadata as JSON followed by the raw message bytes, so the raw
+ * message is neither base64-encoded nor parsed again on the way through.
+ * Segments that are full and fully acknowledged are deleted. Entries the drainer gives up on are
+ * copied to {@code quarantine/} under the spool directory first.
+ */
+@Component
+public class MessageSpool implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(MessageSpool.class);
+
+  /** A copied record waiting for the committer; {@code from..to} is its byte range in the segment. */
+  private record Commit(SpoolSegment segment, int from, int to, CompletableFuture<Void> durable) {}
+
+  private final boolean enabled;
+  private final Path dir;
+  private final int segmentBytes;
+  private final long commitTimeoutMs;
+  private final ObjectMapper mapper;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition commitRequested = lock.newCondition();
+  private final Map<Long, SpoolSegment> segments = new ConcurrentHashMap<>();
+  private final List<SpoolEntry> recovered = new ArrayList<>();
+  private List<Commit> waiting = new ArrayList<>();
+  private SpoolSegment active;
+  private long nextSegmentId;
+  private volatile boolean closed;
+  private Thread committer;
+
+  public MessageSpool(
+      @Value("${app.spool.enabled:false}") boolean enabled,
+      @Value("${app.spool.dir:spool}") String dir,
+      @Value("${app.spool.segmentBytes:67108864}") int segmentBytes,
+      @Value("${app.spool.commitTimeoutMs:5000}") long commitTimeoutMs,
+      ObjectMapper mapper
+  ) throws IOException {
+    this.enabled = enabled;
+    this.dir = Path.of(dir);
+    this.segmentBytes = segmentBytes;
+    this.commitTimeoutMs = commitTimeoutMs;
+    this.mapper = mapper;
+    if (enabled) {
+      open();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  private void open() throws IOException {
+    Files.createDirectories(dir);
+    List<Path> files;
+    try (Stream<Path> listing = Files.list(dir)) {
+      files = listing.filter(SpoolSegment::isSegmentFile)
+          .sorted(Comparator.comparingLong(SpoolSegment::parseId))
+          .toList();
+    }
+    for (Path file : files) {
+      SpoolSegment segment = SpoolSegment.open(file);
+      nextSegmentId = Math.max(nextSegmentId, segment.id() + 1);
+      List<Integer> offsets = segment.recover();
+      if (offsets.isEmpty()) {
+        segment.delete();
+        continue;
+      }
+      segments.put(segment.id(), segment);
+      offsets.forEach(offset -> recovered.add(new SpoolEntry(segment, offset)));
+    }
+    active = newSegment(segmentBytes);
+
+    committer = new Thread(this::commitLoop, "spool-committer");
+    committer.setDaemon(true);
+    committer.start();
+    log.info("Spool opened - dir: {}, recovered segments: {}, pending entries: {}",
+        dir.toAbsolutePath(), segments.size() - 1, recovered.size());
+  }
+
+  /** Entries found unacknowledged when the spool was opened. */
+  public List<SpoolEntry> recoveredEntries() {
+    return List.copyOf(recovered);
+  }
+
+  /** Writes the payload to the spool and blocks until it has been flushed to disk. */
+  public SpoolEntry append(IncomingEmailPayload payload) throws IOException {
+    byte[] meta = mapper.writeValueAsBytes(payload);
+    RawMessage raw = payload.raw() != null ? payload.raw() : RawMessage.EMPTY;
+    long length = Integer.BYTES + meta.length + raw.size();
+    SpoolEntry entry;
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IOException("Spool is closed");
+      }
+      int offset = active.reserve(length);
+      if (offset < 0) {
+        rollover(length);
+        offset = active.reserve(length);
+      }
+      entry = new SpoolEntry(active, offset);
+    } finally {
+      lock.unlock();
+    }
+
+    // Copied without the lock, so a large message does not hold up the other sessions
+    try {
+      entry.segment.write(entry.offset, meta, raw);
+    } catch (IOException | RuntimeException e) {
+      abandon(entry);
+      throw e;
+    }
+
+    Commit commit = new Commit(entry.segment, entry.offset, entry.segment.end(entry.offset), new CompletableFuture<>());
+    lock.lock();
+    try {
+      if (closed) {
+        abandon(entry);
+        throw new IOException("Spool is closed");
+      }
+      waiting.add(commit);
+      commitRequested.signal();
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      commit.durable().get(commitTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      ack(entry);
+      throw new IOException("Spool commit failed", e.getCause());
+    } catch (TimeoutException e) {
+      // The sender gets 451 and sends the message again; this copy must not be replayed as well
+      ack(entry);
+      throw new IOException("Spool commit timed out after " + commitTimeoutMs + " ms");
+    } catch (InterruptedException e) {
+      ack(entry);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for spool commit", e);
+    }
+    return entry;
+  }
+
+  /** Reads an entry back; the raw message is a view of the segment, not a copy. */
+  public IncomingEmailPayload read(SpoolEntry entry) throws IOException {
+    ByteBuffer data = entry.segment.read(entry.offset);
+    int metaLength = data.getInt(0);
+    byte[] meta = new byte[metaLength];
+    data.get(Integer.BYTES, meta);
+    IncomingEmailPayload payload = mapper.readValue(meta, IncomingEmailPayload.class);
+    int rawStart = Integer.BYTES + metaLength;
+    RawMessage.FileRange range = new RawMessage.FileRange(entry.segment.file(),
+        entry.offset + SpoolSegment.HEADER_BYTES + rawStart, data.limit() - rawStart);
+    return payload.withRaw(RawMessage.of(data.position(rawStart), range));
+  }
+
+
+  /** Marks the entry as delivered; the segment is deleted once all of its entries are acknowledged. */
+  public void ack(SpoolEntry entry) {
+    if (entry.segment.ack(entry.offset)) {
+      compact(entry.segment);
+    }
+  }
+
+  /**
+   * Copies the record of an entry that will not be delivered to {@code quarantine/}, as
+   * {@code [int metaLength][metadata JSON][raw message]}, and acknowledges it. Returns the file.
+   */
+  public Path quarantine(SpoolEntry entry) throws IOException {
+    Path quarantineDir = dir.resolve("quarantine");
+    Files.createDirectories(quarantineDir);
+    Path file = quarantineDir.resolve(String.format("segment-%016d-%010d.record", entry.segment.id(), entry.offset));
+    ByteBuffer data = entry.segment.read(entry.offset);
+    try (FileChannel out = FileChannel.open(file,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (data.hasRemaining()) {
+        out.write(data);
+      }
+      out.force(true);
+    }
+    ack(entry);
+    return file;
+  }
+
+  private void abandon(SpoolEntry entry) {
+    if (entry.segment.abandon()) {
+      compact(entry.segment);
+    }
+  }
+
+  private SpoolSegment newSegment(int size) throws IOException {
+    SpoolSegment segment = SpoolSegment.create(dir, nextSegmentId++, size);
+    segments.put(segment.id(), segment);
+    return segment;
+  }
+
+  // Called with the lock held
+  private void rollover(long recordBytes) throws IOException {
+    SpoolSegment full = active;
+    full.force(0, full.writePos());
+    full.seal();
+    active = newSegment((int) Math.max(segmentBytes, recordBytes + SpoolSegment.HEADER_BYTES));
+    log.debug("Spool rolled over from {} to {}", full, active);
+    compact(full);
+  }
+
+  private void compact(SpoolSegment segment) {
+    lock.lock();
+    try {
+      if (!segment.isSealed() || segment.pendingCount() > 0 || segments.remove(segment.id()) == null) {
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    try {
+      segment.delete();
+      log.debug("Spool segment {} fully delivered, deleted", segment);
+    } catch (IOException e) {
+      log.warn("Failed to delete spool segment {}: {}", segment, e.getMessage());
+    }
+  }
+
+  private void commitLoop() {
+    SpoolSegment flushedSegment = null;
+    int flushedPos = 0;
+    while (true) {
+      List<Commit> batch;
+      lock.lock();
+      try {
+        while (waiting.isEmpty() && !closed) {
+          commitRequested.awaitUninterruptibly();
+        }
+        if (waiting.isEmpty()) {
+          return;
+        }
+        batch = waiting;
+        waiting = new ArrayList<>();
+      } finally {
+        lock.unlock();
+      }
+
+      Map<SpoolSegment, List<Commit>> bySegment = new LinkedHashMap<>();
+      batch.forEach(commit -> bySegment.computeIfAbsent(commit.segment(), key -> new ArrayList<>()).add(commit));
+      for (Map.Entry<SpoolSegment, List<Commit>> group : bySegment.entrySet()) {
+        SpoolSegment segment = group.getKey();
+        List<Commit> commits = group.getValue();
+        int from = commits.stream().mapToInt(Commit::from).min().orElseThrow();
+        int to = commits.stream().mapToInt(Commit::to).max().orElseThrow();
+        if (!segment.isSealed()) {
+          // Also covers the headers of records reserved before these and still being copied, so
+          // recovery can step over them; a sealed segment had everything forced when it rolled over
+          from = Math.min(from, segment == flushedSegment ? flushedPos : 0);
+        }
+        try {
+          segment.force(from, to);
+          if (segment != flushedSegment) {
+            flushedSegment = segment;
+            flushedPos = to;
+          } else {
+            flushedPos = Math.max(flushedPos, to);
+          }
+          commits.forEach(commit -> commit.durable().complete(null));
+        } catch (RuntimeException e) {
+          log.error("Spool commit failed for {}: {}", segment, e.getMessage(), e);
+          commits.forEach(commit -> commit.durable().completeExceptionally(e));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    if (!enabled) {
+      return;
+    }
+    lock.lock();
+    try {
+      closed = true;
+      commitRequested.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      committer.join(commitTimeoutMs);
+    } catch (InterruptedException e) {
+      // Still unmap the segments; the interrupt is kept for the caller
+      Thread.currentThread().interrupt();
+    }
+    for (SpoolSegment segment : segments.values()) {
+      try {
+        segment.force(0, segment.writePos());
+        segment.close();
+      } catch (IOException | RuntimeException e) {
+        log.warn("Failed to close spool segment {}: {}", segment, e.getMessage());
+      }
+    }
+    log.info("Spool closed");
+  }
+}
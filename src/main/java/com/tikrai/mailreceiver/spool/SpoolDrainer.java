@@ -0,0 +1,215 @@
+package com.tikrai.mailreceiver.spool;
+
+import com.tikrai.mailreceiver.forward.DeliveryReport;
+import com.tikrai.mailreceiver.forward.ForwardDispatcher;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards spooled messages in the background and acknowledges them once the downstream accepted them.
+ * Entries left over from a previous run are replayed on startup; failed deliveries are retried
+ * with exponential backoff. At most {@code app.spool.maxInFlight} entries are handed to the
+ * {@link ForwardDispatcher} at a time, so a replay never crowds out live SMTP traffic.
+ * A retry only goes to the recipients that have not accepted the message yet; after a restart
+ * every recipient of a replayed entry is tried again. An entry that still fails after
+ * {@code app.spool.maxAttempts}, or that cannot be read back, is quarantined rather than dropped:
+ * its record is copied out of the spool and it is acknowledged, so its segment can be reclaimed.
+ */
+@Component
+public class SpoolDrainer implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(SpoolDrainer.class);
+
+  /** {@code remaining} is null until a delivery succeeded for some but not all recipients. */
+  private record Pending(SpoolEntry entry, int attempt, List<String> remaining) {}
+
+  private final MessageSpool spool;
+  private final ForwardDispatcher forwardDispatcher;
+  private final Semaphore inFlight;
+  private final long retryInitialMs;
+  private final long retryMaxMs;
+  private final int maxAttempts;
+  private final MeterRegistry registry;
+  private final Map<String, Counter> quarantined = new ConcurrentHashMap<>();
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final ScheduledExecutorService retryScheduler;
+  private final Thread worker;
+  private volatile boolean running = true;
+
+  public SpoolDrainer(
+      MessageSpool spool,
+      ForwardDispatcher forwardDispatcher,
+      @Value("${app.spool.maxInFlight:4}") int maxInFlight,
+      @Value("${app.spool.retryInitialMs:1000}") long retryInitialMs,
+      @Value("${app.spool.retryMaxMs:300000}") long retryMaxMs,
+      @Value("${app.spool.maxAttempts:20}") int maxAttempts,
+      MeterRegistry registry
+  ) {
+    this.spool = spool;
+    this.forwardDispatcher = forwardDispatcher;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.retryInitialMs = retryInitialMs;
+    this.retryMaxMs = retryMaxMs;
+    this.maxAttempts = maxAttempts;
+    this.registry = registry;
+
+    Gauge.builder("spool.queued", queue, BlockingQueue::size)
+        .description("Spooled messages waiting to be forwarded, excluding scheduled retries")
+        .register(registry);
+
+    if (!spool.isEnabled()) {
+      this.retryScheduler = null;
+      this.worker = null;
+      return;
+    }
+    spool.recoveredEntries().forEach(e -> queue.add(new Pending(e, 0, null)));
+    if (!queue.isEmpty()) {
+      log.info("Replaying {} unacknowledged spool entries", queue.size());
+    }
+    this.retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "spool-retry");
+      t.setDaemon(true);
+      return t;
+    });
+    this.worker = new Thread(this::drainLoop, "spool-drainer");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  public boolean isEnabled() {
+    return spool.isEnabled();
+  }
+
+  /** Durably spools the payload and schedules it for forwarding. Returns once it is safe to answer 250. */
+  public void accept(IncomingEmailPayload payload) throws IOException {
+    SpoolEntry entry = spool.append(payload);
+    log.debug("Spooled message at {}", entry);
+    queue.add(new Pending(entry, 0, null));
+  }
+
+  private void drainLoop() {
+    while (running) {
+      Pending next;
+      try {
+        next = queue.take();
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        deliver(next);
+      } catch (RuntimeException e) {
+        // Keep the drainer alive; the entry stays unacknowledged and is tried again
+        inFlight.release();
+        retryFailed(next, next.remaining(), e);
+      }
+    }
+  }
+
+  private void deliver(Pending pending) {
+    IncomingEmailPayload payload;
+    try {
+      payload = spool.read(pending.entry());
+    } catch (IOException e) {
+      // Retrying would not help, but the sender already got 250: keep the bytes for an operator
+      inFlight.release();
+      quarantine(pending, "unreadable", e);
+      return;
+    }
+
+    if (pending.remaining() != null) {
+      payload = payload.withRcptTo(pending.remaining());
+    }
+
+    CompletableFuture<DeliveryReport> result;
+    try {
+      result = forwardDispatcher.submitAll(payload);
+    } catch (RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+    result.whenComplete((report, error) -> {
+      inFlight.release();
+      if (error != null) {
+        retryFailed(pending, pending.remaining(), error);
+        return;
+      }
+      if (report.isComplete()) {
+        spool.ack(pending.entry());
+        log.debug("Spooled email forwarded - entry: {}, attempt: {}", pending.entry(), pending.attempt() + 1);
+        return;
+      }
+      if (report.isBusy()) {
+        // Pipeline busy with live traffic, try again shortly without counting an attempt
+        retryLater(pending, retryInitialMs);
+        return;
+      }
+      retryFailed(pending, List.copyOf(report.failed().keySet()), report.failed().values().iterator().next());
+    });
+  }
+
+  /** Backs off exponentially; {@code remaining} null means every recipient. */
+  private void retryFailed(Pending pending, List<String> remaining, Throwable error) {
+    if (pending.attempt() + 1 >= maxAttempts) {
+      quarantine(pending, "attempts", error);
+      return;
+    }
+    long delay = Math.min(retryMaxMs, retryInitialMs << Math.min(pending.attempt(), 20));
+    log.warn("Spooled email forward failed - entry: {}, attempt: {}, recipients: {}, retry in {} ms, ERROR: {}",
+        pending.entry(), pending.attempt() + 1, remaining != null ? remaining : "all", delay, error.getMessage());
+    retryLater(new Pending(pending.entry(), pending.attempt() + 1, remaining), delay);
+  }
+
+  /** Takes the entry out of the spool for good; if that fails it stays and is tried again later. */
+  private void quarantine(Pending pending, String reason, Throwable error) {
+    try {
+      Path file = spool.quarantine(pending.entry());
+      quarantined.computeIfAbsent(reason, r -> Counter.builder("spool.quarantined")
+          .description("Spooled messages given up on and copied to the quarantine directory")
+          .tag("reason", r)
+          .register(registry)).increment();
+      log.error("Spooled email quarantined - entry: {}, attempts: {}, reason: {}, file: {}, ERROR: {}",
+          pending.entry(), pending.attempt() + 1, reason, file, error.getMessage());
+    } catch (IOException | RuntimeException e) {
+      log.error("Failed to quarantine spool entry {}, retry in {} ms: {}",
+          pending.entry(), retryMaxMs, e.getMessage(), e);
+      retryLater(pending, retryMaxMs);
+    }
+  }
+
+  private void retryLater(Pending pending, long delayMs) {
+    if (running) {
+      retryScheduler.schedule(() -> queue.add(pending), delayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Stops taking entries; deliveries already handed to the dispatcher still complete and are acknowledged. */
+  @Override
+  public void close() {
+    if (worker == null || !running) {
+      return;
+    }
+    running = false;
+    worker.interrupt();
+    retryScheduler.shutdownNow();
+    log.info("Spool drainer stopped with {} entries queued; they will be replayed on restart", queue.size());
+  }
+}
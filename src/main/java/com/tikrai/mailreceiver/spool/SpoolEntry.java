@@ -0,0 +1,18 @@
+package com.tikrai.mailreceiver.spool;
+
+/** Location of one spooled message; obtained from {@link MessageSpool#append} or after a restart. */
+public final class SpoolEntry {
+
+  final SpoolSegment segment;
+  final int offset;
+
+  SpoolEntry(SpoolSegment segment, int offset) {
+    this.segment = segment;
+    this.offset = offset;
+  }
+
+  @Override
+  public String toString() {
+    return segment + "@" + offset;
+  }
+}
@@ -0,0 +1,230 @@
+package com.tikrai.mailreceiver.spool;
+
+import com.tikrai.mailreceiver.model.RawMessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * One memory-mapped, append-only spool file.
+ *
+ * <p>Record layout: {@code [int magic][byte state][int length][int crc32c][length bytes]}, where the
+ * data is {@code [int metaLength][metadata JSON][raw message]}. A record is reserved with its
+ * length and a reserved magic, filled without any lock, and then published by writing its checksum
+ * and final magic; after that only the state byte is rewritten, when it is acknowledged.
+ * A zero magic marks the end of the written region. Recovery skips reserved records, whose copy
+ * never finished, and records with a bad checksum, which a crash tore.
+ */
+final class SpoolSegment {
+
+  static final int HEADER_BYTES = 13;
+
+  private static final int MAGIC = 0x544D5332; // "TMS2"
+  private static final int RESERVED_MAGIC = 0x544D5330; // "TMS0", copy not finished
+  private static final int COPY_CHUNK = 64 * 1024;
+  private static final byte STATE_PENDING = 0;
+  private static final byte STATE_ACKED = 1;
+
+  private final long id;
+  private final Path file;
+  private final FileChannel channel;
+  private final MappedByteBuffer map;
+  private final AtomicInteger pending = new AtomicInteger();
+
+  private volatile int writePos;
+  private volatile boolean sealed;
+
+  private SpoolSegment(long id, Path file, FileChannel channel, MappedByteBuffer map) {
+    this.id = id;
+    this.file = file;
+    this.channel = channel;
+    this.map = map;
+  }
+
+  static SpoolSegment create(Path dir, long id, int size) throws IOException {
+    Path file = dir.resolve(fileName(id));
+    FileChannel ch = FileChannel.open(file,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    return new SpoolSegment(id, file, ch, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+  }
+
+  static SpoolSegment open(Path file) throws IOException {
+    FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    SpoolSegment segment = new SpoolSegment(parseId(file), file, ch,
+        ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size()));
+    segment.sealed = true;
+    return segment;
+  }
+
+  static String fileName(long id) {
+    return String.format("segment-%016d.spool", id);
+  }
+
+  static boolean isSegmentFile(Path file) {
+    String name = file.getFileName().toString();
+    return name.startsWith("segment-") && name.endsWith(".spool");
+  }
+
+  static long parseId(Path file) {
+    String name = file.getFileName().toString();
+    return Long.parseLong(name.substring("segment-".length(), name.length() - ".spool".length()));
+  }
+
+  long id() {
+    return id;
+  }
+
+  Path file() {
+    return file;
+  }
+
+  int writePos() {
+    return writePos;
+  }
+
+  int capacity() {
+    return map.capacity();
+  }
+
+  boolean isSealed() {
+    return sealed;
+  }
+
+  void seal() {
+    sealed = true;
+  }
+
+  int pendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * Reserves room for a record of {@code length} data bytes and returns its offset, or -1 when the
+   * segment is full. Callers serialize reservations; the record counts as pending from here on.
+   */
+  int reserve(long length) {
+    int offset = writePos;
+    if (offset + HEADER_BYTES + length > map.capacity()) {
+      return -1;
+    }
+    map.putInt(offset + 5, (int) length);
+    map.putInt(offset, RESERVED_MAGIC);
+    pending.incrementAndGet();
+    writePos = offset + HEADER_BYTES + (int) length;
+    return offset;
+  }
+
+  /**
+   * Copies a reserved record and publishes it. The raw message is streamed straight into the
+   * mapping. Appends to different offsets may run concurrently.
+   */
+  void write(int offset, byte[] meta, RawMessage raw) throws IOException {
+    ByteBuffer data = map.slice(offset + HEADER_BYTES, map.getInt(offset + 5));
+    data.putInt(meta.length).put(meta);
+    byte[] chunk = new byte[COPY_CHUNK];
+    try (InputStream in = raw.openStream()) {
+      while (data.hasRemaining()) {
+        int n = in.read(chunk, 0, Math.min(chunk.length, data.remaining()));
+        if (n < 0) {
+          throw new EOFException("Raw message ended " + data.remaining() + " bytes early");
+        }
+        data.put(chunk, 0, n);
+      }
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(data.flip());
+    map.putInt(offset + 9, (int) crc.getValue());
+    map.put(offset + 4, STATE_PENDING);
+    map.putInt(offset, MAGIC);
+  }
+
+  /** End of the record at {@code offset}, header included. */
+  int end(int offset) {
+    return offset + HEADER_BYTES + map.getInt(offset + 5);
+  }
+
+  /**
+   * Gives up on a reserved record whose copy failed; it stays reserved, so recovery skips it.
+   * Returns true when that was the last pending record.
+   */
+  boolean abandon() {
+    return pending.decrementAndGet() == 0;
+  }
+
+  /** Flushes the given byte range to the storage device. */
+  void force(int from, int to) {
+    if (to > from) {
+      map.force(from, to - from);
+    }
+  }
+
+  /** Returns a read-only view of the record data; it stays valid after the segment is deleted. */
+  ByteBuffer read(int offset) {
+    return map.slice(offset + HEADER_BYTES, map.getInt(offset + 5)).asReadOnlyBuffer();
+  }
+
+  /** Marks a record as delivered. Returns true when that was the last pending record. */
+  boolean ack(int offset) {
+    if (map.get(offset + 4) == STATE_ACKED) {
+      return false;
+    }
+    map.put(offset + 4, STATE_ACKED);
+    return pending.decrementAndGet() == 0;
+  }
+
+  /** Scans the segment after a restart and returns the offsets of records that were never acknowledged. */
+  List<Integer> recover() {
+    List<Integer> offsets = new ArrayList<>();
+    int pos = 0;
+    int limit = map.capacity();
+    while (pos + HEADER_BYTES <= limit) {
+      int magic = map.getInt(pos);
+      if (magic != MAGIC && magic != RESERVED_MAGIC) {
+        break;
+      }
+      int length = map.getInt(pos + 5);
+      if (length < 0 || pos + HEADER_BYTES + length > limit) {
+        break;
+      }
+      // Appends are copied concurrently, so a later record may be durable after an unfinished or torn one
+      if (magic != RESERVED_MAGIC && checksumMatches(pos, length) && map.get(pos + 4) == STATE_PENDING) {
+        offsets.add(pos);
+        pending.incrementAndGet();
+      }
+      pos += HEADER_BYTES + length;
+    }
+    writePos = pos;
+    return offsets;
+  }
+
+  private boolean checksumMatches(int offset, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(map.slice(offset + HEADER_BYTES, length));
+    return (int) crc.getValue() == map.getInt(offset + 9);
+  }
+
+  void close() throws IOException {
+    channel.close();
+  }
+
+  void delete() throws IOException {
+    close();
+    Files.deleteIfExists(file);
+  }
+
+  @Override
+  public String toString() {
+    return file.getFileName().toString();
+  }
+}
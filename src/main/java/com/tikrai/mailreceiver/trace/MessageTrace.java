@@ -0,0 +1,39 @@
+package com.tikrai.mailreceiver.trace;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diagnostics of one DATA transaction, kept in {@link TraceRecorder} instead of being logged.
+ * Bodies are not stored, only their sizes. {@code outcome} is {@code forwarded}, {@code spooled} or
+ * the reject reason also used for {@code smtp_rejects_total}; {@code failed} maps each recipient
+ * that could not be delivered to its error message.
+ */
+public record MessageTrace(
+    String id,
+    Instant receivedAt,
+    String remote,
+    String mailFrom,
+    List<String> rcptTo,
+    String subject,
+    long sizeBytes,
+    boolean spilled,
+    int headerCount,
+    int textChars,
+    int htmlChars,
+    double parseMillis,
+    double totalMillis,
+    String outcome,
+    int replyCode,
+    List<String> delivered,
+    Map<String, String> failed
+) {
+
+  @JsonIgnore
+  public boolean isError() {
+    return replyCode >= 400;
+  }
+}
@@ -0,0 +1,35 @@
+package com.tikrai.mailreceiver.trace;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * {@code /actuator/messages}: recent message traces, newest first, optionally filtered by
+ * {@code outcome} and capped by {@code limit} (default 100). {@code /actuator/messages/{id}}
+ * returns a single trace or 404.
+ */
+@Component
+@Endpoint(id = "messages")
+public class TraceEndpoint {
+
+  private final TraceRecorder recorder;
+
+  public TraceEndpoint(TraceRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  @ReadOperation
+  public List<MessageTrace> messages(@Nullable Integer limit, @Nullable String outcome) {
+    return recorder.recent(limit != null ? limit : 100, outcome);
+  }
+
+  @ReadOperation
+  public MessageTrace message(@Selector String id) {
+    return recorder.find(id);
+  }
+}
@@ -0,0 +1,79 @@
+package com.tikrai.mailreceiver.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent {@link MessageTrace}s in a fixed-size ring. Writers claim a slot with one
+ * atomic increment and never wait; readers walk the ring without locking, so a listing taken while
+ * messages arrive is a best-effort snapshot. Successful messages are kept with probability
+ * {@code app.trace.sampleRate}; rejected ones are always kept.
+ */
+@Component
+public class TraceRecorder {
+
+  private static final Logger log = LoggerFactory.getLogger(TraceRecorder.class);
+
+  private final AtomicReferenceArray<MessageTrace> ring;
+  private final int mask;
+  private final double sampleRate;
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong ids = new AtomicLong();
+  // Seconds since the epoch at startup, so ids do not repeat across restarts
+  private final String idPrefix = Long.toString(System.currentTimeMillis() / 1000, 36) + "-";
+
+  public TraceRecorder(
+      @Value("${app.trace.capacity:1024}") int capacity,
+      @Value("${app.trace.sampleRate:1.0}") double sampleRate
+  ) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.ring = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.sampleRate = sampleRate;
+    log.info("Message trace - capacity: {}, sampleRate: {}", size, sampleRate);
+  }
+
+  /** Correlation id for a new transaction; also printed in its log line. */
+  public String newId() {
+    return idPrefix + Long.toString(ids.incrementAndGet(), 36);
+  }
+
+  public void record(MessageTrace trace) {
+    if (!trace.isError() && sampleRate < 1.0
+        && (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+      return;
+    }
+    ring.set((int) (written.getAndIncrement() & mask), trace);
+  }
+
+  /** Newest first, at most {@code limit}; {@code outcome} filters when not null. */
+  public List<MessageTrace> recent(int limit, String outcome) {
+    List<MessageTrace> result = new ArrayList<>(Math.min(limit, ring.length()));
+    long end = written.get();
+    for (long i = end - 1; i >= Math.max(0, end - ring.length()) && result.size() < limit; i--) {
+      MessageTrace trace = ring.get((int) (i & mask));
+      if (trace != null && (outcome == null || outcome.equals(trace.outcome()))) {
+        result.add(trace);
+      }
+    }
+    return result;
+  }
+
+  public MessageTrace find(String id) {
+    for (int i = 0; i < ring.length(); i++) {
+      MessageTrace trace = ring.get(i);
+      if (trace != null && trace.id().equals(id)) {
+        return trace;
+      }
+    }
+    return null;
+  }
+}
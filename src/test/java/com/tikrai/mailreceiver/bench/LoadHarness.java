@@ -0,0 +1,201 @@
+package com.tikrai.mailreceiver.bench;
+
+import com.tikrai.mailreceiver.MailReceiverApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Self-contained load test: starts the receiver in-process against a {@link StubDownstream}, drives
+ * it with {@link SmtpLoadGenerator} and prints throughput, p50/p99 latency and heap usage. Needs
+ * no network beyond loopback, so it runs in CI; {@link LoadHarnessTest} runs a short case on every
+ * build and the long one with {@code -Pload}.
+ *
+ * <p>Harness options are listed in {@link #DEFAULTS}; any other {@code --key=value} is passed to the
+ * application.
+ */
+final class LoadHarness {
+
+  private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+  static {
+    DEFAULTS.put("duration", "30");
+    DEFAULTS.put("warmup", "5");
+    DEFAULTS.put("connections", "20");
+    DEFAULTS.put("recipients", "1");
+    DEFAULTS.put("sizes", "4k:70,64k:25,1m:5");
+    DEFAULTS.put("stub.latencyMs", "10");
+    DEFAULTS.put("stub.jitterMs", "0");
+    DEFAULTS.put("stub.errorRate", "0");
+    DEFAULTS.put("maxErrorRate", "1");
+  }
+
+  /** What the generator saw in the measured window, and the stub's request count over the whole run. */
+  record Result(SmtpLoadGenerator.Stats stats, double seconds, long downstreamRequests, double maxErrorRate) {
+
+    double errorRatio() {
+      long attempted = stats.sent + stats.failed;
+      return attempted > 0 ? (double) stats.failed / attempted : 0;
+    }
+
+    /** At least one message was accepted and the failure ratio stayed within {@code maxErrorRate}. */
+    boolean passed() {
+      return stats.sent > 0 && errorRatio() <= maxErrorRate;
+    }
+  }
+
+  private LoadHarness() {}
+
+  /** Runs one load test and prints its report. */
+  static Result run(String... args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+    List<String> appArgs = new ArrayList<>();
+    for (String arg : args) {
+      String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+      if (DEFAULTS.containsKey(kv[0])) {
+        options.put(kv[0], kv.length > 1 ? kv[1] : "");
+      } else {
+        appArgs.add(arg);
+      }
+    }
+
+    try (StubDownstream stub = new StubDownstream(
+        Long.parseLong(options.get("stub.latencyMs")),
+        Long.parseLong(options.get("stub.jitterMs")),
+        Double.parseDouble(options.get("stub.errorRate")))) {
+      int smtpPort = freePort();
+      List<String> springArgs = new ArrayList<>(List.of(
+          "--server.port=0",
+          "--app.smtp.host=127.0.0.1",
+          "--app.smtp.port=" + smtpPort,
+          "--app.forward.url=" + stub.url(),
+          // A single client address would otherwise hit the per-IP limits at once
+          "--app.smtp.admission.maxSessionsPerIp=0",
+          "--app.smtp.admission.ipMessagesPerMinute=0",
+          "--app.smtp.admission.senderMessagesPerMinute=0",
+          "--app.shutdown.readinessGraceMs=0",
+          "--logging.level.root=WARN",
+          "--logging.level.com.tikrai.mailreceiver=WARN",
+          "--logging.level.org.springframework.web=WARN",
+          "--logging.level.org.springframework.web.reactive=WARN",
+          "--logging.level.org.springframework.http=WARN",
+          "--logging.level.reactor.netty=WARN",
+          "--logging.level.org.subethamail=WARN",
+          "--logging.level.org.subethamail.smtp=WARN",
+          "--logging.level.java.net=WARN",
+          "--logging.level.java.nio=WARN"));
+      springArgs.addAll(appArgs);
+
+      try (ConfigurableApplicationContext app = SpringApplication.run(
+          MailReceiverApplication.class, springArgs.toArray(String[]::new))) {
+        String domain = app.getEnvironment().getProperty("app.smtp.acceptedDomain", "tikrai.com");
+        SmtpLoadGenerator generator = new SmtpLoadGenerator(smtpPort,
+            Integer.parseInt(options.get("connections")),
+            Integer.parseInt(options.get("recipients")),
+            domain,
+            SmtpLoadGenerator.SizeClass.parseMix(options.get("sizes")));
+
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+        System.out.printf("Load test - %s, app args: %s%n", options, appArgs);
+
+        HeapSampler heap = new HeapSampler();
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        heap.startAt(measureFrom);
+        SmtpLoadGenerator.Stats stats = generator.run(measureFrom, measureFrom + durationNanos);
+        double seconds = (System.nanoTime() - measureFrom) / 1e9;
+        heap.stop();
+
+        Result result = new Result(stats, seconds, stub.requests(),
+            Double.parseDouble(options.get("maxErrorRate")));
+        System.out.printf(Locale.ROOT, "Messages: %d accepted, %d failed (%.2f%%) in %.1f s%n",
+            stats.sent, stats.failed, result.errorRatio() * 100, seconds);
+        System.out.printf(Locale.ROOT, "Throughput: %.1f msg/s, %.2f MB/s%n",
+            stats.sent / seconds, stats.bytes / seconds / (1024 * 1024));
+        System.out.printf(Locale.ROOT, "Latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+            stats.percentileMillis(0.50), stats.percentileMillis(0.99), stats.percentileMillis(1.0));
+        System.out.printf(Locale.ROOT, "Heap: peak %d MB used, %d MB after run, max %d MB; GC: %d collections, %d ms%n",
+            heap.peakBytes() >> 20, heap.usedBytes() >> 20, heap.maxBytes() >> 20,
+            heap.gcCount(), heap.gcMillis());
+        System.out.printf("Downstream: %d requests, %d failed by the stub%n", stub.requests(), stub.failures());
+        return result;
+      }
+    }
+  }
+
+  private static int freePort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /** Peak heap and GC activity over the measured window; the process also hosts the generator and stub. */
+  private static final class HeapSampler {
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "heap-sampler");
+      t.setDaemon(true);
+      return t;
+    });
+    private final AtomicLong peak = new AtomicLong();
+    private long gcCountAtStart;
+    private long gcMillisAtStart;
+
+    void startAt(long nanos) {
+      long delay = Math.max(0, nanos - System.nanoTime());
+      timer.schedule(() -> {
+        gcCountAtStart = gcTotal(true);
+        gcMillisAtStart = gcTotal(false);
+      }, delay, TimeUnit.NANOSECONDS);
+      timer.scheduleAtFixedRate(() -> peak.accumulateAndGet(usedBytes(), Math::max),
+          delay, 100_000_000, TimeUnit.NANOSECONDS);
+    }
+
+    void stop() throws InterruptedException {
+      timer.shutdown();
+      timer.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    long usedBytes() {
+      return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    long peakBytes() {
+      return peak.get();
+    }
+
+    long maxBytes() {
+      return memory.getHeapMemoryUsage().getMax();
+    }
+
+    long gcCount() {
+      return gcTotal(true) - gcCountAtStart;
+    }
+
+    long gcMillis() {
+      return gcTotal(false) - gcMillisAtStart;
+    }
+
+    private static long gcTotal(boolean count) {
+      long total = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        total += Math.max(0, count ? gc.getCollectionCount() : gc.getCollectionTime());
+      }
+      return total;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.tikrai.mailreceiver.bench;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LoadHarnessTest {
+
+  @Test
+  void shortRunForwardsEveryMessage() throws Exception {
+    LoadHarness.Result result = LoadHarness.run(
+        "--warmup=1", "--duration=3", "--connections=4", "--sizes=4k:80,64k:20", "--stub.latencyMs=2");
+
+    assertThat(result.stats().sent).isPositive();
+    assertThat(result.stats().failed).isZero();
+    assertThat(result.downstreamRequests()).isGreaterThanOrEqualTo(result.stats().sent);
+  }
+
+  /**
+   * The long run, only with {@code -Pload}. Every {@code load.<option>} system property becomes a
+   * {@code --<option>} argument, e.g. {@code mvn -Pload test -Dload.duration=300
+   * -Dload.stub.errorRate=0.01 -Dload.maxErrorRate=0.05 -Dload.app.forward.mode=async}.
+   */
+  @Test
+  @Tag("load")
+  void longRun() throws Exception {
+    String[] args = System.getProperties().stringPropertyNames().stream()
+        .filter(name -> name.startsWith("load."))
+        .map(name -> "--" + name.substring("load.".length()) + "=" + System.getProperty(name))
+        .toArray(String[]::new);
+
+    LoadHarness.Result result = LoadHarness.run(args);
+
+    assertThat(result.passed())
+        .as("accepted %d, error ratio %.4f, max %s", result.stats().sent, result.errorRatio(), result.maxErrorRate())
+        .isTrue();
+  }
+}
@@ -0,0 +1,250 @@
+package com.tikrai.mailreceiver.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the SMTP port from {@code connections} parallel sessions, each sending messages back to
+ * back until the deadline. Message sizes are drawn from a weighted mix; latency is measured from
+ * MAIL FROM to the reply to the final dot, so with synchronous forwarding it includes the
+ * downstream call.
+ */
+final class SmtpLoadGenerator {
+
+  /** One entry of the size mix: messages of {@code bytes} drawn with relative {@code weight}. */
+  record SizeClass(int bytes, int weight) {
+
+    /** Parses {@code 4k:70,64k:25,1m:5}. */
+    static List<SizeClass> parseMix(String mix) {
+      List<SizeClass> classes = new ArrayList<>();
+      for (String entry : mix.split(",")) {
+        String[] parts = entry.trim().split(":");
+        classes.add(new SizeClass(parseBytes(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 1));
+      }
+      return classes;
+    }
+
+    private static int parseBytes(String size) {
+      String s = size.trim().toLowerCase();
+      int unit = s.endsWith("k") ? 1024 : s.endsWith("m") ? 1024 * 1024 : 1;
+      return Integer.parseInt(unit == 1 ? s : s.substring(0, s.length() - 1)) * unit;
+    }
+  }
+
+  /** What one session saw during the measured window. */
+  static final class Stats {
+    long sent;
+    long failed;
+    long bytes;
+    long[] latenciesNanos = new long[1024];
+    int count;
+
+    void record(long nanos) {
+      if (count == latenciesNanos.length) {
+        latenciesNanos = Arrays.copyOf(latenciesNanos, count * 2);
+      }
+      latenciesNanos[count++] = nanos;
+    }
+
+    void add(Stats other) {
+      sent += other.sent;
+      failed += other.failed;
+      bytes += other.bytes;
+      for (int i = 0; i < other.count; i++) {
+        record(other.latenciesNanos[i]);
+      }
+    }
+
+    /** Latency at quantile {@code q} in milliseconds; sorts in place. */
+    double percentileMillis(double q) {
+      if (count == 0) {
+        return 0;
+      }
+      Arrays.sort(latenciesNanos, 0, count);
+      int index = (int) Math.min(count - 1, Math.ceil(q * count) - 1);
+      return latenciesNanos[Math.max(0, index)] / 1_000_000.0;
+    }
+  }
+
+  private final int port;
+  private final int connections;
+  private final int recipients;
+  private final String domain;
+  private final byte[][] messages;
+  private final int[] cumulativeWeights;
+  private final AtomicLong transactionCounter = new AtomicLong();
+
+  SmtpLoadGenerator(int port, int connections, int recipients, String domain, List<SizeClass> mix) {
+    this.port = port;
+    this.connections = connections;
+    this.recipients = recipients;
+    this.domain = domain;
+    this.messages = new byte[mix.size()][];
+    this.cumulativeWeights = new int[mix.size()];
+    int total = 0;
+    for (int i = 0; i < mix.size(); i++) {
+      messages[i] = message(mix.get(i).bytes(), i);
+      total += mix.get(i).weight();
+      cumulativeWeights[i] = total;
+    }
+  }
+
+  /** Runs until {@code endNanos}; only transactions started after {@code measureFromNanos} are counted. */
+  Stats run(long measureFromNanos, long endNanos) throws Exception {
+    Stats total = new Stats();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<Stats>> sessions = new ArrayList<>();
+      for (int i = 0; i < connections; i++) {
+        int session = i;
+        sessions.add(executor.submit(() -> session(session, measureFromNanos, endNanos)));
+      }
+      for (Future<Stats> session : sessions) {
+        total.add(session.get());
+      }
+    }
+    return total;
+  }
+
+  private Stats session(int session, long measureFromNanos, long endNanos) {
+    Stats stats = new Stats();
+    while (System.nanoTime() < endNanos) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+        socket.setSoTimeout(60_000);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        expect(in, '2');
+        command(out, "EHLO load-" + session);
+        expect(in, '2');
+        while (System.nanoTime() < endNanos) {
+          long start = System.nanoTime();
+          int size = pickSize();
+          boolean ok = transaction(in, out, session, messages[size]);
+          if (start >= measureFromNanos) {
+            if (ok) {
+              stats.sent++;
+              stats.bytes += messages[size].length;
+              stats.record(System.nanoTime() - start);
+            } else {
+              stats.failed++;
+            }
+          }
+        }
+        command(out, "QUIT");
+      } catch (IOException e) {
+        // Dropped session: count it and reconnect
+        if (System.nanoTime() >= measureFromNanos) {
+          stats.failed++;
+        }
+      }
+    }
+    return stats;
+  }
+
+  private boolean transaction(InputStream in, OutputStream out, int session, byte[] message) throws IOException {
+    command(out, "MAIL FROM:<load-" + session + "@example.com>");
+    if (!expect(in, '2')) {
+      return reset(in, out);
+    }
+    int accepted = 0;
+    for (int r = 0; r < recipients; r++) {
+      command(out, "RCPT TO:<user" + r + "@" + domain + ">");
+      if (expect(in, '2')) {
+        accepted++;
+      }
+    }
+    if (accepted == 0) {
+      return reset(in, out);
+    }
+    command(out, "DATA");
+    if (!expect(in, '3')) {
+      return reset(in, out);
+    }
+    // A unique Message-ID per transaction, or the forward idempotency cache would drop repeats
+    command(out, "Message-ID: <" + session + "." + transactionCounter.incrementAndGet() + "@load.example.com>");
+    out.write(message);
+    command(out, ".");
+    return expect(in, '2');
+  }
+
+  private boolean reset(InputStream in, OutputStream out) throws IOException {
+    command(out, "RSET");
+    expect(in, '2');
+    return false;
+  }
+
+  private int pickSize() {
+    int roll = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (roll < cumulativeWeights[i]) {
+        return i;
+      }
+    }
+    return cumulativeWeights.length - 1;
+  }
+
+  private static void command(OutputStream out, String line) throws IOException {
+    out.write(line.getBytes(StandardCharsets.US_ASCII));
+    out.write('\r');
+    out.write('\n');
+    out.flush();
+  }
+
+  /** Reads a (possibly multi-line) reply and checks its first digit. */
+  private static boolean expect(InputStream in, char digit) throws IOException {
+    while (true) {
+      StringBuilder line = new StringBuilder();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0) {
+          throw new IOException("Connection closed by server");
+        }
+        line.append((char) b);
+      }
+      if (line.length() < 4 || line.charAt(3) != '-') {
+        return line.length() > 0 && line.charAt(0) == digit;
+      }
+    }
+  }
+
+  /** A multipart message of roughly {@code size} bytes, dot-stuffing free, ending with CRLF. */
+  private byte[] message(int size, int seed) {
+    StringBuilder sb = new StringBuilder(size + 1024)
+        .append("From: load@example.com\r\n")
+        .append("To: user0@").append(domain).append("\r\n")
+        .append("Subject: Load test ").append(size).append(" bytes\r\n")
+        .append("MIME-Version: 1.0\r\n")
+        .append("Content-Type: multipart/mixed; boundary=\"load\"\r\n\r\n")
+        .append("--load\r\nContent-Type: text/plain; charset=utf-8\r\n\r\n")
+        .append("Load test message.\r\n")
+        .append("--load\r\nContent-Type: text/html; charset=utf-8\r\n\r\n")
+        .append("<p>Load test message.</p>\r\n")
+        .append("--load\r\nContent-Type: application/octet-stream\r\n")
+        .append("Content-Transfer-Encoding: base64\r\n\r\n");
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    Random random = new Random(seed);
+    while (sb.length() < size) {
+      for (int i = 0; i < 76; i++) {
+        sb.append(alphabet.charAt(random.nextInt(64)));
+      }
+      sb.append("\r\n");
+    }
+    sb.append("--load--\r\n");
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+}
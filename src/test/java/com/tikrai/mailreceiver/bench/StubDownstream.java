@@ -0,0 +1,124 @@
+package com.tikrai.mailreceiver.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for {@code tikrai-server-service}: accepts the form, raw and batch posts and the
+ * recipient lookup on a loopback port. Each request waits {@code latencyMs} (plus up to
+ * {@code jitterMs}) and fails with 503 with probability {@code errorRate}.
+ */
+final class StubDownstream implements AutoCloseable {
+
+  static final String PATH = "/api/admin/aggregateemail";
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  private final long latencyMs;
+  private final long jitterMs;
+  private final double errorRate;
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  StubDownstream(long latencyMs, long jitterMs, double errorRate) throws IOException {
+    this.latencyMs = latencyMs;
+    this.jitterMs = jitterMs;
+    this.errorRate = errorRate;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  String url() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+  }
+
+  long requests() {
+    return requests.get();
+  }
+
+  long failures() {
+    return failures.get();
+  }
+
+  long bytes() {
+    return bytes.get();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      byte[] body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = in.readAllBytes();
+      }
+      requests.incrementAndGet();
+      bytes.addAndGet(body.length);
+      delay();
+      if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+        failures.incrementAndGet();
+        exchange.sendResponseHeaders(503, -1);
+        return;
+      }
+      if (exchange.getRequestURI().getPath().endsWith("/batch")) {
+        respond(exchange, batchResults(body));
+      } else {
+        exchange.sendResponseHeaders(200, -1);
+      }
+    }
+  }
+
+  private void delay() {
+    long millis = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Accepts every item of an NDJSON batch. */
+  private static byte[] batchResults(byte[] ndjson) throws IOException {
+    ArrayNode results = JSON.createArrayNode();
+    for (String line : new String(ndjson, StandardCharsets.UTF_8).split("\n")) {
+      if (!line.isBlank()) {
+        JsonNode item = JSON.readTree(line);
+        results.addObject().put("id", item.path("id").asText()).put("accepted", true);
+      }
+    }
+    return JSON.writeValueAsBytes(results);
+  }
+
+  private static void respond(HttpExchange exchange, byte[] json) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, json.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(json);
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,102 @@
+package com.tikrai.mailreceiver.blob;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocalBlobStoreTest {
+
+  // SHA-256 of "hello"
+  private static final String HELLO = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+  @TempDir
+  Path dir;
+
+  private LocalBlobStore store;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    store = new LocalBlobStore(true, dir.toString(), 1);
+  }
+
+  @AfterEach
+  void tearDown() {
+    store.close();
+  }
+
+  @Test
+  void putStoresTheContentUnderItsHash() throws IOException {
+    BlobStore.Blob blob = store.put(content("hello"));
+
+    assertThat(blob).isEqualTo(new BlobStore.Blob(HELLO, 5));
+    assertThat(dir.resolve("2c").resolve("f2").resolve(HELLO)).hasContent("hello");
+    assertThat(dir.resolve("tmp")).isEmptyDirectory();
+  }
+
+  @Test
+  void sameContentIsKeptOnceAndRefreshed() throws IOException {
+    store.put(content("hello"));
+    Path file = dir.resolve("2c").resolve("f2").resolve(HELLO);
+    FileTime old = FileTime.from(Instant.now().minus(Duration.ofMinutes(30)));
+    Files.setLastModifiedTime(file, old);
+
+    assertThat(store.put(content("hello")).sha256()).isEqualTo(HELLO);
+
+    assertThat(blobFiles()).containsExactly(file);
+    assertThat(Files.getLastModifiedTime(file)).isGreaterThan(old);
+    assertThat(dir.resolve("tmp")).isEmptyDirectory();
+  }
+
+  @Test
+  void openReadsAStoredBlobAndNothingElse() throws IOException {
+    store.put(content("hello"));
+
+    try (InputStream in = store.open(HELLO)) {
+      assertThat(in).hasContent("hello");
+    }
+    assertThat(store.open("0".repeat(64))).isNull();
+    // Only a hash names a blob, never a path
+    assertThat(store.open("../" + HELLO)).isNull();
+  }
+
+  @Test
+  void sweepDeletesBlobsNotStoredAgainWithinTheRetention() throws IOException {
+    String stale = store.put(content("stale")).sha256();
+    store.put(content("hello"));
+    Path staleFile = dir.resolve(stale.substring(0, 2)).resolve(stale.substring(2, 4)).resolve(stale);
+    Files.setLastModifiedTime(staleFile, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+
+    store.sweep();
+
+    assertThat(staleFile).doesNotExist();
+    assertThat(store.open(stale)).isNull();
+    try (InputStream in = store.open(HELLO)) {
+      assertThat(in).hasContent("hello");
+    }
+  }
+
+  private List<Path> blobFiles() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files.filter(Files::isRegularFile).toList();
+    }
+  }
+
+  private static InputStream content(String s) {
+    return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+  }
+}
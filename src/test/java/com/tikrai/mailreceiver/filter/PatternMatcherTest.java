@@ -0,0 +1,44 @@
+package com.tikrai.mailreceiver.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PatternMatcherTest {
+
+  @Test
+  void findsFirstListedPatternIgnoringCase() {
+    PatternMatcher matcher = PatternMatcher.compile(List.of("pills", "cheap", "CHEAP PILLS"));
+
+    assertThat(matcher.find("Buy Cheap Pills now")).isZero();
+    assertThat(matcher.find("cheap watches")).isEqualTo(1);
+    assertThat(matcher.find("nothing to see")).isEqualTo(-1);
+  }
+
+  @Test
+  void followsFailureLinks() {
+    // "she" fails over into "he", "hers" shares its prefix
+    PatternMatcher matcher = PatternMatcher.compile(List.of("hers", "his", "he"));
+
+    assertThat(matcher.find("ushers")).isZero();
+    assertThat(matcher.find("ushe")).isEqualTo(2);
+    assertThat(matcher.find("this")).isEqualTo(1);
+  }
+
+  @Test
+  void patternInsideLongerPatternIsFound() {
+    PatternMatcher matcher = PatternMatcher.compile(List.of("tracking.example/pixel", "example"));
+
+    assertThat(matcher.find("https://tracking.example/other")).isEqualTo(1);
+    assertThat(matcher.find("https://tracking.example/pixel.gif")).isZero();
+  }
+
+  @Test
+  void emptyPatternsNeverMatch() {
+    assertThat(PatternMatcher.EMPTY.find("anything")).isEqualTo(-1);
+    assertThat(PatternMatcher.compile(List.of("", "x")).find("abc")).isEqualTo(-1);
+    assertThat(PatternMatcher.compile(List.of("", "x")).find("xyz")).isEqualTo(1);
+  }
+}
@@ -0,0 +1,95 @@
+package com.tikrai.mailreceiver.filter;
+
+import com.tikrai.mailreceiver.filter.FilterVerdict.Action;
+import com.tikrai.mailreceiver.mime.HeaderBlock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RuleFileFilterTest {
+
+  private static final String RULES = """
+      # name        action  match          value
+      bad-net       reject  ip             203.0.113.0/24
+      bad-host      reject  ip             198.51.100.7
+      bulk-sender   drop    sender         news@bulk.example
+      spam-domain   reject  sender-domain  spam.example
+      mass-mailer   reject  header         X-Mailer: BulkBlaster
+      has-campaign  drop    header         X-Campaign-Id: *
+      pills         reject  subject        cheap pills
+      tracker       drop    headers        tracking.example/pixel
+      """;
+
+  @TempDir
+  Path dir;
+
+  private RuleFileFilter filter;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Path rules = Files.writeString(dir.resolve("rules.txt"), RULES);
+    filter = new RuleFileFilter(rules.toString(), 60_000);
+  }
+
+  @AfterEach
+  void tearDown() {
+    filter.close();
+  }
+
+  @Test
+  void envelopeRules() throws IOException {
+    InetAddress clean = InetAddress.getByName("192.0.2.1");
+
+    assertThat(filter.envelope(InetAddress.getByName("203.0.113.200"), "a@ok.example").rule()).isEqualTo("bad-net");
+    assertThat(filter.envelope(InetAddress.getByName("198.51.100.7"), "a@ok.example").rule()).isEqualTo("bad-host");
+    assertThat(filter.envelope(InetAddress.getByName("198.51.100.8"), "a@ok.example")).isEqualTo(FilterVerdict.PASS);
+    assertThat(filter.envelope(clean, "News@Bulk.Example")).isEqualTo(new FilterVerdict(Action.DROP, "bulk-sender"));
+    assertThat(filter.envelope(clean, "x@mail.spam.example").rule()).isEqualTo("spam-domain");
+    assertThat(filter.envelope(clean, "x@notspam.example")).isEqualTo(FilterVerdict.PASS);
+    assertThat(filter.envelope(null, "")).isEqualTo(FilterVerdict.PASS);
+  }
+
+  @Test
+  void headerRules() throws IOException {
+    assertThat(filter.headers(headers("X-Mailer: bulkblaster\r\n"))).isEqualTo(new FilterVerdict(Action.REJECT, "mass-mailer"));
+    assertThat(filter.headers(headers("X-Mailer: BulkBlaster 2\r\n"))).isEqualTo(FilterVerdict.PASS);
+    assertThat(filter.headers(headers("X-Campaign-Id: 42\r\n")).rule()).isEqualTo("has-campaign");
+    assertThat(filter.headers(headers("Subject: =?UTF-8?Q?Cheap_Pills?=\r\n")).rule()).isEqualTo("pills");
+    assertThat(filter.headers(headers("List-Unsubscribe: <https://tracking.example/pixel?u=1>\r\n")).rule())
+        .isEqualTo("tracker");
+    assertThat(filter.headers(headers("Subject: Hello\r\n"))).isEqualTo(FilterVerdict.PASS);
+  }
+
+  @Test
+  void malformedRuleNamesItsLine() throws IOException {
+    Path rules = Files.writeString(dir.resolve("broken.txt"), "# comment\nbroken line\n");
+
+    assertThatThrownBy(() -> new RuleFileFilter(rules.toString(), 60_000))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageStartingWith("line 2:");
+  }
+
+  @Test
+  void noFilePassesEverything() throws IOException {
+    try (RuleFileFilter none = new RuleFileFilter("", 60_000)) {
+      assertThat(none.envelope(InetAddress.getByName("203.0.113.1"), "news@bulk.example")).isEqualTo(FilterVerdict.PASS);
+      assertThat(none.headers(headers("X-Mailer: BulkBlaster\r\n"))).isEqualTo(FilterVerdict.PASS);
+    }
+  }
+
+  private static HeaderBlock headers(String fields) throws IOException {
+    byte[] message = (fields + "\r\nbody\r\n").getBytes(StandardCharsets.UTF_8);
+    return HeaderBlock.read(new ByteArrayInputStream(message), 64 * 1024);
+  }
+}
@@ -0,0 +1,130 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BatchForwarderTest {
+
+  private final ForwardClient client = mock(ForwardClient.class);
+  private final ObjectMapper mapper = new ObjectMapper();
+  private BatchForwarder forwarder;
+
+  @AfterEach
+  void close() {
+    forwarder.close();
+  }
+
+  @Test
+  void failedItemsAreRetriedAfterABackoff() {
+    List<Long> sentAt = new CopyOnWriteArrayList<>();
+    when(client.sendBatch(any(), anyInt())).thenAnswer(call -> {
+      sentAt.add(System.nanoTime());
+      return Mono.error(new IllegalStateException("503"));
+    });
+    forwarder = forwarder(3, 100);
+
+    CompletableFuture<Void> result = forwarder.submit(payload("key"));
+
+    assertThat(result).failsWithin(5, TimeUnit.SECONDS);
+    assertThat(sentAt).hasSize(3);
+    // Each retry waits 50..100 ms before it joins a batch again
+    assertThat(TimeUnit.NANOSECONDS.toMillis(sentAt.get(2) - sentAt.get(0))).isGreaterThanOrEqualTo(100);
+  }
+
+  @Test
+  void onlyRejectedItemsGoIntoTheNextBatch() {
+    List<List<String>> batches = new CopyOnWriteArrayList<>();
+    when(client.sendBatch(any(), anyInt())).thenAnswer(call -> {
+      List<String> ids = new ArrayList<>();
+      for (String line : new String(call.<byte[]>getArgument(0), StandardCharsets.UTF_8).split("\n")) {
+        ids.add(mapper.readTree(line).get("id").asText());
+      }
+      batches.add(ids);
+      // The first batch accepts its first item only
+      boolean retry = batches.size() > 1;
+      return Mono.just(ids.stream().map(id -> new BatchItemResult(id, retry || id.equals(ids.get(0)), "busy")).toList());
+    });
+    // Two items fill a batch, so both go out together
+    forwarder = new BatchForwarder(client, mapper, true, 2, 1 << 20, 200, 3, 100, 100, 16);
+
+    CompletableFuture<Void> first = forwarder.submit(payload("one"));
+    CompletableFuture<Void> second = forwarder.submit(payload("two"));
+
+    assertThat(first).succeedsWithin(5, TimeUnit.SECONDS);
+    assertThat(second).succeedsWithin(5, TimeUnit.SECONDS);
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(1)).containsExactly(batches.get(0).get(1));
+  }
+
+  @Test
+  void openCircuitFailsAtOnceWithoutRetrying() {
+    when(client.sendBatch(any(), anyInt())).thenReturn(Mono.error(new CircuitOpenException("open")));
+    forwarder = forwarder(3, 100);
+
+    CompletableFuture<Void> result = forwarder.submit(payload("key"));
+
+    assertThat(result).failsWithin(5, TimeUnit.SECONDS)
+        .withThrowableOfType(ExecutionException.class)
+        .withCauseInstanceOf(CircuitOpenException.class);
+    verify(client, times(1)).sendBatch(any(), anyInt());
+  }
+
+  @Test
+  void cancelledItemsAreNotSent() {
+    // The batch only goes out when close() flushes it, well after the cancel
+    forwarder = new BatchForwarder(client, mapper, true, 100, 1 << 20, 60_000, 3, 100, 100, 16);
+
+    forwarder.submit(payload("key")).cancel(false);
+    forwarder.close();
+
+    verify(client, never()).sendBatch(any(), anyInt());
+  }
+
+  @Test
+  void itemIdIsTheIdempotencyKey() {
+    List<String> bodies = new CopyOnWriteArrayList<>();
+    when(client.sendBatch(any(), anyInt())).thenAnswer(call -> {
+      bodies.add(new String(call.<byte[]>getArgument(0), StandardCharsets.UTF_8));
+      return Mono.just(List.<BatchItemResult>of());
+    });
+    forwarder = forwarder(1, 100);
+
+    forwarder.submit(payload("key"));
+    forwarder.submit(payload("key"));
+    forwarder.close();
+
+    String id = IdempotencyCache.requestKey("key", List.of("rcpt@example.com"));
+    assertThat(bodies).isNotEmpty().allSatisfy(body -> assertThat(body).contains("\"id\":\"" + id + "\""));
+  }
+
+  private BatchForwarder forwarder(int maxAttempts, long maxBackoffMs) {
+    return new BatchForwarder(client, mapper, true, 100, 1 << 20, 10, maxAttempts, 100, maxBackoffMs, 16);
+  }
+
+  private static IncomingEmailPayload payload(String messageKey) {
+    return new IncomingEmailPayload("sender@example.org", List.of("rcpt@example.com"), "subject", "body", "",
+        Map.of(), List.of(), RawMessage.EMPTY, messageKey);
+  }
+}
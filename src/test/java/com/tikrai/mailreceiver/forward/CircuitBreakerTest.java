@@ -0,0 +1,79 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.forward.CircuitBreaker.State;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CircuitBreakerTest {
+
+  @Test
+  void opensAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 60_000);
+
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onSuccess();
+    breaker.onFailure();
+    breaker.onFailure();
+    assertThat(breaker.acquire()).isEqualTo(State.CLOSED);
+
+    breaker.onFailure();
+    assertThat(breaker.acquire()).isEqualTo(State.OPEN);
+  }
+
+  @Test
+  void singleTrialCallAfterOpenPeriod() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20);
+    breaker.onFailure();
+    Thread.sleep(30);
+
+    assertThat(breaker.acquire()).isEqualTo(State.HALF_OPEN);
+    assertThat(breaker.acquire()).isEqualTo(State.OPEN);
+
+    breaker.onSuccess();
+    assertThat(breaker.acquire()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  void failedTrialOpensAgain() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20);
+    breaker.onFailure();
+    Thread.sleep(30);
+    assertThat(breaker.acquire()).isEqualTo(State.HALF_OPEN);
+
+    breaker.onFailure();
+    assertThat(breaker.acquire()).isEqualTo(State.OPEN);
+  }
+
+  @Test
+  void cancelledTrialLetsTheNextCallerTry() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20);
+    breaker.onFailure();
+    Thread.sleep(30);
+    assertThat(breaker.acquire()).isEqualTo(State.HALF_OPEN);
+
+    breaker.onCancel();
+    assertThat(breaker.acquire()).isEqualTo(State.HALF_OPEN);
+  }
+
+  @Test
+  void cancelOutsideTrialChangesNothing() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 60_000);
+    breaker.onCancel();
+    assertThat(breaker.acquire()).isEqualTo(State.CLOSED);
+
+    breaker.onFailure();
+    breaker.onCancel();
+    assertThat(breaker.acquire()).isEqualTo(State.OPEN);
+  }
+
+  @Test
+  void zeroThresholdNeverOpens() {
+    CircuitBreaker breaker = new CircuitBreaker(0, 60_000);
+    for (int i = 0; i < 100; i++) {
+      breaker.onFailure();
+    }
+    assertThat(breaker.acquire()).isEqualTo(State.CLOSED);
+  }
+}
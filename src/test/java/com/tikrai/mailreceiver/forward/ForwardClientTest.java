@@ -0,0 +1,99 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.model.AttachmentRef;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.client.reactive.MockClientHttpRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ForwardClientTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final AtomicReference<String> sent = new AtomicReference<>();
+
+  @Test
+  void multipartFormSendsEveryValueOfARepeatedField() {
+    IncomingEmailPayload payload = new IncomingEmailPayload("sender@example.org",
+        List.of("a@example.com", "b@example.com"), "subject", "body", "", Map.of(),
+        List.of(new AttachmentRef("aa11", "one.pdf", "application/pdf", 10),
+            new AttachmentRef("bb22", "two.png", "image/png", 20)),
+        RawMessage.of(ByteBuffer.wrap("Subject: subject\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII))),
+        null);
+
+    client("multipart", "form").send(payload).block();
+
+    String body = sent.get();
+    assertThat(parts(body, "to")).containsExactly("a@example.com", "b@example.com");
+    assertThat(parts(body, "attachmentSha256")).containsExactly("aa11", "bb22");
+    assertThat(parts(body, "attachmentName")).containsExactly("one.pdf", "two.png");
+    assertThat(parts(body, "attachmentType")).containsExactly("application/pdf", "image/png");
+    assertThat(parts(body, "attachmentSize")).containsExactly("10", "20");
+    assertThat(body).contains("filename=\"message.eml\"", "Subject: subject\r\n\r\nbody\r\n");
+  }
+
+  @Test
+  void multipartJsonSendsThePayloadPartAndTheRawMessage() {
+    IncomingEmailPayload payload = new IncomingEmailPayload("sender@example.org",
+        List.of("a@example.com", "b@example.com"), "subject", "body", "", Map.of(), List.of(),
+        RawMessage.of(ByteBuffer.wrap("Subject: subject\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII))),
+        null);
+
+    client("multipart", "json").send(payload).block();
+
+    String body = sent.get();
+    assertThat(parts(body, "payload")).singleElement().asString()
+        .startsWith("{\"to\":\"a@example.com\"")
+        .contains("\"rcptTo\":[\"a@example.com\",\"b@example.com\"]");
+    assertThat(body).contains("filename=\"message.eml\"", "Subject: subject\r\n\r\nbody\r\n");
+  }
+
+  @Test
+  void requestsOfOneKindAndStatusShareATimer() {
+    ForwardClient client = client("none", "form");
+    IncomingEmailPayload payload = new IncomingEmailPayload("sender@example.org", List.of("a@example.com"),
+        "subject", "body", "", Map.of(), List.of(), RawMessage.EMPTY, null);
+
+    client.send(payload).block();
+    client.send(payload).block();
+
+    assertThat(registry.get("forward.request").tag("kind", "single").tag("status", "200").timers())
+        .singleElement()
+        .satisfies(timer -> assertThat(timer.count()).isEqualTo(2));
+  }
+
+  private ForwardClient client(String rawMode, String format) {
+    WebClient.Builder builder = WebClient.builder().exchangeFunction(request -> {
+      MockClientHttpRequest captured = new MockClientHttpRequest(request.method(), request.url());
+      return request.writeTo(captured, ExchangeStrategies.withDefaults())
+          .then(Mono.defer(captured::getBodyAsString))
+          .doOnNext(sent::set)
+          .then(Mono.just(ClientResponse.create(HttpStatus.OK).body("ok").build()));
+    });
+    return new ForwardClient(builder, registry, "http://downstream/api", 5000, "", rawMode, "",
+        format, 1, 10, 10, 5, 1000, "none", 2048);
+  }
+
+  /** The values of every form-data part named {@code name}, in order. */
+  private static List<String> parts(String body, String name) {
+    String marker = "name=\"" + name + "\"";
+    return Stream.of(body.split("\r\n--"))
+        .filter(part -> part.contains(marker + "\r\n"))
+        .map(part -> part.substring(part.indexOf("\r\n\r\n") + 4))
+        .toList();
+  }
+}
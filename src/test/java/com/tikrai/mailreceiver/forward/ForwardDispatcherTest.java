@@ -0,0 +1,86 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ForwardDispatcherTest {
+
+  private final ForwardClient client = mock(ForwardClient.class);
+
+  @Test
+  void syncForwardsWaitForASlot() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger peak = new AtomicInteger();
+    when(client.timeout()).thenReturn(Duration.ofSeconds(5));
+    when(client.send(any())).thenAnswer(call -> Mono.defer(() -> {
+      peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+      return Mono.delay(Duration.ofMillis(50)).thenReturn(ResponseEntity.ok(""));
+    }).doOnTerminate(running::decrementAndGet));
+    ForwardDispatcher dispatcher = dispatcher(2);
+
+    List<CompletableFuture<DeliveryReport>> reports = List.of(
+        CompletableFuture.supplyAsync(() -> forward(dispatcher, "a@example.com", "b@example.com", "c@example.com")),
+        CompletableFuture.supplyAsync(() -> forward(dispatcher, "d@example.com")));
+
+    for (CompletableFuture<DeliveryReport> report : reports) {
+      assertThat(report.get().isComplete()).isTrue();
+    }
+    assertThat(peak.get()).isLessThanOrEqualTo(2);
+    // The slot is freed just after the caller sees the result, not before
+    long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    while (dispatcher.inFlight() > 0 && System.nanoTime() < until) {
+      Thread.sleep(1);
+    }
+    assertThat(dispatcher.inFlight()).isZero();
+  }
+
+  @Test
+  void syncForwardIsBoundedByTwiceTheTimeout() throws Exception {
+    when(client.timeout()).thenReturn(Duration.ofMillis(100));
+    // A downstream that never answers, as if retries kept it busy
+    when(client.send(any())).thenReturn(Mono.never());
+    ForwardDispatcher dispatcher = dispatcher(1);
+
+    long start = System.nanoTime();
+    DeliveryReport report = forward(dispatcher, "a@example.com", "b@example.com");
+
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(2));
+    assertThat(report.failed()).containsOnlyKeys("a@example.com", "b@example.com");
+    // b only gets the slot once a timed out at the deadline, which leaves it no time: busy, not a timeout
+    assertThat(report.failed().get("b@example.com")).isInstanceOf(ForwardQueueFullException.class);
+    assertThat(dispatcher.inFlight()).isZero();
+  }
+
+  private ForwardDispatcher dispatcher(int limit) {
+    BatchForwarder batch = mock(BatchForwarder.class);
+    IdempotencyCache idempotency = new IdempotencyCache(false, 60_000, 100, new SimpleMeterRegistry());
+    return new ForwardDispatcher(client, batch, idempotency, "sync", limit, limit, limit, 2.0, 16, "each",
+        new SimpleMeterRegistry());
+  }
+
+  private static DeliveryReport forward(ForwardDispatcher dispatcher, String... recipients) {
+    IncomingEmailPayload payload = new IncomingEmailPayload("sender@example.org", List.of(recipients), "subject",
+        "body", "", Map.of(), List.of(), RawMessage.EMPTY, null);
+    try {
+      return dispatcher.forward(payload);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+}
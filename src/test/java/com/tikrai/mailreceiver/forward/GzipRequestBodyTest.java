@@ -0,0 +1,68 @@
+package com.tikrai.mailreceiver.forward;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.client.reactive.MockClientHttpRequest;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GzipRequestBodyTest {
+
+  private static final URI URL = URI.create("http://downstream/api");
+
+  @Test
+  void bodyBelowTheThresholdGoesOutUnchanged() {
+    byte[] body = "to=rcpt%40example.com&subject=Hello".getBytes(StandardCharsets.US_ASCII);
+
+    MockClientHttpRequest request = write(body, 2048);
+
+    assertThat(request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isNull();
+    assertThat(bytes(request)).isEqualTo(body);
+  }
+
+  @Test
+  void bodyFromTheThresholdIsGzipped() throws IOException {
+    byte[] body = "text=%3Cp%3EHello%2C+world%3C%2Fp%3E&".repeat(200).getBytes(StandardCharsets.US_ASCII);
+
+    MockClientHttpRequest request = write(body, 2048);
+
+    byte[] sent = bytes(request);
+    assertThat(request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(request.getHeaders().getContentLength()).isEqualTo(sent.length);
+    assertThat(sent.length).isLessThan(body.length);
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(sent))) {
+      assertThat(in.readAllBytes()).isEqualTo(body);
+    }
+  }
+
+  private static MockClientHttpRequest write(byte[] body, int minBytes) {
+    MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.POST, URL);
+    ClientRequest.create(HttpMethod.POST, URL)
+        .body(GzipRequestBody.wrap(BodyInserters.fromValue(body), minBytes))
+        .build()
+        .writeTo(request, ExchangeStrategies.withDefaults())
+        .block();
+    return request;
+  }
+
+  private static byte[] bytes(MockClientHttpRequest request) {
+    DataBuffer joined = DataBufferUtils.join(request.getBody()).block();
+    byte[] bytes = new byte[joined.readableByteCount()];
+    joined.read(bytes);
+    DataBufferUtils.release(joined);
+    return bytes;
+  }
+}
@@ -0,0 +1,82 @@
+package com.tikrai.mailreceiver.forward;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tikrai.mailreceiver.model.AttachmentRef;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonPayloadWriterTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  void writesEveryRecipientHeaderValueAndAttachment() throws IOException {
+    IncomingEmailPayload payload = new IncomingEmailPayload("sender@example.org",
+        List.of("a@example.com", "b@example.com"), "subject", "text", "<p>html</p>",
+        Map.of("Received", List.of("from one", "from two"), "Subject", List.of("subject")),
+        List.of(new AttachmentRef("aa11", "one.pdf", "application/pdf", 10),
+            new AttachmentRef("bb22", "two.png", "image/png", 20)),
+        RawMessage.EMPTY, null);
+
+    JsonNode json = write(payload, payload.rcptTo(), "raw-1");
+
+    assertThat(json.get("to").asText()).isEqualTo("a@example.com");
+    assertThat(texts(json.get("rcptTo"))).containsExactly("a@example.com", "b@example.com");
+    assertThat(json.get("from").asText()).isEqualTo("sender@example.org");
+    assertThat(json.get("html").asText()).isEqualTo("<p>html</p>");
+    // A repeated header keeps each value, not one joined string
+    assertThat(texts(json.get("headers").get("Received"))).containsExactly("from one", "from two");
+    assertThat(texts(json.get("headers").get("Subject"))).containsExactly("subject");
+    assertThat(json.get("attachments")).hasSize(2);
+    assertThat(json.get("attachments").get(1).get("sha256").asText()).isEqualTo("bb22");
+    assertThat(json.get("attachments").get(1).get("filename").asText()).isEqualTo("two.png");
+    assertThat(json.get("attachments").get(1).get("contentType").asText()).isEqualTo("image/png");
+    assertThat(json.get("attachments").get(1).get("size").asLong()).isEqualTo(20);
+    assertThat(json.get("rawId").asText()).isEqualTo("raw-1");
+  }
+
+  @Test
+  void missingFieldsBecomeEmptyStrings() throws IOException {
+    IncomingEmailPayload payload = new IncomingEmailPayload(null, List.of(), null, null, null,
+        Map.of("X-Empty", List.of()), null, RawMessage.EMPTY, null);
+
+    JsonNode json = write(payload, List.of(), null);
+
+    for (String field : List.of("to", "from", "subject", "text", "html")) {
+      assertThat(json.get(field).isTextual()).as(field).isTrue();
+      assertThat(json.get(field).asText()).as(field).isEmpty();
+    }
+    assertThat(json.get("rcptTo")).isEmpty();
+    assertThat(json.get("headers").get("X-Empty")).isEmpty();
+    assertThat(json.get("attachments")).isEmpty();
+    assertThat(json.has("rawId")).isFalse();
+  }
+
+  private JsonNode write(IncomingEmailPayload payload, List<String> recipients, String rawId) throws IOException {
+    DataBuffer buffer = JsonPayloadWriter.write(payload, recipients, rawId, DefaultDataBufferFactory.sharedInstance);
+    try {
+      return mapper.readTree(buffer.toString(StandardCharsets.UTF_8));
+    } finally {
+      DataBufferUtils.release(buffer);
+    }
+  }
+
+  private static List<String> texts(JsonNode array) {
+    List<String> texts = new ArrayList<>();
+    array.forEach(node -> texts.add(node.asText()));
+    return texts;
+  }
+}
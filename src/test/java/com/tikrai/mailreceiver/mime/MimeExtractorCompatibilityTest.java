@@ -0,0 +1,73 @@
+package com.tikrai.mailreceiver.mime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The streaming extractor must give the same result as the original MimeMessage code on every
+ * message in {@code mime-corpus}; the one intended difference is covered separately.
+ */
+class MimeExtractorCompatibilityTest {
+
+  // Decoded as UTF-8 by the streaming extractor, dropped by the legacy one
+  private static final String UNKNOWN_CHARSET = "bad_charset.eml";
+
+  private final MimeExtractor legacy = new LegacyMimeExtractor();
+  private final MimeExtractor streaming = new StreamingMimeExtractor();
+
+  static Stream<String> corpus() throws IOException, URISyntaxException {
+    Path dir = Path.of(MimeExtractorCompatibilityTest.class.getResource("/mime-corpus").toURI());
+    try (Stream<Path> files = Files.list(dir)) {
+      List<String> names = files.map(p -> p.getFileName().toString())
+          .filter(name -> name.endsWith(".eml") && !name.equals(UNKNOWN_CHARSET))
+          .sorted()
+          .toList();
+      return names.stream();
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("corpus")
+  void streamingMatchesLegacy(String name) throws IOException {
+    byte[] message = read(name);
+
+    ParsedMessage expected = legacy.extract(new ByteArrayInputStream(message));
+    ParsedMessage actual = streaming.extract(new ByteArrayInputStream(message));
+
+    assertThat(actual.subject()).isEqualTo(expected.subject());
+    assertThat(actual.headers()).isEqualTo(expected.headers());
+    assertThat(actual.textBody()).isEqualTo(expected.textBody());
+    assertThat(actual.htmlBody()).isEqualTo(expected.htmlBody());
+  }
+
+  @Test
+  void corpusIsNotEmpty() throws Exception {
+    assertThat(corpus()).hasSizeGreaterThanOrEqualTo(14);
+  }
+
+  @Test
+  void unknownCharsetIsDecodedAsUtf8() throws IOException {
+    byte[] message = read(UNKNOWN_CHARSET);
+
+    assertThat(legacy.extract(new ByteArrayInputStream(message)).textBody()).isEmpty();
+    assertThat(streaming.extract(new ByteArrayInputStream(message)).textBody()).isEqualToIgnoringNewLines("ascii only");
+  }
+
+  private static byte[] read(String name) throws IOException {
+    try (InputStream in = MimeExtractorCompatibilityTest.class.getResourceAsStream("/mime-corpus/" + name)) {
+      return in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.tikrai.mailreceiver.smtp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class AdmissionControlTest {
+
+  @Test
+  void senderGetsItsBurstThenOneMessagePerInterval() throws InterruptedException {
+    // One token a second, three at once
+    AdmissionControl admission = admission(0, 60, 3, 100);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(admission.checkMessage(null, "sender@example.org")).isNull();
+    }
+    assertThat(admission.checkMessage(null, "Sender@Example.org ")).isEqualTo("sender_rate_exceeded");
+    assertThat(admission.checkMessage(null, "other@example.org")).isNull();
+
+    Thread.sleep(1200);
+    assertThat(admission.checkMessage(null, "sender@example.org")).isNull();
+    assertThat(admission.checkMessage(null, "sender@example.org")).isEqualTo("sender_rate_exceeded");
+  }
+
+  @Test
+  void perIpSessionIsReleasedWhenItsSocketCloses() throws Exception {
+    AdmissionControl admission = admission(1, 0, 0, 100);
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    try (ExecutorService acceptor = Executors.newVirtualThreadPerTaskExecutor();
+         ServerSocket server = admission.newServerSocket()) {
+      server.bind(new InetSocketAddress(loopback, 0));
+      try (Socket first = new Socket(loopback, server.getLocalPort());
+           Socket admitted = server.accept();
+           Socket second = new Socket(loopback, server.getLocalPort())) {
+        CompletableFuture<Socket> next = CompletableFuture.supplyAsync(() -> {
+          try {
+            return server.accept();
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }, acceptor);
+
+        // Over the cap: answered with 421 and closed, while accept() keeps waiting
+        try (InputStream in = second.getInputStream()) {
+          assertThat(new String(in.readAllBytes(), StandardCharsets.US_ASCII)).startsWith("421 4.7.0");
+        }
+        assertThat(next).isNotDone();
+
+        admitted.close();
+        try (Socket third = new Socket(loopback, server.getLocalPort());
+             Socket thirdAdmitted = next.get(5, TimeUnit.SECONDS)) {
+          assertThat(thirdAdmitted.getPort()).isEqualTo(third.getLocalPort());
+        }
+      }
+    }
+  }
+
+  @Test
+  void idleBucketsAreEvictedWhenTheTableIsFull() throws InterruptedException {
+    // One token every 100 ms, no burst, at most two senders tracked
+    AdmissionControl admission = admission(0, 600, 1, 2);
+    assertThat(admission.checkMessage(null, "a@example.org")).isNull();
+    assertThat(admission.checkMessage(null, "b@example.org")).isNull();
+
+    Thread.sleep(250);
+    // a and b have refilled, so c takes a slot and is limited from then on
+    assertThat(admission.checkMessage(null, "c@example.org")).isNull();
+    assertThat(admission.checkMessage(null, "c@example.org")).isEqualTo("sender_rate_exceeded");
+  }
+
+  @Test
+  void untrackedSenderPassesWhileTheTableIsFullOfActiveKeys() {
+    // One token a minute, no burst, at most two senders tracked
+    AdmissionControl admission = admission(0, 1, 1, 2);
+    assertThat(admission.checkMessage(null, "a@example.org")).isNull();
+    assertThat(admission.checkMessage(null, "b@example.org")).isNull();
+
+    assertThat(admission.checkMessage(null, "c@example.org")).isNull();
+    assertThat(admission.checkMessage(null, "c@example.org")).isNull();
+    assertThat(admission.checkMessage(null, "a@example.org")).isEqualTo("sender_rate_exceeded");
+  }
+
+  private static AdmissionControl admission(int maxSessionsPerIp, int senderPerMinute, int senderBurst,
+      int maxTrackedKeys) {
+    return new AdmissionControl(200, maxSessionsPerIp, 0, 0, senderPerMinute, senderBurst, maxTrackedKeys,
+        mock(SmtpMetrics.class), new SimpleMeterRegistry());
+  }
+}
@@ -0,0 +1,218 @@
+package com.tikrai.mailreceiver.smtp;
+
+import com.tikrai.mailreceiver.filter.FilterChain;
+import com.tikrai.mailreceiver.forward.DeliveryReport;
+import com.tikrai.mailreceiver.forward.ForwardDispatcher;
+import com.tikrai.mailreceiver.mime.StreamingMimeExtractor;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.spool.SpoolDrainer;
+import com.tikrai.mailreceiver.trace.TraceRecorder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs whole SMTP conversations through {@link NettySmtpSession} and a real
+ * {@link DomainFilterMessageHandler}, with the forward stubbed out.
+ */
+class NettySmtpSessionTest {
+
+  private static final InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.1", 40000);
+  private static final String ENVELOPE = "EHLO client.example.org\r\n"
+      + "MAIL FROM:<sender@example.org>\r\n"
+      + "RCPT TO:<rcpt@example.com>\r\n";
+  private static final String MESSAGE = "Subject: Hello\r\n"
+      + "Message-ID: <1@example.org>\r\n"
+      + "\r\n"
+      + "First line\r\n"
+      + "..dot-stuffed\r\n";
+
+  @TempDir
+  Path spillDir;
+
+  private final ExecutorService dataThreads = Executors.newVirtualThreadPerTaskExecutor();
+  private final List<IncomingEmailPayload> forwarded = new ArrayList<>();
+  private final List<String> raw = new ArrayList<>();
+  private final List<String> flushes = new ArrayList<>();
+  private DomainFilterMessageHandlerFactory factory;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    RecipientValidator recipients = mock(RecipientValidator.class);
+    when(recipients.check(anyString())).thenReturn(RecipientValidator.Verdict.ACCEPT);
+    ForwardDispatcher dispatcher = mock(ForwardDispatcher.class);
+    when(dispatcher.forward(any())).thenAnswer(call -> {
+      IncomingEmailPayload payload = call.getArgument(0);
+      // The buffer goes back to the pool once the transaction ends
+      try (InputStream in = payload.raw().openStream()) {
+        raw.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+      }
+      forwarded.add(payload);
+      return new DeliveryReport(payload.rcptTo(), Map.of());
+    });
+    MessageBufferPool pool = new MessageBufferPool(4096, 65536, 4, 65536, spillDir.toString(), 1024 * 1024);
+    FilterChain filters = new FilterChain(List.of(), new SimpleMeterRegistry());
+
+    factory = mock(DomainFilterMessageHandlerFactory.class);
+    when(factory.create(any(InetSocketAddress.class))).thenAnswer(call -> new DomainFilterMessageHandler(
+        recipients, dispatcher, pool, new StreamingMimeExtractor(), mock(SpoolDrainer.class),
+        mock(AdmissionControl.class), filters, mock(SmtpMetrics.class), mock(TraceRecorder.class),
+        REMOTE.getAddress(), REMOTE.toString()));
+  }
+
+  @AfterEach
+  void tearDown() {
+    dataThreads.close();
+  }
+
+  @Test
+  void dataIsForwardedWhole() {
+    List<String> replies = converse(ENVELOPE
+        + "DATA\r\n"
+        + MESSAGE
+        + ".\r\n"
+        + "QUIT\r\n");
+
+    assertThat(replies).containsSubsequence("354 End data with <CR><LF>.<CR><LF>", "250 Ok", "221 Bye");
+    assertThat(forwarded).singleElement().satisfies(payload -> {
+      assertThat(payload.subject()).isEqualTo("Hello");
+      assertThat(payload.textBody()).startsWith("First line\r\n.dot-stuffed");
+    });
+    assertThat(raw.get(0)).startsWith("Received: from client.example.org").endsWith(MESSAGE.replace("..", "."));
+  }
+
+  @Test
+  void pipelinedGroupIsAnsweredInOneFlush() {
+    converse("EHLO client.example.org\r\n",
+        "MAIL FROM:<sender@example.org>\r\nRCPT TO:<rcpt@example.com>\r\nDATA\r\n",
+        MESSAGE + ".\r\nQUIT\r\n");
+
+    assertThat(flushes).hasSize(4);
+    assertThat(flushes.get(0)).startsWith("220 ");
+    assertThat(flushes.get(1)).contains("250-PIPELINING\r\n", "250-CHUNKING\r\n");
+    assertThat(flushes.get(2)).isEqualTo("250 Ok\r\n250 Ok\r\n354 End data with <CR><LF>.<CR><LF>\r\n");
+    assertThat(flushes.get(3)).isEqualTo("250 Ok\r\n221 Bye\r\n");
+    assertThat(forwarded).hasSize(1);
+  }
+
+  @Test
+  void bdatChunksAreJoinedUntilLast() {
+    String first = "Subject: Hello\r\n\r\n";
+    String second = "First line\r\n.not stuffed\r\n";
+    List<String> replies = converse(ENVELOPE
+        + "BDAT " + first.length() + "\r\n" + first
+        + "BDAT " + second.length() + " LAST\r\n" + second
+        + "QUIT\r\n");
+
+    assertThat(replies).containsSubsequence("250 2.0.0 " + first.length() + " octets received", "250 Ok", "221 Bye");
+    assertThat(forwarded).singleElement().satisfies(payload -> assertThat(payload.subject()).isEqualTo("Hello"));
+    // No dot-stuffing in BDAT, the chunk is taken as it is
+    assertThat(raw.get(0)).startsWith("Received: from client.example.org").endsWith(first + second);
+  }
+
+  @Test
+  void bdatChunkOfARefusedTransactionIsDiscarded() {
+    // Without RCPT the chunk is refused, and its content must not be read as commands
+    String chunk = "NOOP\r\nNOOP\r\n";
+    List<String> replies = converse("EHLO client.example.org\r\n"
+        + "MAIL FROM:<sender@example.org>\r\n"
+        + "BDAT " + chunk.length() + " LAST\r\n" + chunk
+        + "QUIT\r\n");
+
+    assertThat(replies).endsWith("250 Ok", "503 5.5.1 Error: need RCPT command", "221 Bye");
+    assertThat(forwarded).isEmpty();
+  }
+
+  @Test
+  void resetBeforeBdatLastForwardsNothing() {
+    String chunk = "Subject: Hello\r\n\r\n";
+    List<String> replies = converse(ENVELOPE
+        + "BDAT " + chunk.length() + "\r\n" + chunk
+        + "RSET\r\n"
+        + "QUIT\r\n");
+
+    assertThat(replies).endsWith("250 2.0.0 " + chunk.length() + " octets received", "250 Ok", "221 Bye");
+    assertThat(forwarded).isEmpty();
+  }
+
+  @Test
+  void connectionClosedInsideBdatForwardsNothing() {
+    converse(ENVELOPE + "BDAT 100 LAST\r\nSubject: Hello\r\n\r\ncut short");
+
+    assertThat(forwarded).isEmpty();
+  }
+
+  @Test
+  void dotStuffingIsUndoneAcrossReadBoundaries() {
+    // A line's leading dot, the stuffed dot and the end-of-data dot each arrive apart from what follows
+    converse(ENVELOPE + "DATA\r\n",
+        "Subject: Hello\r\n\r\nline one\r\n.",
+        ".two\r\n",
+        "..three\r\nfour",
+        ".five\r\n.",
+        "\r\nQUIT\r\n");
+
+    assertThat(raw).singleElement().asString()
+        .endsWith("Subject: Hello\r\n\r\nline one\r\n.two\r\n.three\r\nfour.five\r\n");
+  }
+
+  /**
+   * Runs a session over {@code packets} and returns its reply lines. The first packet arrives once the
+   * session waits for input, each further one when it waits again; what the session flushed in between
+   * is collected in {@link #flushes}.
+   */
+  private List<String> converse(String... packets) {
+    EmbeddedChannel channel = new EmbeddedChannel();
+    Queue<String> pending = new ArrayDeque<>(List.of(packets));
+    InboundQueue[] in = new InboundQueue[1];
+    in[0] = new InboundQueue(256 * 1024, 5000, () -> {
+      channel.flush();
+      collectFlushed(channel);
+      if (pending.isEmpty()) {
+        in[0].end();
+      } else {
+        in[0].offer(Unpooled.copiedBuffer(pending.poll(), StandardCharsets.UTF_8));
+      }
+    });
+    SmtpTlsContext tls = mock(SmtpTlsContext.class);
+    new NettySmtpSession(channel, REMOTE, in[0], factory, tls, dataThreads, "mx.example.com", 1024 * 1024).run();
+
+    collectFlushed(channel);
+    channel.finishAndReleaseAll();
+    return List.of(String.join("", flushes).split("\r\n"));
+  }
+
+  private void collectFlushed(EmbeddedChannel channel) {
+    StringBuilder out = new StringBuilder();
+    for (ByteBuf buf = channel.readOutbound(); buf != null; buf = channel.readOutbound()) {
+      out.append(buf.toString(StandardCharsets.US_ASCII));
+      buf.release();
+    }
+    if (!out.isEmpty()) {
+      flushes.add(out.toString());
+    }
+  }
+}
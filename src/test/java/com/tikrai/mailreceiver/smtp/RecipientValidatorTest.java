@@ -0,0 +1,124 @@
+package com.tikrai.mailreceiver.smtp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecipientValidatorTest {
+
+  @TempDir
+  Path dir;
+
+  private final AtomicInteger lookups = new AtomicInteger();
+  // Lookup answers by address; missing addresses exist
+  private final Map<String, HttpStatus> answers = new ConcurrentHashMap<>();
+  private RecipientValidator validator;
+
+  @AfterEach
+  void tearDown() {
+    validator.close();
+  }
+
+  @Test
+  void otherDomainIsRelayDenied() throws IOException {
+    validator = validator("", "", 100, 60_000);
+
+    assertThat(validator.check("someone@example.org")).isEqualTo(RecipientValidator.Verdict.RELAY_DENIED);
+    assertThat(validator.check("no-domain")).isEqualTo(RecipientValidator.Verdict.RELAY_DENIED);
+    assertThat(validator.check("someone@tikrai.com")).isEqualTo(RecipientValidator.Verdict.ACCEPT);
+  }
+
+  @Test
+  void addressMissingFromTheAllowlistIsUnknown() throws IOException {
+    validator = validator(allowlist("# mailboxes\nInfo@Tikrai.com\n"), "", 100, 60_000);
+
+    assertThat(validator.check("info@tikrai.com")).isEqualTo(RecipientValidator.Verdict.ACCEPT);
+    assertThat(validator.check("sales@tikrai.com")).isEqualTo(RecipientValidator.Verdict.UNKNOWN_MAILBOX);
+  }
+
+  @Test
+  void allowlistIsReloadedWhenTheFileChanges() throws Exception {
+    String file = allowlist("info@tikrai.com\n");
+    validator = validator(file, "", 100, 60_000);
+    assertThat(validator.check("sales@tikrai.com")).isEqualTo(RecipientValidator.Verdict.UNKNOWN_MAILBOX);
+
+    Files.writeString(Path.of(file), "info@tikrai.com\nsales@tikrai.com\n");
+    Files.setLastModifiedTime(Path.of(file), FileTime.from(Instant.now().plusSeconds(60)));
+
+    long until = System.nanoTime() + 5_000_000_000L;
+    while (validator.check("sales@tikrai.com") != RecipientValidator.Verdict.ACCEPT && System.nanoTime() < until) {
+      Thread.sleep(10);
+    }
+    assertThat(validator.check("sales@tikrai.com")).isEqualTo(RecipientValidator.Verdict.ACCEPT);
+  }
+
+  @Test
+  void unknownMailboxIsCachedForTheNegativeTtl() throws Exception {
+    answers.put("gone@tikrai.com", HttpStatus.NOT_FOUND);
+    validator = validator("", "http://downstream/api/mailboxes", 100, 200);
+
+    assertThat(validator.check("gone@tikrai.com")).isEqualTo(RecipientValidator.Verdict.UNKNOWN_MAILBOX);
+    assertThat(validator.check("gone@tikrai.com")).isEqualTo(RecipientValidator.Verdict.UNKNOWN_MAILBOX);
+    assertThat(lookups).hasValue(1);
+
+    Thread.sleep(300);
+    assertThat(validator.check("gone@tikrai.com")).isEqualTo(RecipientValidator.Verdict.UNKNOWN_MAILBOX);
+    assertThat(lookups).hasValue(2);
+  }
+
+  @Test
+  void failedLookupAcceptsAndIsNotCached() throws IOException {
+    answers.put("info@tikrai.com", HttpStatus.INTERNAL_SERVER_ERROR);
+    validator = validator("", "http://downstream/api/mailboxes", 100, 60_000);
+
+    assertThat(validator.check("info@tikrai.com")).isEqualTo(RecipientValidator.Verdict.ACCEPT);
+    assertThat(validator.check("info@tikrai.com")).isEqualTo(RecipientValidator.Verdict.ACCEPT);
+    assertThat(lookups).hasValue(2);
+  }
+
+  @Test
+  void cacheStaysWithinItsSize() throws IOException {
+    validator = validator("", "http://downstream/api/mailboxes", 10, 60_000);
+    for (int i = 0; i < 20; i++) {
+      validator.check("user" + i + "@tikrai.com");
+    }
+    lookups.set(0);
+
+    for (int i = 0; i < 20; i++) {
+      validator.check("user" + i + "@tikrai.com");
+    }
+
+    // At most 10 of the 20 can still be cached
+    assertThat(lookups.get()).isGreaterThanOrEqualTo(10);
+  }
+
+  private String allowlist(String content) throws IOException {
+    return Files.writeString(dir.resolve("recipients.txt"), content).toString();
+  }
+
+  private RecipientValidator validator(String allowlistFile, String lookupUrl, int cacheSize, long negativeTtlMs)
+      throws IOException {
+    WebClient.Builder builder = WebClient.builder().exchangeFunction(request -> {
+      lookups.incrementAndGet();
+      String address = request.url().getQuery().substring("address=".length());
+      return Mono.just(ClientResponse.create(answers.getOrDefault(address, HttpStatus.OK)).build());
+    });
+    return new RecipientValidator(builder, "tikrai.com", allowlistFile, 20, lookupUrl, 2000, cacheSize, 60_000,
+        negativeTtlMs);
+  }
+}
@@ -0,0 +1,204 @@
+package com.tikrai.mailreceiver.smtp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SmtpTlsContextTest {
+
+  private static final char[] STORE_PASSWORD = "changeit".toCharArray();
+
+  // Pairs are generated once; keytool takes a JVM start each
+  @TempDir
+  static Path pairs;
+
+  @TempDir
+  Path dir;
+
+  private final SmtpMetrics metrics = mock(SmtpMetrics.class);
+  private final ExecutorService server = Executors.newVirtualThreadPerTaskExecutor();
+  private ServerSocket listener;
+  private Path certFile;
+  private Path keyFile;
+  private SmtpTlsContext tls;
+
+  @BeforeAll
+  static void generatePairs() throws Exception {
+    generatePair("one");
+    generatePair("two");
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    certFile = dir.resolve("tls.crt");
+    keyFile = dir.resolve("tls.key");
+    writePair("one");
+    tls = new SmtpTlsContext(true, certFile.toString(), keyFile.toString(), "TLSv1.3,TLSv1.2", 100, 3600, 50,
+        metrics);
+    // One port for all handshakes: the client keys its sessions by host and port
+    listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    tls.close();
+    listener.close();
+    server.close();
+  }
+
+  @Test
+  void handshakeIsResumedOnlyWhenTheSessionIsOlderThanIt() {
+    SSLSession session = mock(SSLSession.class);
+    when(session.getCreationTime()).thenReturn(1_000L);
+
+    tls.recordHandshake(session, 42, 1_001);
+    tls.recordHandshake(session, 43, 1_000);
+
+    verify(metrics).recordTlsHandshake("resumed", 42);
+    verify(metrics).recordTlsHandshake("full", 43);
+  }
+
+  @Test
+  void returningClientResumes() throws Exception {
+    SSLContext client = trustingClient();
+
+    handshake(client);
+    handshake(client);
+
+    var order = inOrder(metrics);
+    order.verify(metrics, timeout(5000)).recordTlsHandshake(eq("full"), anyLong());
+    order.verify(metrics, timeout(5000)).recordTlsHandshake(eq("resumed"), anyLong());
+  }
+
+  @Test
+  void brokenPairKeepsThePreviousContext() throws Exception {
+    Files.writeString(certFile, "-----BEGIN CERTIFICATE-----\nbroken\n-----END CERTIFICATE-----\n");
+    Files.setLastModifiedTime(certFile, FileTime.from(Instant.now().plusSeconds(60)));
+    Thread.sleep(300);
+
+    assertThat(handshake(trustingClient())).isEqualTo("CN=one");
+
+    // A good pair is still picked up afterwards
+    writePair("two");
+    Files.setLastModifiedTime(certFile, FileTime.from(Instant.now().plusSeconds(120)));
+    long until = System.nanoTime() + 5_000_000_000L;
+    String served = null;
+    while (!"CN=two".equals(served) && System.nanoTime() < until) {
+      Thread.sleep(50);
+      try {
+        served = handshake(trustingClient());
+      } catch (IOException e) {
+        // caught between the two files being rewritten
+      }
+    }
+    assertThat(served).isEqualTo("CN=two");
+  }
+
+  /** Runs one STARTTLS-style handshake through {@link SmtpTlsContext#wrap} and returns the served subject. */
+  private String handshake(SSLContext client) throws Exception {
+    Future<?> accepted = server.submit(() -> {
+      try (Socket plain = listener.accept(); SSLSocket ssl = tls.wrap(plain)) {
+        ssl.startHandshake();
+        // Gives the client a read, during which it takes the TLS 1.3 session ticket
+        ssl.getOutputStream().write('\n');
+        ssl.getOutputStream().flush();
+        ssl.getInputStream().read();
+      }
+      return null;
+    });
+    try (SSLSocket socket = (SSLSocket) client.getSocketFactory()
+        .createSocket(listener.getInetAddress(), listener.getLocalPort())) {
+      socket.startHandshake();
+      socket.getInputStream().read();
+      String subject = ((X509Certificate) socket.getSession().getPeerCertificates()[0])
+          .getSubjectX500Principal().getName();
+      socket.getOutputStream().write('\n');
+      socket.getOutputStream().flush();
+      accepted.get();
+      return subject;
+    }
+  }
+
+  private void writePair(String name) throws IOException {
+    Files.copy(pairs.resolve(name + ".key"), keyFile, StandardCopyOption.REPLACE_EXISTING);
+    Files.copy(pairs.resolve(name + ".crt"), certFile, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /** A self-signed EC pair for {@code CN=<name>}, from keytool, written as PEM certificate and PKCS#8 key. */
+  private static void generatePair(String name) throws Exception {
+    Path store = pairs.resolve(name + ".p12");
+    Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+        "-genkeypair", "-alias", "smtp", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=" + name,
+        "-validity", "1", "-storetype", "PKCS12", "-keystore", store.toString(),
+        "-storepass", new String(STORE_PASSWORD))
+        .redirectErrorStream(true)
+        .start();
+    String output = new String(keytool.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    assertThat(keytool.waitFor()).as(output).isZero();
+
+    KeyStore keys = KeyStore.getInstance("PKCS12");
+    try (var in = Files.newInputStream(store)) {
+      keys.load(in, STORE_PASSWORD);
+    }
+    byte[] key = keys.getKey("smtp", STORE_PASSWORD).getEncoded();
+    Files.writeString(pairs.resolve(name + ".key"), pem("PRIVATE KEY", key));
+    Files.writeString(pairs.resolve(name + ".crt"), pem("CERTIFICATE", keys.getCertificate("smtp").getEncoded()));
+  }
+
+  private static String pem(String type, byte[] der) {
+    return "-----BEGIN " + type + "-----\n"
+        + Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der)
+        + "\n-----END " + type + "-----\n";
+  }
+
+  private static SSLContext trustingClient() throws Exception {
+    TrustManager trustAll = new X509TrustManager() {
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    };
+    SSLContext client = SSLContext.getInstance("TLS");
+    client.init(null, new TrustManager[] {trustAll}, null);
+    return client;
+  }
+}
@@ -0,0 +1,168 @@
+package com.tikrai.mailreceiver.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MessageSpoolTest {
+
+  private static final int SEGMENT_BYTES = 64 * 1024;
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void unacknowledgedEntriesAreRecovered() throws IOException {
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      spool.append(payload("one"));
+      SpoolEntry two = spool.append(payload("two"));
+      spool.append(payload("three"));
+      spool.ack(two);
+    }
+
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      List<String> subjects = spool.recoveredEntries().stream().map(entry -> read(spool, entry).subject()).toList();
+      assertThat(subjects).containsExactly("one", "three");
+      IncomingEmailPayload first = read(spool, spool.recoveredEntries().get(0));
+      assertThat(first.rcptTo()).containsExactly("rcpt@example.com");
+      assertThat(raw(first)).isEqualTo("Subject: one\r\n\r\nbody\r\n");
+    }
+  }
+
+  @Test
+  void tornTailIsDropped() throws IOException {
+    SpoolEntry last;
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      spool.append(payload("one"));
+      last = spool.append(payload("two"));
+    }
+    // A crash in the middle of the last record: its checksum no longer matches
+    Path file = dir.resolve(SpoolSegment.fileName(last.segment.id()));
+    try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+      out.seek(last.offset + SpoolSegment.HEADER_BYTES + 8);
+      out.write('X');
+    }
+
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      assertThat(spool.recoveredEntries()).singleElement()
+          .satisfies(entry -> assertThat(read(spool, entry).subject()).isEqualTo("one"));
+      // Appends go to a fresh segment, after the recovered one
+      assertThat(read(spool, spool.append(payload("three"))).subject()).isEqualTo("three");
+    }
+  }
+
+  @Test
+  void fullyAcknowledgedSegmentsAreDeletedOnOpen() throws IOException {
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      spool.ack(spool.append(payload("one")));
+    }
+
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      assertThat(spool.recoveredEntries()).isEmpty();
+    }
+    assertThat(segmentFiles()).isEqualTo(1);
+  }
+
+  @Test
+  void sealedSegmentIsDeletedOnceItsLastEntryIsAcknowledged() throws IOException {
+    // Smaller than any record, so every append rolls over to a segment of its own
+    try (MessageSpool spool = open(64)) {
+      SpoolEntry one = spool.append(payload("one"));
+      spool.append(payload("two"));
+      assertThat(segmentFiles()).isEqualTo(2);
+
+      spool.ack(one);
+
+      assertThat(segmentFiles()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void recordWhoseCopyFailedIsSkippedOnRecovery() throws IOException {
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      spool.append(payload("one"));
+      IncomingEmailPayload truncated = payload("two").withRaw(new RawMessage() {
+        @Override
+        public long size() {
+          return 100;
+        }
+
+        @Override
+        public InputStream openStream() {
+          return new ByteArrayInputStream(new byte[10]);
+        }
+      });
+      assertThatThrownBy(() -> spool.append(truncated)).isInstanceOf(EOFException.class);
+      spool.append(payload("three"));
+    }
+
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      List<String> subjects = spool.recoveredEntries().stream().map(entry -> read(spool, entry).subject()).toList();
+      assertThat(subjects).containsExactly("one", "three");
+    }
+  }
+
+  @Test
+  void quarantineCopiesTheRecordAndAcknowledgesIt() throws IOException {
+    Path file;
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      file = spool.quarantine(spool.append(payload("one")));
+    }
+
+    byte[] record = Files.readAllBytes(file);
+    int metaLength = ByteBuffer.wrap(record).getInt();
+    assertThat(new String(record, Integer.BYTES + metaLength, record.length - Integer.BYTES - metaLength,
+        StandardCharsets.US_ASCII)).isEqualTo("Subject: one\r\n\r\nbody\r\n");
+    assertThat(file.getParent()).isEqualTo(dir.resolve("quarantine"));
+    try (MessageSpool spool = open(SEGMENT_BYTES)) {
+      assertThat(spool.recoveredEntries()).isEmpty();
+    }
+  }
+
+  private MessageSpool open(int segmentBytes) throws IOException {
+    return new MessageSpool(true, dir.toString(), segmentBytes, 5000, new ObjectMapper());
+  }
+
+  private long segmentFiles() throws IOException {
+    try (var files = Files.list(dir)) {
+      return files.filter(SpoolSegment::isSegmentFile).count();
+    }
+  }
+
+  private static IncomingEmailPayload payload(String subject) {
+    byte[] raw = ("Subject: " + subject + "\r\n\r\nbody\r\n").getBytes(StandardCharsets.US_ASCII);
+    return new IncomingEmailPayload("sender@example.org", List.of("rcpt@example.com"), subject, "body", "",
+        Map.of("Subject", List.of(subject)), List.of(), RawMessage.of(ByteBuffer.wrap(raw)), null);
+  }
+
+  private static IncomingEmailPayload read(MessageSpool spool, SpoolEntry entry) {
+    try {
+      return spool.read(entry);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String raw(IncomingEmailPayload payload) throws IOException {
+    try (InputStream in = payload.raw().openStream()) {
+      return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+    }
+  }
+}
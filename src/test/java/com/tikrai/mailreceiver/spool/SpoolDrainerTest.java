@@ -0,0 +1,104 @@
+package com.tikrai.mailreceiver.spool;
+
+import com.tikrai.mailreceiver.forward.DeliveryReport;
+import com.tikrai.mailreceiver.forward.ForwardDispatcher;
+import com.tikrai.mailreceiver.model.IncomingEmailPayload;
+import com.tikrai.mailreceiver.model.RawMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SpoolDrainerTest {
+
+  private static final IncomingEmailPayload PAYLOAD = new IncomingEmailPayload("sender@example.org",
+      List.of("rcpt@example.com"), "subject", "body", "", Map.of(), List.of(), RawMessage.EMPTY, null);
+
+  @Test
+  void failedOrThrowingForwardIsRetried() throws IOException {
+    SpoolEntry entry = new SpoolEntry(null, 0);
+    MessageSpool spool = mock(MessageSpool.class);
+    when(spool.isEnabled()).thenReturn(true);
+    when(spool.recoveredEntries()).thenReturn(List.of(entry));
+    when(spool.read(entry)).thenReturn(PAYLOAD);
+    ForwardDispatcher dispatcher = mock(ForwardDispatcher.class);
+    when(dispatcher.submitAll(any()))
+        .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("dispatcher stopped")))
+        .thenThrow(new IllegalStateException("bug"))
+        .thenReturn(CompletableFuture.completedFuture(new DeliveryReport(List.of("rcpt@example.com"), Map.of())));
+
+    try (SpoolDrainer drainer = new SpoolDrainer(spool, dispatcher, 1, 10, 100, 5, new SimpleMeterRegistry())) {
+      verify(spool, timeout(5000)).ack(entry);
+      verify(dispatcher, times(3)).submitAll(any());
+    }
+  }
+
+  @Test
+  void retryGoesOnlyToFailedRecipients() throws IOException {
+    SpoolEntry entry = new SpoolEntry(null, 0);
+    MessageSpool spool = mock(MessageSpool.class);
+    when(spool.isEnabled()).thenReturn(true);
+    when(spool.recoveredEntries()).thenReturn(List.of(entry));
+    when(spool.read(entry)).thenReturn(PAYLOAD.withRcptTo(List.of("a@example.com", "b@example.com")));
+    ForwardDispatcher dispatcher = mock(ForwardDispatcher.class);
+    when(dispatcher.submitAll(any()))
+        .thenReturn(CompletableFuture.completedFuture(new DeliveryReport(List.of("a@example.com"),
+            Map.of("b@example.com", new IllegalStateException("rejected")))))
+        .thenReturn(CompletableFuture.completedFuture(new DeliveryReport(List.of("b@example.com"), Map.of())));
+
+    try (SpoolDrainer drainer = new SpoolDrainer(spool, dispatcher, 1, 10, 100, 5, new SimpleMeterRegistry())) {
+      verify(spool, timeout(5000)).ack(entry);
+      ArgumentCaptor<IncomingEmailPayload> sent = ArgumentCaptor.forClass(IncomingEmailPayload.class);
+      verify(dispatcher, times(2)).submitAll(sent.capture());
+      assertThat(sent.getAllValues().get(1).rcptTo()).containsExactly("b@example.com");
+    }
+  }
+
+  @Test
+  void entryFailingEveryAttemptIsQuarantined() throws IOException {
+    SpoolEntry entry = new SpoolEntry(null, 0);
+    MessageSpool spool = mock(MessageSpool.class);
+    when(spool.isEnabled()).thenReturn(true);
+    when(spool.recoveredEntries()).thenReturn(List.of(entry));
+    when(spool.read(entry)).thenReturn(PAYLOAD);
+    ForwardDispatcher dispatcher = mock(ForwardDispatcher.class);
+    when(dispatcher.submitAll(any())).thenAnswer(call -> CompletableFuture.completedFuture(
+        new DeliveryReport(List.of(), Map.of("rcpt@example.com", new IllegalStateException("rejected")))));
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    try (SpoolDrainer drainer = new SpoolDrainer(spool, dispatcher, 1, 1, 10, 3, registry)) {
+      verify(spool, timeout(5000)).quarantine(entry);
+      verify(dispatcher, times(3)).submitAll(any());
+      verify(spool, never()).ack(entry);
+      assertThat(registry.get("spool.quarantined").tag("reason", "attempts").counter().count()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void unreadableEntryIsQuarantined() throws IOException {
+    SpoolEntry entry = new SpoolEntry(null, 0);
+    MessageSpool spool = mock(MessageSpool.class);
+    when(spool.isEnabled()).thenReturn(true);
+    when(spool.recoveredEntries()).thenReturn(List.of(entry));
+    when(spool.read(entry)).thenThrow(new IOException("bad metadata"));
+    ForwardDispatcher dispatcher = mock(ForwardDispatcher.class);
+
+    try (SpoolDrainer drainer = new SpoolDrainer(spool, dispatcher, 1, 1, 10, 3, new SimpleMeterRegistry())) {
+      verify(spool, timeout(5000)).quarantine(entry);
+      verify(dispatcher, never()).submitAll(any());
+    }
+  }
+}